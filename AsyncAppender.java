@@ -0,0 +1,282 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Append-only JSON-lines files written by one background thread.
+ *
+ * Request threads hand events to append(), which only puts them in a bounded lock-free ring
+ * buffer; formatting and file I/O happen on the writer thread, which drains the buffer in
+ * batches and writes each batch with a single call. Files roll over at maxFileBytes, and the
+ * oldest are deleted beyond maxFiles (0 keeps them all).
+ *
+ * When the buffer is full the overflow policy decides: DROP discards the event and counts it,
+ * BLOCK makes the caller wait for space. Either way the counters show up in /api/metrics
+ * under the appender's name.
+ */
+public class AsyncAppender<T> {
+    public enum Overflow { DROP, BLOCK }
+    
+    public interface Formatter<T> {
+        void format(T event, StringBuilder line);
+    }
+    
+    private static final int MAX_BATCH_EVENTS = 1024;
+    // An idle writer checks back this often, so a quiet trickle of events is written within ~10ms
+    private static final long IDLE_PARK_NANOS = 10_000_000L;
+    private static final long BLOCKED_PARK_NANOS = 50_000L;
+    private static final DateTimeFormatter FILE_TIME =
+            DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss-SSS").withZone(ZoneOffset.UTC);
+    
+    private final String name;
+    private final Path dir;
+    private final MpscRingBuffer<T> buffer;
+    private final Overflow overflow;
+    private final long maxFileBytes;
+    private final int maxFiles;
+    private final long fsyncIntervalNanos;
+    private final Formatter<T> formatter;
+    private final Thread writer;
+    private final int wakeThreshold;
+    private volatile boolean writerParked;
+    private volatile boolean closed;
+    
+    private final LongAdder published;
+    private final LongAdder dropped;
+    private final LongAdder blocked;
+    private final LongAdder written;
+    private final LongAdder writeErrors;
+    
+    // Only touched by the writer thread
+    private FileChannel file;
+    private long fileBytes;
+    private long lastFsync = System.nanoTime();
+    private boolean unsynced;
+    
+    public AsyncAppender(String name, Path dir, int capacity, Overflow overflow, long maxFileBytes, int maxFiles,
+            long fsyncIntervalMs, Formatter<T> formatter) {
+        this.name = name;
+        this.dir = dir;
+        this.buffer = new MpscRingBuffer<>(capacity);
+        this.wakeThreshold = capacity / 4;
+        this.overflow = overflow;
+        this.maxFileBytes = maxFileBytes;
+        this.maxFiles = maxFiles;
+        this.fsyncIntervalNanos = fsyncIntervalMs * 1_000_000L;
+        this.formatter = formatter;
+        this.published = Metrics.counter(name + ".published");
+        this.dropped = Metrics.counter(name + ".dropped");
+        this.blocked = Metrics.counter(name + ".blocked");
+        this.written = Metrics.counter(name + ".written");
+        this.writeErrors = Metrics.counter(name + ".write_errors");
+        Metrics.gauge(name + ".queue_depth", buffer::size);
+        
+        this.writer = new Thread(this::runWriter, name + "-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close, name + "-shutdown"));
+    }
+    
+    public static Overflow parseOverflow(String value) {
+        if ("drop".equalsIgnoreCase(value)) {
+            return Overflow.DROP;
+        }
+        if ("block".equalsIgnoreCase(value)) {
+            return Overflow.BLOCK;
+        }
+        throw new IllegalArgumentException("Overflow policy must be drop or block, got " + value);
+    }
+    
+    /**
+     * Queues an event for writing. Returns false if it was dropped.
+     */
+    public boolean append(T event) {
+        if (closed) {
+            dropped.increment();
+            return false;
+        }
+        if (!buffer.offer(event)) {
+            if (overflow == Overflow.DROP) {
+                dropped.increment();
+                return false;
+            }
+            blocked.increment();
+            do {
+                if (closed) {
+                    dropped.increment();
+                    return false;
+                }
+                LockSupport.unpark(writer);
+                LockSupport.parkNanos(BLOCKED_PARK_NANOS);
+            } while (!buffer.offer(event));
+        }
+        published.increment();
+        // Waking the writer costs a syscall, so it is only done once a burst is filling the buffer
+        if (writerParked && buffer.size() >= wakeThreshold) {
+            LockSupport.unpark(writer);
+        }
+        return true;
+    }
+    
+    /**
+     * Writes out everything queued so far and stops the writer.
+     */
+    public void close() {
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    private void runWriter() {
+        StringBuilder batch = new StringBuilder(64 * 1024);
+        int batchEvents = 0;
+        while (true) {
+            T event = buffer.poll();
+            if (event != null) {
+                try {
+                    formatter.format(event, batch);
+                    batch.append('\n');
+                    batchEvents++;
+                } catch (RuntimeException e) {
+                    writeErrors.increment();
+                }
+                if (batchEvents < MAX_BATCH_EVENTS) {
+                    continue;
+                }
+            }
+            
+            if (batchEvents > 0) {
+                writeBatch(batch, batchEvents);
+                batch.setLength(0);
+                batchEvents = 0;
+                continue;
+            }
+            syncIfDue(false);
+            if (closed && buffer.isEmpty()) {
+                syncIfDue(true);
+                closeFile();
+                return;
+            }
+            
+            // Producers unpark us only when they see this flag, so re-check after setting it
+            writerParked = true;
+            if (buffer.isEmpty() && !closed) {
+                LockSupport.parkNanos(this, unsynced ? Math.min(IDLE_PARK_NANOS, fsyncIntervalNanos) : IDLE_PARK_NANOS);
+            }
+            writerParked = false;
+        }
+    }
+    
+    private void writeBatch(StringBuilder batch, int events) {
+        byte[] bytes = batch.toString().getBytes(StandardCharsets.UTF_8);
+        try {
+            if (file == null || fileBytes + bytes.length > maxFileBytes) {
+                rollFile();
+            }
+            ByteBuffer out = ByteBuffer.wrap(bytes);
+            while (out.hasRemaining()) {
+                file.write(out);
+            }
+            fileBytes += bytes.length;
+            unsynced = true;
+            written.add(events);
+        } catch (IOException e) {
+            // The batch is lost; the next one starts a fresh file
+            writeErrors.add(events);
+            System.err.println(name + ": write failed: " + e.getMessage());
+            closeFile();
+        }
+    }
+    
+    private void syncIfDue(boolean force) {
+        if (file == null || !unsynced || (!force && System.nanoTime() - lastFsync < fsyncIntervalNanos)) {
+            return;
+        }
+        try {
+            file.force(false);
+        } catch (IOException e) {
+            writeErrors.increment();
+        }
+        unsynced = false;
+        lastFsync = System.nanoTime();
+    }
+    
+    private void rollFile() throws IOException {
+        syncIfDue(true);
+        closeFile();
+        Files.createDirectories(dir);
+        Path path = dir.resolve(name + "-" + FILE_TIME.format(java.time.Instant.now()) + ".jsonl");
+        for (int n = 1; Files.exists(path); n++) {
+            path = dir.resolve(name + "-" + FILE_TIME.format(java.time.Instant.now()) + "-" + n + ".jsonl");
+        }
+        file = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        fileBytes = 0;
+        deleteOldFiles();
+    }
+    
+    // File names sort by creation time
+    private void deleteOldFiles() throws IOException {
+        if (maxFiles <= 0) {
+            return;
+        }
+        List<Path> files;
+        try (Stream<Path> list = Files.list(dir)) {
+            files = list.filter(p -> {
+                String fileName = p.getFileName().toString();
+                return fileName.startsWith(name + "-") && fileName.endsWith(".jsonl");
+            }).sorted().collect(Collectors.toList());
+        }
+        for (int i = 0; i < files.size() - maxFiles; i++) {
+            Files.deleteIfExists(files.get(i));
+        }
+    }
+    
+    private void closeFile() {
+        if (file == null) {
+            return;
+        }
+        try {
+            file.close();
+        } catch (IOException e) {
+            writeErrors.increment();
+        }
+        file = null;
+    }
+    
+    /**
+     * Appends value as a quoted JSON string, escaping what needs it.
+     */
+    public static void appendString(StringBuilder json, String value) {
+        if (value == null) {
+            json.append("null");
+            return;
+        }
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c < 0x20) {
+                json.append(String.format("\\u%04x", (int) c));
+            } else {
+                json.append(c);
+            }
+        }
+        json.append('"');
+    }
+}
\ No newline at end of file
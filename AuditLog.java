@@ -0,0 +1,76 @@
+import java.nio.file.Paths;
+import java.time.Instant;
+
+/**
+ * Who did what to which vault: one JSON line per vault request, written asynchronously to
+ * rotating files under AUDIT_DIR (default data/audit).
+ *
+ * Actions are "read" (a listing answered without sending passwords, i.e. 304), "reveal"
+ * (decrypted passwords were sent: listings, pages, changes, export), "add" (including import),
+ * "update", "delete", "batch" and "reuse" (which entries share a password, without the passwords).
+ * The request thread only stamps the time and queues the event.
+ *
+ * AUDIT_BUFFER_SIZE   events held in memory before the overflow policy applies (default 8192)
+ * AUDIT_OVERFLOW      drop (default) or block
+ * AUDIT_MAX_FILE_MB   size at which a new file is started (default 64); files are never deleted
+ * AUDIT_FSYNC_MS      how often written events are fsynced (default 1000)
+ */
+public class AuditLog {
+    private final AsyncAppender<Event> appender;
+    
+    public AuditLog(AsyncAppender<Event> appender) {
+        this.appender = appender;
+    }
+    
+    public static AuditLog fromEnvironment() {
+        java.util.Map<String, String> env = System.getenv();
+        return new AuditLog(new AsyncAppender<>("audit",
+                Paths.get(env.getOrDefault("AUDIT_DIR", "data/audit")),
+                Integer.parseInt(env.getOrDefault("AUDIT_BUFFER_SIZE", "8192")),
+                AsyncAppender.parseOverflow(env.getOrDefault("AUDIT_OVERFLOW", "drop")),
+                Long.parseLong(env.getOrDefault("AUDIT_MAX_FILE_MB", "64")) * 1024 * 1024,
+                0,
+                Long.parseLong(env.getOrDefault("AUDIT_FSYNC_MS", "1000")),
+                AuditLog::format));
+    }
+    
+    /**
+     * Records one action. target is the entry id, or null when the action covers the vault.
+     */
+    public boolean record(String action, String userId, String target, int status, String client) {
+        Event event = new Event();
+        event.time = System.currentTimeMillis();
+        event.action = action;
+        event.userId = userId;
+        event.target = target;
+        event.status = status;
+        event.client = client;
+        return appender.append(event);
+    }
+    
+    public void close() {
+        appender.close();
+    }
+    
+    private static void format(Event event, StringBuilder line) {
+        line.append("{\"time\":\"").append(Instant.ofEpochMilli(event.time)).append('"');
+        line.append(",\"action\":\"").append(event.action).append('"');
+        line.append(",\"userId\":");
+        AsyncAppender.appendString(line, event.userId);
+        line.append(",\"target\":");
+        AsyncAppender.appendString(line, event.target);
+        line.append(",\"status\":").append(event.status);
+        line.append(",\"client\":");
+        AsyncAppender.appendString(line, event.client);
+        line.append('}');
+    }
+    
+    public static class Event {
+        long time;
+        String action;
+        String userId;
+        String target;
+        int status;
+        String client;
+    }
+}
\ No newline at end of file
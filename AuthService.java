@@ -1,68 +1,237 @@
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.security.spec.InvalidKeySpecException;
 import java.util.Base64;
-import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.nio.charset.StandardCharsets;
 import java.time.Instant;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
 import javax.crypto.Mac;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
 import javax.crypto.spec.SecretKeySpec;
 
 public class AuthService {
     private static final String USERS_FILE = "data/users.json";
     private static final String ALGORITHM = "HmacSHA256";
+    private static final String KDF_ALGORITHM = "PBKDF2WithHmacSHA256";
+    private static final String KDF_PREFIX = "pbkdf2-sha256$";
+    private static final int KDF_ITERATIONS = Integer.parseInt(System.getenv().getOrDefault("PBKDF2_ITERATIONS", "310000"));
+    // Access tokens are short-lived; clients renew them with a refresh token instead of the password
+    static final long ACCESS_TOKEN_TTL_SECONDS = Long.parseLong(System.getenv().getOrDefault("ACCESS_TOKEN_TTL_SECONDS", "900"));
+    // Checked against on logins for unknown usernames, so they cost the same PBKDF2 work as
+    // known ones and login latency does not reveal which accounts exist
+    private static final User UNKNOWN_USER = unknownUser();
     private final String jwtSecret;
+    private final StorageWriter storage;
+    private final SessionStore sessions;
     
-    public AuthService(String jwtSecret) {
+    // Resident index of users.json. The list keeps file order and is replaced, never mutated,
+    // under the lock; lookups go through the map without locking.
+    private final ConcurrentHashMap<String, User> usersByName = new ConcurrentHashMap<>();
+    private volatile List<User> users = List.of();
+    private volatile boolean indexBuilt;
+    // Account passwords found in this breach corpus are refused; null when not configured
+    private volatile BreachList breaches;
+    
+    public AuthService(String jwtSecret, StorageWriter storage, SessionStore sessions) {
         this.jwtSecret = jwtSecret;
+        this.storage = storage;
+        this.sessions = sessions;
+    }
+    
+    public void buildIndex(List<User> loaded) {
+        for (User user : loaded) {
+            usersByName.put(user.username, user);
+        }
+        users = loaded;
+        indexBuilt = true;
+    }
+    
+    public void setBreachList(BreachList breaches) {
+        this.breaches = breaches;
     }
     
     public boolean userExists(String username) throws Exception {
-        List<User> users = loadUsers();
-        return users.stream().anyMatch(user -> user.username.equals(username));
+        return findUser(username) != null;
     }
     
-    public void createUser(String username, String password) throws Exception {
-        List<User> users = loadUsers();
-        
+    /**
+     * Returns false if the username was taken by a concurrent registration. Throws
+     * IllegalArgumentException if the password is in the breach corpus.
+     */
+    public boolean createUser(String username, String password) throws Exception {
+        BreachList list = breaches;
+        if (list != null && list.isBreached(password)) {
+            Metrics.increment("auth.breached_password_refused");
+            throw new IllegalArgumentException("This password has appeared in a data breach, please choose another");
+        }
         String salt = generateSalt();
         String hashedPassword = hashPassword(password, salt);
         
         User newUser = new User();
-        newUser.id = String.valueOf(System.currentTimeMillis());
+        newUser.id = IdGenerator.next();
         newUser.username = username;
         newUser.password = hashedPassword;
         newUser.salt = salt;
         newUser.createdAt = Instant.now().toString();
         
-        users.add(newUser);
-        saveUsers(users);
+        // Hash outside the lock; only the users.json read-modify-write is serialized
+        synchronized (this) {
+            if (findUser(username) != null) {
+                return false;
+            }
+            List<User> updated = new ArrayList<>(users);
+            updated.add(newUser);
+            saveUsers(updated);
+            users = updated;
+            usersByName.put(username, newUser);
+        }
+        return true;
     }
     
-    public String authenticate(String username, String password) throws Exception {
-        List<User> users = loadUsers();
-        
-        User user = users.stream()
-                .filter(u -> u.username.equals(username))
-                .findFirst()
-                .orElse(null);
+    /**
+     * Registers many users with a single write of users.json, for seeding datasets; createUser
+     * rewrites the whole file per user. Each credential is {username, password}. Usernames that
+     * are taken and passwords in the breach corpus are skipped, as createUser would refuse them,
+     * and the users actually added are returned. Hashing runs in parallel
+     * at PBKDF2_ITERATIONS, so set that low for large datasets: logins upgrade the hashes.
+     */
+    public List<User> createUsers(List<String[]> credentials) throws Exception {
+        BreachList list = breaches;
+        List<User> hashed;
+        try {
+            hashed = credentials.parallelStream().filter(credential -> {
+                if (list != null && list.isBreached(credential[1])) {
+                    Metrics.increment("auth.breached_password_refused");
+                    return false;
+                }
+                return true;
+            }).map(credential -> {
+                try {
+                    User user = new User();
+                    user.id = IdGenerator.next();
+                    user.username = credential[0];
+                    user.salt = generateSalt();
+                    user.password = hashPassword(credential[1], user.salt);
+                    user.createdAt = Instant.now().toString();
+                    return user;
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            }).collect(java.util.stream.Collectors.toList());
+        } catch (IllegalStateException e) {
+            throw (Exception) e.getCause();
+        }
         
+        synchronized (this) {
+            List<User> updated = new ArrayList<>(users.size() + hashed.size());
+            updated.addAll(users);
+            java.util.Set<String> taken = new java.util.HashSet<>();
+            List<User> added = new ArrayList<>(hashed.size());
+            for (User user : hashed) {
+                if (findUser(user.username) == null && taken.add(user.username)) {
+                    updated.add(user);
+                    added.add(user);
+                }
+            }
+            saveUsers(updated);
+            users = updated;
+            for (User user : added) {
+                usersByName.put(user.username, user);
+            }
+            return added;
+        }
+    }
+    
+    /**
+     * Checks the password and starts a new session, or returns null if the credentials are wrong.
+     */
+    public Tokens authenticate(String username, String password) throws Exception {
+        User user = findUser(username);
         if (user == null) {
+            verifyPassword(password, UNKNOWN_USER);
             return null;
         }
         
-        String hashedPassword = hashPassword(password, user.salt);
-        if (!hashedPassword.equals(user.password)) {
+        if (!verifyPassword(password, user)) {
             return null;
         }
         
-        return generateJWT(user.id, username);
+        // Transparently move legacy SHA-256 hashes and weaker work factors to the current KDF
+        if (needsRehash(user.password)) {
+            upgradePasswordHash(user.id, password);
+        }
+        
+        Metrics.increment("auth.login");
+        return issue(sessions.create(String.valueOf(user.id), username));
+    }
+    
+    /**
+     * Exchanges a refresh token for a new access token and a new refresh token, without
+     * touching the password hash. Returns null if the refresh token is not valid.
+     */
+    public Tokens refresh(String refreshToken) throws Exception {
+        SessionStore.Issued issued = sessions.rotate(refreshToken);
+        if (issued == null) {
+            return null;
+        }
+        Metrics.increment("auth.refresh");
+        return issue(issued);
     }
     
+    /**
+     * Ends the session the access token belongs to, or every session of its user.
+     * Returns false if the token is not valid.
+     */
+    public boolean logout(String token, boolean allSessions) throws Exception {
+        String payload = verifiedPayload(token);
+        if (payload == null) {
+            return false;
+        }
+        // Tokens from before sessions carry no sid; there is no session to end, and
+        // validateToken already refuses them
+        if (allSessions) {
+            String userId = extractFromJson(payload, "userId");
+            if (userId != null) {
+                sessions.revokeAll(userId);
+            }
+        } else {
+            String sessionId = extractFromJson(payload, "sid");
+            if (sessionId != null) {
+                sessions.revoke(sessionId);
+            }
+        }
+        return true;
+    }
+    
+    private Tokens issue(SessionStore.Issued issued) throws Exception {
+        SessionStore.Session session = issued.session;
+        return new Tokens(generateJWT(session.userId, session.username, session.id), issued.refreshToken);
+    }
+    
+    /**
+     * The user id of a valid, unexpired access token whose session has not been revoked, or null.
+     */
     public String validateToken(String token) {
+        String payload = verifiedPayload(token);
+        if (payload == null) {
+            return null;
+        }
+        // Tokens from before sessions have no sid and are no longer accepted
+        String userId = extractFromJson(payload, "userId");
+        String sessionId = extractFromJson(payload, "sid");
+        if (userId == null || sessionId == null || !sessions.isActive(sessionId, userId)) {
+            return null;
+        }
+        return userId;
+    }
+    
+    // The payload of a token with a good signature that has not expired, or null
+    private String verifiedPayload(String token) {
         try {
             String[] parts = token.split("\\.");
             if (parts.length != 3) {
@@ -86,20 +255,20 @@ public class AuthService {
                 return null;
             }
             
-            return extractFromJson(payload, "userId");
+            return payload;
             
         } catch (Exception e) {
             return null;
         }
     }
     
-    private String generateJWT(String userId, String username) throws Exception {
+    private String generateJWT(String userId, String username, String sessionId) throws Exception {
         long now = Instant.now().getEpochSecond();
-        long exp = now + 24 * 60 * 60; // 24 hours
+        long exp = now + ACCESS_TOKEN_TTL_SECONDS;
         
         String header = "{\"alg\":\"HS256\",\"typ\":\"JWT\"}";
-        String payload = String.format("{\"userId\":\"%s\",\"username\":\"%s\",\"exp\":%d}", 
-                userId, username, exp);
+        String payload = String.format("{\"userId\":\"%s\",\"username\":\"%s\",\"sid\":\"%s\",\"exp\":%d}", 
+                userId, username, sessionId, exp);
         
         String encodedHeader = Base64.getUrlEncoder().withoutPadding()
                 .encodeToString(header.getBytes(StandardCharsets.UTF_8));
@@ -130,13 +299,78 @@ public class AuthService {
         return null;
     }
     
-    private String hashPassword(String password, String salt) throws NoSuchAlgorithmException {
+    // Stored as pbkdf2-sha256$<iterations>$<base64 hash> so the work factor can be raised later
+    private String hashPassword(String password, String salt) throws Exception {
+        return KDF_PREFIX + KDF_ITERATIONS + "$" + pbkdf2(password, salt, KDF_ITERATIONS);
+    }
+    
+    private String pbkdf2(String password, String salt, int iterations) throws NoSuchAlgorithmException, InvalidKeySpecException {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt.getBytes(StandardCharsets.UTF_8), iterations, 256);
+        try {
+            byte[] hashedBytes = SecretKeyFactory.getInstance(KDF_ALGORITHM).generateSecret(spec).getEncoded();
+            return Base64.getEncoder().encodeToString(hashedBytes);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+    
+    // Hashes written before the KDF was introduced: a single salted SHA-256
+    private String legacyHashPassword(String password, String salt) throws NoSuchAlgorithmException {
         MessageDigest md = MessageDigest.getInstance("SHA-256");
         md.update(salt.getBytes());
         byte[] hashedBytes = md.digest(password.getBytes());
         return Base64.getEncoder().encodeToString(hashedBytes);
     }
     
+    private boolean verifyPassword(String password, User user) throws Exception {
+        String expected;
+        if (user.password.startsWith(KDF_PREFIX)) {
+            String[] parts = user.password.substring(KDF_PREFIX.length()).split("\\$");
+            expected = KDF_PREFIX + parts[0] + "$" + pbkdf2(password, user.salt, Integer.parseInt(parts[0]));
+        } else {
+            expected = legacyHashPassword(password, user.salt);
+        }
+        return MessageDigest.isEqual(expected.getBytes(StandardCharsets.UTF_8),
+                user.password.getBytes(StandardCharsets.UTF_8));
+    }
+    
+    private boolean needsRehash(String storedHash) {
+        if (!storedHash.startsWith(KDF_PREFIX)) {
+            return true;
+        }
+        String iterations = storedHash.substring(KDF_PREFIX.length()).split("\\$")[0];
+        return Integer.parseInt(iterations) < KDF_ITERATIONS;
+    }
+    
+    private void upgradePasswordHash(long userId, String password) throws Exception {
+        String salt = generateSalt();
+        String hashedPassword = hashPassword(password, salt);
+        
+        synchronized (this) {
+            List<User> updated = new ArrayList<>(users);
+            for (int i = 0; i < updated.size(); i++) {
+                User user = updated.get(i);
+                if (user.id == userId) {
+                    User upgraded = user.copy();
+                    upgraded.salt = salt;
+                    upgraded.password = hashedPassword;
+                    updated.set(i, upgraded);
+                    saveUsers(updated);
+                    users = updated;
+                    usersByName.put(upgraded.username, upgraded);
+                    return;
+                }
+            }
+        }
+    }
+    
+    private User findUser(String username) {
+        if (!indexBuilt) {
+            throw new IllegalStateException("User index has not been loaded");
+        }
+        return usersByName.get(username);
+    }
+    
     private String generateSalt() {
         SecureRandom random = new SecureRandom();
         byte[] salt = new byte[16];
@@ -144,13 +378,16 @@ public class AuthService {
         return Base64.getEncoder().encodeToString(salt);
     }
     
-    private List<User> loadUsers() throws Exception {
+    /**
+     * Reads and parses users.json.
+     */
+    public List<User> loadUsers() throws Exception {
         List<User> users = new ArrayList<>();
-        if (!Files.exists(Paths.get(USERS_FILE))) {
+        String content = storage.readString(Paths.get(USERS_FILE));
+        if (content == null) {
             return users;
         }
         
-        String content = Files.readString(Paths.get(USERS_FILE));
         if (content.trim().isEmpty() || content.trim().equals("[]")) {
             return users;
         }
@@ -180,7 +417,7 @@ public class AuthService {
     private User parseUser(String json) {
         try {
             User user = new User();
-            user.id = extractStringValue(json, "id");
+            user.id = IdGenerator.parse(extractStringValue(json, "id"));
             user.username = extractStringValue(json, "username");
             user.password = extractStringValue(json, "password");
             user.salt = extractStringValue(json, "salt");
@@ -219,14 +456,46 @@ public class AuthService {
         }
         json.append("]");
         
-        Files.write(Paths.get(USERS_FILE), json.toString().getBytes(StandardCharsets.UTF_8));
+        storage.write(Paths.get(USERS_FILE), json.toString());
+    }
+    
+    /**
+     * What a login or refresh hands back to the client.
+     */
+    public static class Tokens {
+        public final String accessToken;
+        public final String refreshToken;
+        
+        Tokens(String accessToken, String refreshToken) {
+            this.accessToken = accessToken;
+            this.refreshToken = refreshToken;
+        }
+    }
+    
+    private static User unknownUser() {
+        User user = new User();
+        user.username = "";
+        user.salt = Base64.getEncoder().encodeToString(new byte[16]);
+        // No password hashes to this
+        user.password = KDF_PREFIX + KDF_ITERATIONS + "$" + Base64.getEncoder().encodeToString(new byte[32]);
+        return user;
     }
     
     public static class User {
-        public String id;
+        public long id;
         public String username;
         public String password;
         public String salt;
         public String createdAt;
+        
+        public User copy() {
+            User copy = new User();
+            copy.id = id;
+            copy.username = username;
+            copy.password = password;
+            copy.salt = salt;
+            copy.createdAt = createdAt;
+            return copy;
+        }
     }
 } 
\ No newline at end of file
@@ -0,0 +1,278 @@
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Offline check of passwords against a breach corpus such as Have I Been Pwned's SHA-1 dump.
+ *
+ * The dump is a text file of "SHA1HEX:COUNT" lines ordered by hash, tens of GB. It is converted
+ * once (java BreachList convert dump.txt breached.bin) into fixed-size binary records, a 20-byte
+ * hash and a 4-byte count, after an 8-byte MAGIC header. That file is memory-mapped, in segments
+ * since one mapping is limited to 2 GB, and only the pages a lookup touches are ever read.
+ *
+ * A fan-out table, the index of the first record for each fanoutBits-bit hash prefix (512 KB for
+ * 16 bits), narrows a lookup to one bucket. SHA-1 is uniform, so a bucket of the ~900M-record
+ * dump holds ~14k records, and the binary search inside it touches about 8 pages, the last
+ * several probes falling within one. Building the table probes each prefix's boundary near where
+ * a uniform distribution puts it, so opening reads the file once at a stride rather than searching
+ * it 65536 times.
+ */
+public class BreachList {
+    static final byte[] MAGIC = "PMHIBP01".getBytes(StandardCharsets.US_ASCII);
+    static final int HASH_BYTES = 20;
+    static final int RECORD_BYTES = HASH_BYTES + 4;
+    // Largest whole number of records under the 2 GB mapping limit
+    private static final long SEGMENT_RECORDS = Integer.MAX_VALUE / RECORD_BYTES;
+    private static final ThreadLocal<MessageDigest> SHA1 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+    
+    private final MappedByteBuffer[] segments;
+    private final long records;
+    private final int fanoutBits;
+    // fanout[p] is the first record whose hash starts with prefix p; fanout[1 << bits] == records
+    private final long[] fanout;
+    private final LongAdder lookups = Metrics.counter("breach.lookups");
+    private final LongAdder hits = Metrics.counter("breach.hits");
+    
+    private BreachList(MappedByteBuffer[] segments, long records, int fanoutBits) {
+        this.segments = segments;
+        this.records = records;
+        this.fanoutBits = fanoutBits;
+        this.fanout = buildFanout();
+        Metrics.gauge("breach.records", () -> this.records);
+    }
+    
+    /**
+     * The list in BREACH_FILE, or null if none is configured.
+     */
+    public static BreachList fromEnvironment() throws IOException {
+        String file = System.getenv("BREACH_FILE");
+        if (file == null || file.isEmpty()) {
+            return null;
+        }
+        return open(Paths.get(file), Integer.parseInt(System.getenv().getOrDefault("BREACH_FANOUT_BITS", "16")));
+    }
+    
+    public static BreachList open(Path file, int fanoutBits) throws IOException {
+        if (fanoutBits < 0 || fanoutBits > 24) {
+            throw new IllegalArgumentException("Fan-out bits must be between 0 and 24");
+        }
+        try (FileChannel channel = FileChannel.open(file)) {
+            long size = channel.size();
+            byte[] header = new byte[MAGIC.length];
+            if (size < MAGIC.length || channel.read(ByteBuffer.wrap(header), 0) != MAGIC.length
+                    || !Arrays.equals(header, MAGIC) || (size - MAGIC.length) % RECORD_BYTES != 0) {
+                throw new IOException(file + " is not a converted breach list (see BreachList convert)");
+            }
+            long records = (size - MAGIC.length) / RECORD_BYTES;
+            int count = (int) ((records + SEGMENT_RECORDS - 1) / SEGMENT_RECORDS);
+            MappedByteBuffer[] segments = new MappedByteBuffer[count];
+            for (int i = 0; i < count; i++) {
+                long first = i * SEGMENT_RECORDS;
+                long length = Math.min(SEGMENT_RECORDS, records - first) * RECORD_BYTES;
+                // The mapping stays valid after the channel is closed
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, MAGIC.length + first * RECORD_BYTES, length);
+            }
+            return new BreachList(segments, records, fanoutBits);
+        }
+    }
+    
+    public long size() {
+        return records;
+    }
+    
+    /**
+     * How many times the password was seen in the corpus, 0 if never.
+     */
+    public int count(String password) {
+        byte[] hash = SHA1.get().digest(password.getBytes(StandardCharsets.UTF_8));
+        return count(hash);
+    }
+    
+    public boolean isBreached(String password) {
+        return count(password) > 0;
+    }
+    
+    /**
+     * How many times the SHA-1 hash was seen in the corpus, 0 if never.
+     */
+    public int count(byte[] hash) {
+        lookups.increment();
+        long high = readLong(hash, 0);
+        long middle = readLong(hash, 8);
+        int low = readInt(hash, 16);
+        
+        int prefix = fanoutBits == 0 ? 0 : (int) (high >>> (64 - fanoutBits));
+        long from = fanout[prefix];
+        long to = fanout[prefix + 1] - 1;
+        while (from <= to) {
+            long mid = (from + to) >>> 1;
+            int cmp = compare(mid, high, middle, low);
+            if (cmp < 0) {
+                from = mid + 1;
+            } else if (cmp > 0) {
+                to = mid - 1;
+            } else {
+                hits.increment();
+                return segment(mid).getInt(offset(mid) + HASH_BYTES);
+            }
+        }
+        return 0;
+    }
+    
+    private long[] buildFanout() {
+        int buckets = 1 << fanoutBits;
+        long[] table = new long[buckets + 1];
+        table[buckets] = records;
+        for (int prefix = 1; prefix < buckets; prefix++) {
+            long boundary = (long) prefix << (64 - fanoutBits);
+            // Gallop from the uniform estimate to bracket the first record at or above the boundary
+            long estimate = Math.max(table[prefix - 1], (long) ((double) prefix / buckets * records));
+            long below = table[prefix - 1] - 1;
+            long above = records;
+            long step = 1;
+            long probe = Math.min(estimate, records - 1);
+            while (probe >= 0 && probe > below && probe < above) {
+                if (Long.compareUnsigned(highOf(probe), boundary) >= 0) {
+                    above = probe;
+                    probe -= step;
+                } else {
+                    below = probe;
+                    probe += step;
+                }
+                step <<= 1;
+            }
+            // Then binary search the bracket
+            while (above - below > 1) {
+                long mid = (below + above) >>> 1;
+                if (Long.compareUnsigned(highOf(mid), boundary) >= 0) {
+                    above = mid;
+                } else {
+                    below = mid;
+                }
+            }
+            table[prefix] = above;
+        }
+        return table;
+    }
+    
+    private int compare(long record, long high, long middle, int low) {
+        MappedByteBuffer segment = segment(record);
+        int offset = offset(record);
+        int cmp = Long.compareUnsigned(segment.getLong(offset), high);
+        if (cmp == 0) {
+            cmp = Long.compareUnsigned(segment.getLong(offset + 8), middle);
+        }
+        if (cmp == 0) {
+            cmp = Integer.compareUnsigned(segment.getInt(offset + 16), low);
+        }
+        return cmp;
+    }
+    
+    private long highOf(long record) {
+        return segment(record).getLong(offset(record));
+    }
+    
+    private MappedByteBuffer segment(long record) {
+        return segments[(int) (record / SEGMENT_RECORDS)];
+    }
+    
+    private static int offset(long record) {
+        return (int) (record % SEGMENT_RECORDS) * RECORD_BYTES;
+    }
+    
+    private static long readLong(byte[] bytes, int at) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (bytes[at + i] & 0xff);
+        }
+        return value;
+    }
+    
+    private static int readInt(byte[] bytes, int at) {
+        return ((bytes[at] & 0xff) << 24) | ((bytes[at + 1] & 0xff) << 16) | ((bytes[at + 2] & 0xff) << 8) | (bytes[at + 3] & 0xff);
+    }
+    
+    /**
+     * Converts a HIBP "SHA1HEX:COUNT" dump, ordered by hash, into the binary format. Returns the
+     * number of records written.
+     */
+    public static long convert(Path dump, Path binary) throws IOException {
+        long written = 0;
+        byte[] previous = null;
+        try (BufferedReader in = Files.newBufferedReader(dump, StandardCharsets.US_ASCII);
+                OutputStream out = new BufferedOutputStream(Files.newOutputStream(binary), 1 << 20)) {
+            out.write(MAGIC);
+            String line;
+            while ((line = in.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty()) {
+                    continue;
+                }
+                int colon = line.indexOf(':');
+                String hex = colon < 0 ? line : line.substring(0, colon);
+                if (hex.length() != HASH_BYTES * 2) {
+                    throw new IOException("Not a SHA-1 hash on line " + (written + 1) + ": " + line);
+                }
+                byte[] hash = new byte[HASH_BYTES];
+                for (int i = 0; i < HASH_BYTES; i++) {
+                    hash[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+                }
+                if (previous != null && Arrays.compareUnsigned(previous, hash) >= 0) {
+                    throw new IOException("Dump is not ordered by hash at line " + (written + 1));
+                }
+                long count = colon < 0 ? 1 : Long.parseLong(line.substring(colon + 1).trim());
+                writeRecord(out, hash, (int) Math.min(Integer.MAX_VALUE, count));
+                previous = hash;
+                written++;
+            }
+        }
+        return written;
+    }
+    
+    // The count is written big-endian, as ByteBuffer reads it back
+    static void writeRecord(OutputStream out, byte[] hash, int count) throws IOException {
+        out.write(hash);
+        out.write(count >>> 24);
+        out.write(count >>> 16);
+        out.write(count >>> 8);
+        out.write(count);
+    }
+    
+    public static void main(String[] args) throws Exception {
+        if (args.length == 3 && "convert".equals(args[0])) {
+            long start = System.nanoTime();
+            long written = convert(Paths.get(args[1]), Paths.get(args[2]));
+            System.out.println("Wrote " + written + " records to " + args[2] + " in "
+                    + (System.nanoTime() - start) / 1_000_000_000 + " s");
+        } else if (args.length == 2 && "check".equals(args[0])) {
+            BreachList list = open(Paths.get(args[1]), 16);
+            // Read rather than passed as an argument, so it stays out of shell history
+            char[] typed = System.console() != null ? System.console().readPassword("Password: ")
+                    : new BufferedReader(new InputStreamReader(System.in)).readLine().toCharArray();
+            String password = new String(typed);
+            System.out.println("Seen " + list.count(password) + " times in " + list.size() + " records");
+        } else {
+            System.out.println("Usage: java BreachList convert <hibp-sha1-ordered-by-hash.txt> <breached.bin>");
+            System.out.println("       java BreachList check <breached.bin>    (reads the password from stdin)");
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,108 @@
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Unwrapped per-user data keys, bounded by count and by age.
+ *
+ * Entries leave the cache when it is over capacity (oldest first) or when they are older than
+ * the TTL, and their key bytes are zeroed as they go. Callers get their own SecretKeySpec copy,
+ * so zeroing never pulls a key out from under an encryption in progress.
+ */
+public class DataKeyCache {
+    private final EncryptionService encryptionService;
+    private final int maxEntries;
+    private final long ttlNanos;
+    // Insertion order is load order, so expired entries are always at the head
+    private final LinkedHashMap<String, CachedKey> keys = new LinkedHashMap<>();
+    private final LongAdder hits = Metrics.counter("data_key_cache.hits");
+    private final LongAdder misses = Metrics.counter("data_key_cache.misses");
+    private final LongAdder evictions = Metrics.counter("data_key_cache.evictions");
+    
+    public DataKeyCache(EncryptionService encryptionService, int maxEntries, long ttlSeconds) {
+        this.encryptionService = encryptionService;
+        this.maxEntries = maxEntries;
+        this.ttlNanos = ttlSeconds * 1_000_000_000L;
+        Metrics.gauge("data_key_cache.entries", this::size);
+    }
+    
+    /**
+     * The data key for the user, unwrapping it with the master key on a miss.
+     */
+    public SecretKey get(String userId, byte[] wrapped) throws Exception {
+        synchronized (this) {
+            evictExpired();
+            CachedKey cached = keys.get(userId);
+            if (cached != null) {
+                hits.increment();
+                return new SecretKeySpec(cached.key, "AES");
+            }
+        }
+        
+        // Unwrap outside the lock; a concurrent miss for the same user just unwraps twice
+        misses.increment();
+        byte[] raw = encryptionService.unwrapDataKey(wrapped);
+        SecretKey key = new SecretKeySpec(raw, "AES");
+        synchronized (this) {
+            // Remove first so the entry moves to the tail, keeping the map in load order
+            CachedKey previous = keys.remove(userId);
+            if (previous != null) {
+                Arrays.fill(previous.key, (byte) 0);
+            }
+            keys.put(userId, new CachedKey(raw, System.nanoTime()));
+            while (keys.size() > maxEntries) {
+                evictEldest();
+            }
+        }
+        return key;
+    }
+    
+    /**
+     * Drops and zeroes the user's key, for a vault that no longer lives in this process.
+     */
+    public synchronized void invalidate(String userId) {
+        CachedKey cached = keys.remove(userId);
+        if (cached != null) {
+            Arrays.fill(cached.key, (byte) 0);
+        }
+    }
+    
+    private synchronized long size() {
+        return keys.size();
+    }
+    
+    private void evictExpired() {
+        long now = System.nanoTime();
+        Iterator<CachedKey> it = keys.values().iterator();
+        while (it.hasNext()) {
+            CachedKey cached = it.next();
+            if (now - cached.loadedAt < ttlNanos) {
+                return;
+            }
+            Arrays.fill(cached.key, (byte) 0);
+            it.remove();
+            evictions.increment();
+        }
+    }
+    
+    private void evictEldest() {
+        Iterator<Map.Entry<String, CachedKey>> it = keys.entrySet().iterator();
+        Arrays.fill(it.next().getValue().key, (byte) 0);
+        it.remove();
+        evictions.increment();
+    }
+    
+    private static class CachedKey {
+        final byte[] key;
+        final long loadedAt;
+        
+        CachedKey(byte[] key, long loadedAt) {
+            this.key = key;
+            this.loadedAt = loadedAt;
+        }
+    }
+}
\ No newline at end of file
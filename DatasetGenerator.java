@@ -0,0 +1,299 @@
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Writes a synthetic but realistic dataset into ./data, for reproducing production volumes.
+ *
+ *   PBKDF2_ITERATIONS=1000 java DatasetGenerator <users> [--vault-sizes <spec>] [--seed <n>]
+ *
+ * Users are registered and vaults filled through AuthService and PasswordService themselves, so
+ * the files are in whatever format the server currently stores (users.json and one shard file
+ * per vault today) and every entry is real ciphertext under a real data key, with fingerprints.
+ * Start the server in the same directory to use it; the account password of each user is
+ * password(n), "dataset-<n>".
+ *
+ * Vault sizes are drawn per user from --vault-sizes:
+ *   fixed:N            every vault has N entries
+ *   uniform:MIN-MAX    evenly between MIN and MAX
+ *   lognormal:M:S      median M with log standard deviation S (default lognormal:40:1.0, a few
+ *                      dozen entries for most users and a long tail of large vaults)
+ * capped at MAX_VAULT_SIZE. Sites follow a skewed popularity over common domains with a tail
+ * of rare ones, and about a quarter of each user's entries reuse one of a few habitual passwords.
+ *
+ * Registration hashes every account password, so set PBKDF2_ITERATIONS low for large datasets;
+ * the hashes are upgraded to the server's work factor at each user's first login.
+ */
+public class DatasetGenerator {
+    static final int MAX_VAULT_SIZE = 50_000;
+    // Users registered per write of users.json
+    private static final int USER_BATCH = 1000;
+    private static final double REUSED_SHARE = 0.25;
+    private static final String[] POPULAR_SITES = {
+        "google.com", "facebook.com", "amazon.com", "apple.com", "microsoft.com", "netflix.com",
+        "github.com", "linkedin.com", "twitter.com", "instagram.com", "paypal.com", "dropbox.com",
+        "reddit.com", "spotify.com", "ebay.com", "yahoo.com", "slack.com", "zoom.us", "adobe.com",
+        "airbnb.com", "uber.com", "steampowered.com", "twitch.tv", "discord.com", "pinterest.com",
+        "wellsfargo.com", "chase.com", "bankofamerica.com", "coinbase.com", "booking.com",
+        "atlassian.com", "notion.so", "figma.com", "stackoverflow.com", "medium.com", "etsy.com",
+        "walmart.com", "target.com", "bestbuy.com", "hulu.com", "disneyplus.com", "nytimes.com",
+    };
+    private static final String[] WORDS = {
+        "summer", "dragon", "monkey", "shadow", "sunshine", "football", "princess", "charlie",
+        "freedom", "coffee", "pepper", "ginger", "tiger", "soccer", "hunter", "silver", "orange",
+    };
+    private static final String RANDOM_CHARS =
+            "ABCDEFGHJKLMNPQRSTUVWXYZabcdefghijkmnopqrstuvwxyz23456789!@#$%^&*-_=+";
+    
+    private final AuthService authService;
+    private final PasswordService passwordService;
+    private final VaultSizes vaultSizes;
+    private final Random random;
+    private int users;
+    private long entries;
+    private final List<Integer> sizes = new ArrayList<>();
+    
+    public DatasetGenerator(AuthService authService, PasswordService passwordService, VaultSizes vaultSizes, long seed) {
+        this.authService = authService;
+        this.passwordService = passwordService;
+        this.vaultSizes = vaultSizes;
+        this.random = new Random(seed);
+    }
+    
+    /**
+     * Continues a dataset generated earlier with users users and entries entries, as when the
+     * services were reloaded: numbering picks up after the existing users.
+     */
+    public void continueFrom(int users, long entries) {
+        this.users = users;
+        this.entries = entries;
+    }
+    
+    public static String username(int n) {
+        return "user" + n + "@example.com";
+    }
+    
+    public static String password(int n) {
+        return "dataset-" + n;
+    }
+    
+    public int users() {
+        return users;
+    }
+    
+    public long entries() {
+        return entries;
+    }
+    
+    /**
+     * Adds users until there are userCount in total.
+     */
+    public void addUsers(int userCount) throws Exception {
+        grow(userCount, Long.MAX_VALUE);
+    }
+    
+    /**
+     * Adds users until the vaults hold at least entryCount entries in total.
+     */
+    public void addEntries(long entryCount) throws Exception {
+        grow(Integer.MAX_VALUE, entryCount);
+    }
+    
+    private void grow(int userCount, long entryCount) throws Exception {
+        while (users < userCount && entries < entryCount) {
+            // Size the batch's vaults first, so the batch stops where the target is reached
+            List<String[]> credentials = new ArrayList<>();
+            List<Integer> batchSizes = new ArrayList<>();
+            long planned = entries;
+            while (credentials.size() < USER_BATCH && users + credentials.size() < userCount && planned < entryCount) {
+                int n = users + credentials.size();
+                int size = (int) Math.min(vaultSizes.next(random), entryCount - planned);
+                credentials.add(new String[] {username(n), password(n)});
+                batchSizes.add(size);
+                planned += size;
+            }
+            
+            List<AuthService.User> created = authService.createUsers(credentials);
+            if (created.size() != credentials.size()) {
+                // Vault sizes are matched to users by position, so every user must be created
+                throw new IllegalStateException((credentials.size() - created.size())
+                        + " users were refused (username taken or password breached); generate into an empty directory");
+            }
+            for (int i = 0; i < created.size(); i++) {
+                fillVault(String.valueOf(created.get(i).id), batchSizes.get(i));
+                sizes.add(batchSizes.get(i));
+            }
+            users += created.size();
+            entries = planned;
+        }
+    }
+    
+    private void fillVault(String userId, int size) throws Exception {
+        if (size == 0) {
+            return;
+        }
+        String[] habits = new String[1 + random.nextInt(3)];
+        for (int i = 0; i < habits.length; i++) {
+            habits[i] = capitalize(WORDS[random.nextInt(WORDS.length)]) + random.nextInt(10000)
+                    + "!@#".charAt(random.nextInt(3));
+        }
+        StringBuilder rows = new StringBuilder(size * 64);
+        for (int i = 0; i < size; i++) {
+            String site = site();
+            rows.append(site).append(',');
+            rows.append(random.nextInt(4) == 0 ? "user" + random.nextInt(1000) : "me+" + site.replace('.', '-') + "@example.com");
+            rows.append(',');
+            rows.append(random.nextDouble() < REUSED_SHARE ? habits[random.nextInt(habits.length)] : randomPassword());
+            rows.append('\n');
+        }
+        passwordService.importPasswords(userId, new StringReader(rows.toString()), "csv");
+    }
+    
+    private String site() {
+        // Most entries are for a few big sites; the rest spread over a long tail
+        if (random.nextInt(10) < 7) {
+            double skewed = Math.pow(random.nextDouble(), 2.5);
+            return POPULAR_SITES[(int) (skewed * POPULAR_SITES.length)];
+        }
+        return "shop" + random.nextInt(100_000) + ".example.net";
+    }
+    
+    private String randomPassword() {
+        char[] password = new char[12 + random.nextInt(13)];
+        for (int i = 0; i < password.length; i++) {
+            password[i] = RANDOM_CHARS.charAt(random.nextInt(RANDOM_CHARS.length()));
+        }
+        return new String(password);
+    }
+    
+    private static String capitalize(String word) {
+        return Character.toUpperCase(word.charAt(0)) + word.substring(1);
+    }
+    
+    /**
+     * Vault sizes generated so far: users, entries, and the median, 99th percentile and largest size.
+     */
+    public String summary() {
+        int[] sorted = sizes.stream().mapToInt(Integer::intValue).sorted().toArray();
+        if (sorted.length == 0) {
+            return "0 users, 0 entries";
+        }
+        return String.format("%d users, %d entries, vault size p50=%d p99=%d max=%d", users, entries,
+                sorted[sorted.length / 2], sorted[(int) Math.min(sorted.length - 1, Math.ceil(sorted.length * 0.99) - 1)],
+                sorted[sorted.length - 1]);
+    }
+    
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0) {
+            System.out.println("Usage: java DatasetGenerator <users> [--vault-sizes fixed:N|uniform:MIN-MAX|lognormal:MEDIAN:SIGMA] [--seed <n>]");
+            return;
+        }
+        if (Files.exists(Paths.get("data"))) {
+            System.err.println("Refusing to run: ./data already exists. Run from an empty directory.");
+            System.exit(1);
+        }
+        int userCount = Integer.parseInt(args[0]);
+        VaultSizes vaultSizes = VaultSizes.parse("lognormal:40:1.0");
+        long seed = 42;
+        for (int i = 1; i < args.length; i++) {
+            if ("--vault-sizes".equals(args[i]) && i + 1 < args.length) {
+                try {
+                    vaultSizes = VaultSizes.parse(args[++i]);
+                } catch (IllegalArgumentException e) {
+                    System.err.println(e.getMessage());
+                    System.exit(1);
+                }
+            } else if ("--seed".equals(args[i]) && i + 1 < args.length) {
+                seed = Long.parseLong(args[++i]);
+            } else {
+                System.err.println("Unknown argument: " + args[i]);
+                System.exit(1);
+            }
+        }
+        
+        // Nothing reads the files until the end, so there is no need to fsync every vault
+        StorageWriter storage = StorageWriter.fromMode("async");
+        AuthService authService = new AuthService("dataset", storage, new SessionStore(storage));
+        authService.buildIndex(authService.loadUsers());
+        PasswordService passwordService = new PasswordService(new EncryptionService(), storage);
+        passwordService.buildIndex(passwordService.loadVaults());
+        
+        DatasetGenerator generator = new DatasetGenerator(authService, passwordService, vaultSizes, seed);
+        long start = System.nanoTime();
+        int reported = 0;
+        while (generator.users() < userCount) {
+            generator.addUsers(Math.min(userCount, generator.users() + 10 * USER_BATCH));
+            if (generator.users() - reported >= 100 * USER_BATCH || generator.users() == userCount) {
+                reported = generator.users();
+                System.out.printf("%d users, %d entries, %d s%n", generator.users(), generator.entries(),
+                        (System.nanoTime() - start) / 1_000_000_000);
+            }
+        }
+        storage.flush();
+        System.out.println("Wrote " + generator.summary() + " (" + vaultSizes + ") to ./data in "
+                + (System.nanoTime() - start) / 1_000_000 + " ms");
+    }
+    
+    /**
+     * A distribution of vault sizes, parsed from "fixed:N", "uniform:MIN-MAX" or "lognormal:MEDIAN:SIGMA".
+     */
+    public static class VaultSizes {
+        private final String kind;
+        private final double a;
+        private final double b;
+        
+        private VaultSizes(String kind, double a, double b) {
+            this.kind = kind;
+            this.a = a;
+            this.b = b;
+        }
+        
+        public static VaultSizes parse(String spec) {
+            String[] parts = spec.split(":");
+            try {
+                if (parts.length == 2 && "fixed".equals(parts[0])) {
+                    return new VaultSizes("fixed", Integer.parseInt(parts[1]), 0);
+                }
+                if (parts.length == 2 && "uniform".equals(parts[0]) && parts[1].contains("-")) {
+                    String[] range = parts[1].split("-");
+                    int min = Integer.parseInt(range[0]);
+                    int max = Integer.parseInt(range[1]);
+                    if (min <= max) {
+                        return new VaultSizes("uniform", min, max);
+                    }
+                }
+                if (parts.length == 3 && "lognormal".equals(parts[0])) {
+                    return new VaultSizes("lognormal", Double.parseDouble(parts[1]), Double.parseDouble(parts[2]));
+                }
+            } catch (NumberFormatException e) {
+                // Reported below with the other malformed specs
+            }
+            throw new IllegalArgumentException("Vault sizes must be fixed:N, uniform:MIN-MAX or lognormal:MEDIAN:SIGMA, not " + spec);
+        }
+        
+        int next(Random random) {
+            double size;
+            switch (kind) {
+                case "fixed":
+                    size = a;
+                    break;
+                case "uniform":
+                    size = a + random.nextInt((int) (b - a) + 1);
+                    break;
+                default:
+                    size = Math.round(a * Math.exp(b * random.nextGaussian()));
+            }
+            return (int) Math.max(0, Math.min(MAX_VAULT_SIZE, size));
+        }
+        
+        @Override
+        public String toString() {
+            return "fixed".equals(kind) ? kind + ":" + (int) a
+                    : "uniform".equals(kind) ? kind + ":" + (int) a + "-" + (int) b
+                    : kind + ":" + a + ":" + b;
+        }
+    }
+}
\ No newline at end of file
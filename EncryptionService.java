@@ -1,22 +1,72 @@
 import javax.crypto.Cipher;
 import javax.crypto.KeyGenerator;
+import javax.crypto.Mac;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.SecretKeySpec;
 import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.GCMParameterSpec;
+import java.security.MessageDigest;
 import java.security.SecureRandom;
+import java.util.Arrays;
 import java.util.Base64;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
 import java.nio.charset.StandardCharsets;
 
 public class EncryptionService {
     private static final String ALGORITHM = "AES";
     private static final String TRANSFORMATION = "AES/CBC/PKCS5Padding";
+    private static final String GCM_TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final int GCM_NONCE_BYTES = 12;
+    private static final int GCM_TAG_BITS = 128;
+    private static final String STORED_PREFIX = "$";
+    
+    // First byte of every versioned ciphertext. CBC and unkeyed GCM blobs predate key
+    // rotation and are always under master key 0. Data-key blobs are vault entries under
+    // their user's own key, which is itself stored wrapped in the keyed GCM format.
+    static final byte FORMAT_CBC = 1;
+    static final byte FORMAT_GCM = 2;
+    static final byte FORMAT_GCM_KEYED = 3;
+    static final byte FORMAT_DATA_KEY = 4;
+    private static final int KEYED_HEADER_BYTES = 1 + 4;
+    
+    private static final SecureRandom RANDOM = new SecureRandom();
+    // Cipher instances are not thread-safe but are costly to look up, so each thread keeps its own
+    private static final ThreadLocal<Cipher> CBC = ThreadLocal.withInitial(() -> newCipher(TRANSFORMATION));
+    private static final ThreadLocal<Cipher> GCM = ThreadLocal.withInitial(() -> newCipher(GCM_TRANSFORMATION));
+    private static final String FINGERPRINT_ALGORITHM = "HmacSHA256";
+    private static final byte[] FINGERPRINT_LABEL = "pm-password-fingerprint-v1".getBytes(StandardCharsets.UTF_8);
+    // 128 bits: collisions between different passwords in one vault are not a practical concern
+    static final int FINGERPRINT_BYTES = 16;
+    private static final ThreadLocal<Mac> HMAC = ThreadLocal.withInitial(() -> {
+        try {
+            return Mac.getInstance(FINGERPRINT_ALGORITHM);
+        } catch (java.security.NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
     private static final String KEY_FILE = "data/encryption.key";
-    private final SecretKey secretKey;
+    private static final String KEYS_DIR = "data/keys";
+    private static final String ACTIVE_KEY_FILE = "data/keys/active";
+    
+    // Key id -> key. Key 0 is the original data/encryption.key; rotated keys live in data/keys/<id>.key
+    private final Map<Integer, SecretKey> keys = new ConcurrentHashMap<>();
+    private volatile int activeKeyId;
+    // Told about every key file written by a rotation, like StorageWriter's listener
+    private volatile StorageWriter.Listener keyListener;
     
     public EncryptionService() throws Exception {
-        this.secretKey = loadOrGenerateKey();
+        keys.put(0, loadOrGenerateKey());
+        loadRotatedKeys();
     }
     
     private SecretKey loadOrGenerateKey() throws Exception {
@@ -40,39 +90,385 @@ public class EncryptionService {
         }
     }
     
+    public void setKeyListener(StorageWriter.Listener keyListener) {
+        this.keyListener = keyListener;
+    }
+    
+    /**
+     * Re-reads the key files, picking up keys that replication copied in from a primary.
+     */
+    public synchronized void reloadKeys() throws Exception {
+        if (Files.exists(Paths.get(KEY_FILE))) {
+            keys.put(0, loadOrGenerateKey());
+        }
+        loadRotatedKeys();
+    }
+    
+    private void loadRotatedKeys() throws Exception {
+        Path dir = Paths.get(KEYS_DIR);
+        if (!Files.isDirectory(dir)) {
+            return;
+        }
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path file : files.collect(Collectors.toList())) {
+                String name = file.getFileName().toString();
+                if (name.matches("\\d{1,9}\\.key")) {
+                    int keyId = Integer.parseInt(name.substring(0, name.length() - ".key".length()));
+                    keys.put(keyId, new SecretKeySpec(Base64.getDecoder().decode(Files.readString(file).trim()), ALGORITHM));
+                }
+            }
+        }
+        Path active = Paths.get(ACTIVE_KEY_FILE);
+        if (Files.exists(active)) {
+            int keyId = Integer.parseInt(Files.readString(active).trim());
+            if (!keys.containsKey(keyId)) {
+                throw new IllegalStateException("Active key " + keyId + " is missing from " + KEYS_DIR);
+            }
+            activeKeyId = keyId;
+        }
+    }
+    
+    /**
+     * Generates a new key and makes it the one new ciphertexts are written with. The key is
+     * durably on disk before anything is encrypted under it. Existing ciphertexts keep
+     * decrypting with the key id recorded in them until they are re-encrypted.
+     */
+    public synchronized int rotateKey() throws Exception {
+        int keyId = keys.keySet().stream().mapToInt(Integer::intValue).max().orElse(0) + 1;
+        KeyGenerator keyGenerator = KeyGenerator.getInstance(ALGORITHM);
+        keyGenerator.init(256);
+        SecretKey newKey = keyGenerator.generateKey();
+        
+        Files.createDirectories(Paths.get(KEYS_DIR));
+        writeDurably(Paths.get(KEYS_DIR, keyId + ".key"), Base64.getEncoder().encodeToString(newKey.getEncoded()));
+        keys.put(keyId, newKey);
+        writeDurably(Paths.get(ACTIVE_KEY_FILE), String.valueOf(keyId));
+        activeKeyId = keyId;
+        return keyId;
+    }
+    
+    public int getActiveKeyId() {
+        return activeKeyId;
+    }
+    
+    // Keys must never be lost once data depends on them: fsync the file, rename, fsync the directory.
+    // The listener hears of the key before anything can be encrypted under it.
+    private void writeDurably(Path file, String content) throws Exception {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            channel.write(java.nio.ByteBuffer.wrap(content.getBytes(StandardCharsets.UTF_8)));
+            channel.force(true);
+        }
+        Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        try (FileChannel dir = FileChannel.open(file.getParent(), StandardOpenOption.READ)) {
+            dir.force(true);
+        } catch (java.io.IOException e) {
+            // Not every platform can fsync a directory
+        }
+        StorageWriter.Listener listener = keyListener;
+        if (listener != null) {
+            listener.written(file, content.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+    
     public String encrypt(String plainText) throws Exception {
-        Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+        return toStored(encryptToBytes(plainText));
+    }
+    
+    /**
+     * Versioned ciphertext bytes under the active master key: a format byte, the key id, the
+     * nonce, then the ciphertext. Vault entries use a data key instead (see encryptToBytes(SecretKey, String)).
+     */
+    public byte[] encryptToBytes(String plainText) throws Exception {
+        return encryptToBytes(plainText, FORMAT_GCM_KEYED);
+    }
+    
+    byte[] encryptToBytes(String plainText, byte format) throws Exception {
+        if (format == FORMAT_CBC) {
+            return encryptCbc(plainText.getBytes());
+        }
+        return sealUnderMasterKey(plainText.getBytes(StandardCharsets.UTF_8));
+    }
+    
+    /**
+     * Encrypts under a user's data key: a format byte, the nonce, then the ciphertext. Which
+     * master key protects the data key is recorded with the wrapped key, not here.
+     */
+    public byte[] encryptToBytes(SecretKey dataKey, String plainText) throws Exception {
+        return sealWithKey(dataKey, plainText.getBytes(StandardCharsets.UTF_8));
+    }
+    
+    private static byte[] sealWithKey(SecretKey dataKey, byte[] plain) throws Exception {
+        byte[] nonce = new byte[GCM_NONCE_BYTES];
+        RANDOM.nextBytes(nonce);
+        Cipher cipher = GCM.get();
+        cipher.init(Cipher.ENCRYPT_MODE, dataKey, new GCMParameterSpec(GCM_TAG_BITS, nonce));
+        
+        byte[] blob = new byte[1 + GCM_NONCE_BYTES + cipher.getOutputSize(plain.length)];
+        blob[0] = FORMAT_DATA_KEY;
+        System.arraycopy(nonce, 0, blob, 1, GCM_NONCE_BYTES);
+        cipher.updateAAD(blob, 0, 1);
+        cipher.doFinal(plain, 0, plain.length, blob, 1 + GCM_NONCE_BYTES);
+        return blob;
+    }
+    
+    private byte[] sealUnderMasterKey(byte[] plain) throws Exception {
+        int keyId = activeKeyId;
+        byte[] nonce = new byte[GCM_NONCE_BYTES];
+        RANDOM.nextBytes(nonce);
+        Cipher cipher = GCM.get();
+        cipher.init(Cipher.ENCRYPT_MODE, keys.get(keyId), new GCMParameterSpec(GCM_TAG_BITS, nonce));
+        
+        byte[] blob = new byte[KEYED_HEADER_BYTES + GCM_NONCE_BYTES + cipher.getOutputSize(plain.length)];
+        blob[0] = FORMAT_GCM_KEYED;
+        blob[1] = (byte) (keyId >>> 24);
+        blob[2] = (byte) (keyId >>> 16);
+        blob[3] = (byte) (keyId >>> 8);
+        blob[4] = (byte) keyId;
+        System.arraycopy(nonce, 0, blob, KEYED_HEADER_BYTES, GCM_NONCE_BYTES);
+        // The header is authenticated, so a blob cannot be relabelled with another key id
+        cipher.updateAAD(blob, 0, KEYED_HEADER_BYTES);
+        cipher.doFinal(plain, 0, plain.length, blob, KEYED_HEADER_BYTES + GCM_NONCE_BYTES);
+        return blob;
+    }
+    
+    private byte[] encryptCbc(byte[] plain) throws Exception {
+        Cipher cipher = CBC.get();
         
         // Generate a random IV
         byte[] iv = new byte[16];
-        new SecureRandom().nextBytes(iv);
+        RANDOM.nextBytes(iv);
         IvParameterSpec ivSpec = new IvParameterSpec(iv);
         
-        cipher.init(Cipher.ENCRYPT_MODE, secretKey, ivSpec);
-        byte[] cipherText = cipher.doFinal(plainText.getBytes());
-        
-        // Combine IV and cipher text
-        byte[] encryptedWithIv = new byte[iv.length + cipherText.length];
-        System.arraycopy(iv, 0, encryptedWithIv, 0, iv.length);
-        System.arraycopy(cipherText, 0, encryptedWithIv, iv.length, cipherText.length);
+        cipher.init(Cipher.ENCRYPT_MODE, keys.get(0), ivSpec);
+        byte[] cipherText = cipher.doFinal(plain);
         
-        return Base64.getEncoder().encodeToString(encryptedWithIv);
+        // Format byte, IV, cipher text
+        byte[] blob = new byte[1 + iv.length + cipherText.length];
+        blob[0] = FORMAT_CBC;
+        System.arraycopy(iv, 0, blob, 1, iv.length);
+        System.arraycopy(cipherText, 0, blob, 1 + iv.length, cipherText.length);
+        return blob;
+    }
+    
+    /**
+     * A fresh 256-bit data key, returned wrapped (encrypted) under the active master key.
+     */
+    public byte[] newWrappedDataKey() throws Exception {
+        byte[] raw = new byte[32];
+        RANDOM.nextBytes(raw);
+        try {
+            return sealUnderMasterKey(raw);
+        } finally {
+            Arrays.fill(raw, (byte) 0);
+        }
+    }
+    
+    /**
+     * The raw bytes of a wrapped data key. The caller owns the array and should zero it.
+     */
+    public byte[] unwrapDataKey(byte[] wrapped) throws Exception {
+        return open(wrapped);
+    }
+    
+    /**
+     * Re-wraps a data key under the active master key. The data key itself, and so every
+     * entry encrypted with it, is unchanged.
+     */
+    public byte[] rewrapDataKey(byte[] wrapped) throws Exception {
+        byte[] raw = open(wrapped);
+        try {
+            return sealUnderMasterKey(raw);
+        } finally {
+            Arrays.fill(raw, (byte) 0);
+        }
+    }
+    
+    /**
+     * The key a user's password fingerprints are made with, derived from their data key so it
+     * moves and rotates with it but is never the key their entries are encrypted under.
+     */
+    public static SecretKey fingerprintKey(SecretKey dataKey) throws Exception {
+        Mac mac = HMAC.get();
+        mac.init(dataKey);
+        byte[] derived = mac.doFinal(FINGERPRINT_LABEL);
+        try {
+            return new SecretKeySpec(derived, FINGERPRINT_ALGORITHM);
+        } finally {
+            Arrays.fill(derived, (byte) 0);
+        }
+    }
+    
+    /**
+     * HMAC-SHA256 of a password, truncated to FINGERPRINT_BYTES. Equal passwords in one vault
+     * get equal fingerprints, and without the key a fingerprint tells nothing about the password.
+     */
+    public static byte[] fingerprint(SecretKey fingerprintKey, String plainText) throws Exception {
+        Mac mac = HMAC.get();
+        mac.init(fingerprintKey);
+        return Arrays.copyOf(mac.doFinal(plainText.getBytes(StandardCharsets.UTF_8)), FINGERPRINT_BYTES);
+    }
+    
+    /**
+     * The key shard backends use to hand each other data keys: every backend has its own master
+     * keys, so a vault moving between them carries its data key sealed under this instead.
+     */
+    public static SecretKey transferKey(String sharedSecret) throws Exception {
+        byte[] digest = MessageDigest.getInstance("SHA-256")
+                .digest(("pm-shard-transfer:" + sharedSecret).getBytes(StandardCharsets.UTF_8));
+        return new SecretKeySpec(digest, ALGORITHM);
+    }
+    
+    /**
+     * Re-seals a wrapped data key under the transfer key, for a vault leaving this process.
+     */
+    public byte[] exportDataKey(byte[] wrapped, SecretKey transferKey) throws Exception {
+        byte[] raw = open(wrapped);
+        try {
+            return sealWithKey(transferKey, raw);
+        } finally {
+            Arrays.fill(raw, (byte) 0);
+        }
+    }
+    
+    /**
+     * Wraps a data key sealed by exportDataKey on another backend under the active master key.
+     */
+    public byte[] importDataKey(byte[] sealed, SecretKey transferKey) throws Exception {
+        if (!isDataKeyFormat(sealed)) {
+            throw new IllegalArgumentException("Not a transferred data key");
+        }
+        byte[] raw = openWithKey(transferKey, sealed);
+        try {
+            return sealUnderMasterKey(raw);
+        } finally {
+            Arrays.fill(raw, (byte) 0);
+        }
+    }
+    
+    /**
+     * True if the wrapped key (or master-key ciphertext) is under the active master key.
+     */
+    public boolean isUnderActiveKey(byte[] blob) {
+        return blob.length > KEYED_HEADER_BYTES && blob[0] == FORMAT_GCM_KEYED && keyId(blob) == activeKeyId;
+    }
+    
+    /**
+     * True if a vault entry is encrypted under its user's data key; older entries are
+     * re-encrypted lazily on read and by the key rotation job.
+     */
+    public static boolean isDataKeyFormat(byte[] blob) {
+        return blob.length > 0 && blob[0] == FORMAT_DATA_KEY;
+    }
+    
+    private static int keyId(byte[] blob) {
+        return ((blob[1] & 0xff) << 24) | ((blob[2] & 0xff) << 16) | ((blob[3] & 0xff) << 8) | (blob[4] & 0xff);
+    }
+    
+    /**
+     * Decodes ciphertext as stored in files. Versioned blobs are written as "$" + Base64;
+     * bare Base64 is the original unversioned IV + AES-CBC layout.
+     */
+    public static byte[] fromStored(String stored) {
+        if (stored.startsWith(STORED_PREFIX)) {
+            return Base64.getDecoder().decode(stored.substring(STORED_PREFIX.length()));
+        }
+        byte[] legacy = Base64.getDecoder().decode(stored);
+        byte[] blob = new byte[legacy.length + 1];
+        blob[0] = FORMAT_CBC;
+        System.arraycopy(legacy, 0, blob, 1, legacy.length);
+        return blob;
+    }
+    
+    public static String toStored(byte[] blob) {
+        return STORED_PREFIX + Base64.getEncoder().encodeToString(blob);
+    }
+    
+    private static Cipher newCipher(String transformation) {
+        try {
+            return Cipher.getInstance(transformation);
+        } catch (java.security.GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+    
+    /**
+     * Encrypts a batch under a data key in parallel, preserving order. Used by bulk operations.
+     */
+    public List<byte[]> encryptAll(SecretKey dataKey, List<String> plainTexts) throws Exception {
+        try {
+            return plainTexts.parallelStream().map(plainText -> {
+                try {
+                    return encryptToBytes(dataKey, plainText);
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            }).collect(Collectors.toList());
+        } catch (IllegalStateException e) {
+            throw (Exception) e.getCause();
+        }
     }
     
     public String decrypt(String encryptedText) throws Exception {
-        byte[] encryptedWithIv = Base64.getDecoder().decode(encryptedText);
-        
-        // Extract IV and cipher text
-        byte[] iv = new byte[16];
-        byte[] cipherText = new byte[encryptedWithIv.length - 16];
-        System.arraycopy(encryptedWithIv, 0, iv, 0, 16);
-        System.arraycopy(encryptedWithIv, 16, cipherText, 0, cipherText.length);
-        
-        Cipher cipher = Cipher.getInstance(TRANSFORMATION);
-        IvParameterSpec ivSpec = new IvParameterSpec(iv);
-        cipher.init(Cipher.DECRYPT_MODE, secretKey, ivSpec);
-        
-        byte[] plainText = cipher.doFinal(cipherText);
-        return new String(plainText);
+        return decrypt(fromStored(encryptedText));
+    }
+    
+    public String decrypt(byte[] blob) throws Exception {
+        return decrypt(null, blob);
+    }
+    
+    /**
+     * Decrypts any ciphertext format. dataKey is only needed, and may be null otherwise, for
+     * entries written under a user's data key.
+     */
+    public String decrypt(SecretKey dataKey, byte[] blob) throws Exception {
+        if (blob[0] == FORMAT_DATA_KEY) {
+            if (dataKey == null) {
+                throw new IllegalStateException("Ciphertext needs a data key");
+            }
+            return new String(openWithKey(dataKey, blob), StandardCharsets.UTF_8);
+        }
+        if (blob[0] == FORMAT_CBC) {
+            Cipher cipher = CBC.get();
+            cipher.init(Cipher.DECRYPT_MODE, keys.get(0), new IvParameterSpec(blob, 1, 16));
+            byte[] plainText = cipher.doFinal(blob, 17, blob.length - 17);
+            return new String(plainText);
+        }
+        return new String(open(blob), StandardCharsets.UTF_8);
+    }
+    
+    private static byte[] openWithKey(SecretKey dataKey, byte[] blob) throws Exception {
+        Cipher cipher = GCM.get();
+        cipher.init(Cipher.DECRYPT_MODE, dataKey, new GCMParameterSpec(GCM_TAG_BITS, blob, 1, GCM_NONCE_BYTES));
+        cipher.updateAAD(blob, 0, 1);
+        int offset = 1 + GCM_NONCE_BYTES;
+        return cipher.doFinal(blob, offset, blob.length - offset);
+    }
+    
+    // Decrypts the master-key GCM formats
+    private byte[] open(byte[] blob) throws Exception {
+        switch (blob[0]) {
+            case FORMAT_GCM_KEYED: {
+                SecretKey key = keys.get(keyId(blob));
+                if (key == null) {
+                    throw new IllegalStateException("Ciphertext uses unknown key " + keyId(blob));
+                }
+                Cipher cipher = GCM.get();
+                cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(GCM_TAG_BITS, blob, KEYED_HEADER_BYTES, GCM_NONCE_BYTES));
+                cipher.updateAAD(blob, 0, KEYED_HEADER_BYTES);
+                int offset = KEYED_HEADER_BYTES + GCM_NONCE_BYTES;
+                return cipher.doFinal(blob, offset, blob.length - offset);
+            }
+            case FORMAT_GCM: {
+                Cipher cipher = GCM.get();
+                cipher.init(Cipher.DECRYPT_MODE, keys.get(0), new GCMParameterSpec(GCM_TAG_BITS, blob, 1, GCM_NONCE_BYTES));
+                cipher.updateAAD(blob, 0, 1);
+                int offset = 1 + GCM_NONCE_BYTES;
+                return cipher.doFinal(blob, offset, blob.length - offset);
+            }
+            default:
+                throw new IllegalArgumentException("Unknown ciphertext format " + blob[0]);
+        }
     }
-} 
\ No newline at end of file
+}
\ No newline at end of file
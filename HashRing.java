@@ -0,0 +1,78 @@
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Consistent hashing of user ids onto shard backends.
+ *
+ * Each backend is placed on a 64-bit ring at virtualNodes points (SHA-256 of "url#i"), and a
+ * key belongs to the first point at or after its own hash, wrapping around. Adding a backend
+ * to N others moves only about 1/(N+1) of the keys, all of them onto the new backend; the
+ * virtual nodes keep each backend's share close to even.
+ *
+ * Every router and the rebalancer must be given the same backend list and virtual node count,
+ * or they will disagree about where users live. The order of the list does not matter.
+ */
+public class HashRing {
+    private final TreeMap<Long, String> points = new TreeMap<>();
+    private final List<String> backends;
+    
+    public HashRing(List<String> backends, int virtualNodes) {
+        if (backends.isEmpty()) {
+            throw new IllegalArgumentException("A hash ring needs at least one backend");
+        }
+        List<String> sorted = new ArrayList<>(backends);
+        Collections.sort(sorted);
+        this.backends = Collections.unmodifiableList(sorted);
+        for (String backend : sorted) {
+            for (int i = 0; i < virtualNodes; i++) {
+                // A 64-bit collision is not going to happen; if it did the first backend keeps the point
+                points.putIfAbsent(hash(backend + "#" + i), backend);
+            }
+        }
+    }
+    
+    /**
+     * A ring over a comma-separated list of backend base URLs such as "http://10.0.0.5:3000".
+     */
+    public static HashRing parse(String spec, int virtualNodes) {
+        List<String> backends = new ArrayList<>();
+        for (String backend : spec.split(",")) {
+            backend = backend.trim();
+            while (backend.endsWith("/")) {
+                backend = backend.substring(0, backend.length() - 1);
+            }
+            if (!backend.isEmpty() && !backends.contains(backend)) {
+                backends.add(backend);
+            }
+        }
+        return new HashRing(backends, virtualNodes);
+    }
+    
+    public String ownerOf(String key) {
+        Map.Entry<Long, String> point = points.ceilingEntry(hash(key));
+        return point != null ? point.getValue() : points.firstEntry().getValue();
+    }
+    
+    public List<String> backends() {
+        return backends;
+    }
+    
+    private static long hash(String value) {
+        byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8));
+        } catch (java.security.NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        long hash = 0;
+        for (int i = 0; i < 8; i++) {
+            hash = (hash << 8) | (digest[i] & 0xff);
+        }
+        return hash;
+    }
+}
\ No newline at end of file
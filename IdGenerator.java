@@ -0,0 +1,64 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Time-ordered 64-bit ids in the Snowflake layout:
+ *
+ *   41 bits milliseconds since 2024-01-01 | 10 bits node id | 12 bits sequence
+ *
+ * The node id comes from NODE_ID (0-1023) so processes sharing data never hand out the same id.
+ * Ids are generated with a CAS loop and never block: when a millisecond's 4096 sequence numbers
+ * run out, or the clock steps backwards, generation carries on from the last issued timestamp,
+ * so ids stay unique and increasing within a process.
+ *
+ * Ids from before this generator were plain epoch milliseconds, which are all smaller than
+ * any id issued here, so sorting by id keeps old entries first.
+ */
+public class IdGenerator {
+    private static final long EPOCH_MILLIS = 1704067200000L;
+    private static final int NODE_BITS = 10;
+    private static final int SEQUENCE_BITS = 12;
+    private static final long MAX_NODE_ID = (1L << NODE_BITS) - 1;
+    
+    private static final long NODE_ID = parseNodeId(System.getenv().getOrDefault("NODE_ID", "0"));
+    
+    // (milliseconds since EPOCH_MILLIS << SEQUENCE_BITS) | sequence of the last issued id
+    private static final AtomicLong last = new AtomicLong();
+    
+    private IdGenerator() {
+    }
+    
+    public static long next() {
+        while (true) {
+            long prev = last.get();
+            long now = (System.currentTimeMillis() - EPOCH_MILLIS) << SEQUENCE_BITS;
+            long next = now > prev ? now : prev + 1;
+            if (last.compareAndSet(prev, next)) {
+                long millis = next >>> SEQUENCE_BITS;
+                long sequence = next & ((1L << SEQUENCE_BITS) - 1);
+                return (millis << (NODE_BITS + SEQUENCE_BITS)) | (NODE_ID << SEQUENCE_BITS) | sequence;
+            }
+        }
+    }
+    
+    /**
+     * Parses an id from a path, request body or stored file; -1 if it is not one.
+     */
+    public static long parse(String id) {
+        if (id == null || !id.matches("\\d{1,19}")) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(id);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+    
+    private static long parseNodeId(String value) {
+        long nodeId = Long.parseLong(value.trim());
+        if (nodeId < 0 || nodeId > MAX_NODE_ID) {
+            throw new IllegalArgumentException("NODE_ID must be between 0 and " + MAX_NODE_ID);
+        }
+        return nodeId;
+    }
+}
\ No newline at end of file
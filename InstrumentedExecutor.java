@@ -0,0 +1,104 @@
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Fixed-size thread pool with a bounded queue that measures how long each task waited for a
+ * thread. The task can read its own wait with currentQueueWaitNanos() and give up early when
+ * it queued so long that the client has likely stopped waiting.
+ *
+ * When the queue is full, tasks go to a single overflow thread instead of being refused, and
+ * report a wait of OVERFLOWED: they still run, so they can answer quickly (a 503, or a cheap
+ * response), but should not do expensive work. Only when the overflow queue is full too is a
+ * task rejected.
+ *
+ * Metrics, under executor.<name>: active, threads and queue_depth gauges; tasks, overflow and
+ * rejected counters; queue_wait_micros (total, divide by tasks for the mean) and
+ * queue_wait_ewma_micros (recent average).
+ */
+public class InstrumentedExecutor implements Executor {
+    public static final long OVERFLOWED = Long.MAX_VALUE;
+    private static final int OVERFLOW_QUEUE_SIZE = 1024;
+    // Queue wait of the task running on this thread; 0 outside an instrumented task
+    private static final ThreadLocal<long[]> QUEUE_WAIT = ThreadLocal.withInitial(() -> new long[1]);
+    
+    private final ThreadPoolExecutor pool;
+    private final ThreadPoolExecutor overflow;
+    private final LongAdder tasks;
+    private final LongAdder queueWaitMicros;
+    private final LongAdder overflowed;
+    private final LongAdder rejected;
+    // Races between updating threads are benign; it is a smoothed indicator
+    private volatile long waitEwmaNanos;
+    
+    public InstrumentedExecutor(String name, int threads, int queueCapacity) {
+        AtomicInteger threadCount = new AtomicInteger();
+        this.pool = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), r -> new Thread(r, name + "-" + threadCount.incrementAndGet()));
+        this.overflow = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(OVERFLOW_QUEUE_SIZE), r -> new Thread(r, name + "-overflow"));
+        
+        String prefix = "executor." + name + ".";
+        this.tasks = Metrics.counter(prefix + "tasks");
+        this.queueWaitMicros = Metrics.counter(prefix + "queue_wait_micros");
+        this.overflowed = Metrics.counter(prefix + "overflow");
+        this.rejected = Metrics.counter(prefix + "rejected");
+        Metrics.gauge(prefix + "active", pool::getActiveCount);
+        Metrics.gauge(prefix + "threads", pool::getPoolSize);
+        Metrics.gauge(prefix + "queue_depth", () -> pool.getQueue().size());
+        Metrics.gauge(prefix + "queue_wait_ewma_micros", () -> waitEwmaNanos / 1000);
+    }
+    
+    /**
+     * How long the task running on this thread waited in the queue, or OVERFLOWED.
+     */
+    public static long currentQueueWaitNanos() {
+        return QUEUE_WAIT.get()[0];
+    }
+    
+    @Override
+    public void execute(Runnable command) {
+        try {
+            pool.execute(new Task(command, false));
+        } catch (RejectedExecutionException e) {
+            overflowed.increment();
+            try {
+                overflow.execute(new Task(command, true));
+            } catch (RejectedExecutionException full) {
+                rejected.increment();
+                throw full;
+            }
+        }
+    }
+    
+    private class Task implements Runnable {
+        private final Runnable command;
+        private final long enqueuedAt = System.nanoTime();
+        private final boolean overflowed;
+        
+        Task(Runnable command, boolean overflowed) {
+            this.command = command;
+            this.overflowed = overflowed;
+        }
+        
+        @Override
+        public void run() {
+            long wait = System.nanoTime() - enqueuedAt;
+            tasks.increment();
+            queueWaitMicros.add(wait / 1000);
+            waitEwmaNanos += (wait - waitEwmaNanos) / 8;
+            
+            long[] current = QUEUE_WAIT.get();
+            current[0] = overflowed ? OVERFLOWED : wait;
+            try {
+                command.run();
+            } finally {
+                current[0] = 0;
+            }
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,211 @@
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.LongSupplier;
+
+/**
+ * Background re-encryption of every vault under the active key after a rotation.
+ *
+ * For most vaults that means re-wrapping the user's data key, not touching the entries; only
+ * entries still encrypted directly under a master key are re-encrypted. Users are visited in id
+ * order, a batch at a time, with the vaults in a batch processed in parallel. Throughput is
+ * paced to ROTATION_RATE rewritten keys and entries per second, and the job pauses while
+ * foreground request latency is above ROTATION_PAUSE_LATENCY_MS. After each batch the last
+ * finished user is checkpointed to data/keys/rotation.progress, so after a crash the job picks
+ * up where it stopped instead of starting over.
+ */
+public class KeyRotationJob {
+    private static final Path PROGRESS_FILE = Paths.get("data/keys/rotation.progress");
+    private static final double RATE = Double.parseDouble(System.getenv().getOrDefault("ROTATION_RATE", "500"));
+    private static final int THREADS = Integer.parseInt(System.getenv().getOrDefault("ROTATION_THREADS", "2"));
+    private static final int BATCH_USERS = Integer.parseInt(System.getenv().getOrDefault("ROTATION_BATCH_USERS", "32"));
+    private static final long PAUSE_LATENCY_NANOS =
+            Long.parseLong(System.getenv().getOrDefault("ROTATION_PAUSE_LATENCY_MS", "50")) * 1_000_000L;
+    private static final long PAUSE_CHECK_MILLIS = 200;
+    
+    private final PasswordService passwordService;
+    private final EncryptionService encryptionService;
+    private final LongSupplier foregroundLatencyNanos;
+    private final RequestLog requestLog;
+    
+    // Progress, written by the job thread and read by status requests
+    private volatile String state = "idle";
+    private volatile int targetKeyId;
+    private volatile String lastUserId = "";
+    private volatile int processedUsers;
+    private volatile int totalUsers;
+    private volatile long reencrypted;
+    private volatile String startedAt = "";
+    private volatile String error = "";
+    private Thread thread;
+    
+    public KeyRotationJob(PasswordService passwordService, EncryptionService encryptionService,
+            LongSupplier foregroundLatencyNanos, RequestLog requestLog) {
+        this.passwordService = passwordService;
+        this.encryptionService = encryptionService;
+        this.foregroundLatencyNanos = foregroundLatencyNanos;
+        this.requestLog = requestLog;
+    }
+    
+    /**
+     * Rotates to a new key and starts re-encrypting under it. Returns false, without rotating,
+     * if a job is already running.
+     */
+    public synchronized boolean rotate() throws Exception {
+        if (isRunning()) {
+            return false;
+        }
+        targetKeyId = encryptionService.rotateKey();
+        lastUserId = "";
+        processedUsers = 0;
+        reencrypted = 0;
+        startedAt = Instant.now().toString();
+        start();
+        return true;
+    }
+    
+    /**
+     * Continues a job that was interrupted by a restart. Called once the vaults are loaded.
+     */
+    public synchronized void resumeIfInterrupted() throws Exception {
+        if (!Files.exists(PROGRESS_FILE)) {
+            return;
+        }
+        String progress = Files.readString(PROGRESS_FILE);
+        if (!"running".equals(value(progress, "state"))) {
+            return;
+        }
+        targetKeyId = Integer.parseInt(value(progress, "targetKeyId"));
+        if (targetKeyId != encryptionService.getActiveKeyId()) {
+            // A newer rotation superseded it; that one re-encrypts everything anyway
+            return;
+        }
+        lastUserId = value(progress, "lastUserId");
+        processedUsers = Integer.parseInt(value(progress, "processedUsers"));
+        reencrypted = Long.parseLong(value(progress, "reencrypted"));
+        startedAt = value(progress, "startedAt");
+        System.out.println("Resuming key rotation to key " + targetKeyId + " after user " + lastUserId);
+        start();
+    }
+    
+    public synchronized boolean isRunning() {
+        return thread != null && thread.isAlive();
+    }
+    
+    public String toJson() {
+        return "{\"state\":\"" + state + "\",\"activeKeyId\":" + encryptionService.getActiveKeyId()
+                + ",\"targetKeyId\":" + targetKeyId + ",\"processedUsers\":" + processedUsers
+                + ",\"totalUsers\":" + totalUsers + ",\"reencrypted\":" + reencrypted
+                + ",\"startedAt\":\"" + startedAt + "\",\"error\":\"" + error + "\"}";
+    }
+    
+    private void start() {
+        state = "running";
+        error = "";
+        thread = new Thread(this::run, "key-rotation");
+        thread.setDaemon(true);
+        thread.start();
+    }
+    
+    private void run() {
+        ExecutorService workers = Executors.newFixedThreadPool(THREADS, r -> {
+            Thread worker = new Thread(r, "key-rotation-worker");
+            worker.setDaemon(true);
+            return worker;
+        });
+        try {
+            List<String> pending = new ArrayList<>();
+            List<String> userIds = passwordService.getUserIds();
+            totalUsers = userIds.size();
+            for (String userId : userIds) {
+                if (userId.compareTo(lastUserId) > 0) {
+                    pending.add(userId);
+                }
+            }
+            processedUsers = totalUsers - pending.size();
+            saveProgress();
+            
+            long start = System.nanoTime();
+            long pacedEntries = 0;
+            for (int from = 0; from < pending.size(); from += BATCH_USERS) {
+                waitForQuietForeground();
+                
+                List<String> batch = pending.subList(from, Math.min(pending.size(), from + BATCH_USERS));
+                List<Future<Integer>> results = new ArrayList<>();
+                for (String userId : batch) {
+                    results.add(workers.submit(() -> {
+                        try {
+                            return passwordService.reencryptVault(userId);
+                        } catch (PasswordService.UserMovedException e) {
+                            // Released to another shard since the snapshot; its new owner re-encrypts it
+                            Metrics.increment("rotation.moved_users");
+                            return 0;
+                        }
+                    }));
+                }
+                int batchEntries = 0;
+                for (Future<Integer> result : results) {
+                    batchEntries += result.get();
+                }
+                
+                reencrypted += batchEntries;
+                processedUsers += batch.size();
+                lastUserId = batch.get(batch.size() - 1);
+                saveProgress();
+                
+                // Pace to RATE entries per second over the whole run
+                pacedEntries += batchEntries;
+                long aheadNanos = (long) (pacedEntries / RATE * 1e9) - (System.nanoTime() - start);
+                if (aheadNanos > 0) {
+                    Thread.sleep(aheadNanos / 1_000_000, (int) (aheadNanos % 1_000_000));
+                }
+            }
+            state = "done";
+            saveProgress();
+            System.out.println("Key rotation to key " + targetKeyId + " finished: " + reencrypted + " keys and entries rewritten");
+        } catch (Exception e) {
+            // Progress stays "running" on disk, so the next start resumes from the checkpoint
+            state = "failed";
+            error = String.valueOf(e.getMessage()).replace("\"", "'");
+            requestLog.error(null, null, new Exception("Key rotation to key " + targetKeyId + " failed: " + e, e));
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+    
+    private void waitForQuietForeground() throws InterruptedException {
+        while (foregroundLatencyNanos.getAsLong() > PAUSE_LATENCY_NANOS) {
+            state = "paused";
+            Metrics.increment("rotation.pauses");
+            Thread.sleep(PAUSE_CHECK_MILLIS);
+        }
+        state = "running";
+    }
+    
+    private void saveProgress() throws Exception {
+        String json = "{\n"
+                + "  \"state\": \"" + ("done".equals(state) ? "done" : "running") + "\",\n"
+                + "  \"targetKeyId\": \"" + targetKeyId + "\",\n"
+                + "  \"lastUserId\": \"" + lastUserId + "\",\n"
+                + "  \"processedUsers\": \"" + processedUsers + "\",\n"
+                + "  \"reencrypted\": \"" + reencrypted + "\",\n"
+                + "  \"startedAt\": \"" + startedAt + "\"\n"
+                + "}";
+        Path temp = PROGRESS_FILE.resolveSibling(PROGRESS_FILE.getFileName() + ".tmp");
+        Files.write(temp, json.getBytes(StandardCharsets.UTF_8));
+        Files.move(temp, PROGRESS_FILE, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+    
+    private static String value(String json, String key) {
+        java.util.regex.Matcher m = java.util.regex.Pattern.compile("\"" + key + "\":\\s*\"([^\"]*)\"").matcher(json);
+        return m.find() ? m.group(1) : "";
+    }
+}
\ No newline at end of file
@@ -0,0 +1,57 @@
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Process-wide counters and gauges, exported as JSON on /api/metrics.
+ * Counters are LongAdders, so hot paths can increment them without contending.
+ */
+public class Metrics {
+    private static final ConcurrentHashMap<String, LongAdder> COUNTERS = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, LongSupplier> GAUGES = new ConcurrentHashMap<>();
+    
+    public static void increment(String name) {
+        counter(name).increment();
+    }
+    
+    public static void add(String name, long value) {
+        counter(name).add(value);
+    }
+    
+    public static long get(String name) {
+        LongAdder adder = COUNTERS.get(name);
+        return adder == null ? 0 : adder.sum();
+    }
+    
+    public static void gauge(String name, LongSupplier supplier) {
+        GAUGES.put(name, supplier);
+    }
+    
+    public static String toJson() {
+        Map<String, Long> values = new TreeMap<>();
+        COUNTERS.forEach((name, adder) -> values.put(name, adder.sum()));
+        GAUGES.forEach((name, supplier) -> values.put(name, supplier.getAsLong()));
+        
+        StringBuilder json = new StringBuilder("{\n");
+        int i = 0;
+        for (Map.Entry<String, Long> entry : values.entrySet()) {
+            json.append("  \"").append(entry.getKey()).append("\": ").append(entry.getValue());
+            if (++i < values.size()) {
+                json.append(",");
+            }
+            json.append("\n");
+        }
+        json.append("}");
+        return json.toString();
+    }
+    
+    public static LongAdder counter(String name) {
+        LongAdder adder = COUNTERS.get(name);
+        if (adder == null) {
+            adder = COUNTERS.computeIfAbsent(name, k -> new LongAdder());
+        }
+        return adder;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,84 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded lock-free queue for many producers and a single consumer.
+ *
+ * Each slot has a sequence number telling whose turn it is: a producer may fill slot
+ * (pos % capacity) when its sequence equals pos, and the consumer may take it when the
+ * sequence is pos + 1. Producers claim positions with one CAS on the tail; the consumer
+ * never contends with anyone. offer() fails instead of waiting when the buffer is full.
+ */
+public class MpscRingBuffer<T> {
+    private final Object[] slots;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    // Written only by the consumer; volatile so size() can be read from other threads
+    private volatile long head;
+    
+    public MpscRingBuffer(int capacity) {
+        if (capacity < 2 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Capacity must be a power of two, got " + capacity);
+        }
+        slots = new Object[capacity];
+        sequences = new AtomicLongArray(capacity);
+        mask = capacity - 1;
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+    }
+    
+    public boolean offer(T item) {
+        long pos = tail.get();
+        while (true) {
+            int index = (int) (pos & mask);
+            long diff = sequences.get(index) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    slots[index] = item;
+                    // Volatile store, so a consumer about to park either sees the item or is seen parking
+                    sequences.set(index, pos + 1);
+                    return true;
+                }
+                pos = tail.get();
+            } else if (diff < 0) {
+                // The consumer has not freed this slot from the previous lap: full
+                return false;
+            } else {
+                // Another producer took this position
+                pos = tail.get();
+            }
+        }
+    }
+    
+    /**
+     * Takes the oldest item, or returns null if there is none. Consumer thread only.
+     */
+    @SuppressWarnings("unchecked")
+    public T poll() {
+        long pos = head;
+        int index = (int) (pos & mask);
+        if (sequences.get(index) != pos + 1) {
+            return null;
+        }
+        T item = (T) slots[index];
+        slots[index] = null;
+        sequences.set(index, pos + mask + 1);
+        head = pos + 1;
+        return item;
+    }
+    
+    public boolean isEmpty() {
+        long pos = head;
+        return sequences.get((int) (pos & mask)) != pos + 1;
+    }
+    
+    public int size() {
+        return (int) Math.max(0, tail.get() - head);
+    }
+    
+    public int capacity() {
+        return slots.length;
+    }
+}
\ No newline at end of file
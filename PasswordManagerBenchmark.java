@@ -0,0 +1,968 @@
+import java.io.BufferedOutputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Benchmarks for the storage and server paths.
+ *
+ * Every scenario reads and writes ./data, so run it from an empty scratch directory:
+ *   mkdir /tmp/pm-bench && cd /tmp/pm-bench
+ *   java -cp /path/to/password-manager PasswordManagerBenchmark storage 100 1000 10000
+ *   java -cp /path/to/password-manager PasswordManagerBenchmark durability fsync-per-commit async
+ *   RATE_LIMIT_LOGIN=1000:1000 java -cp /path/to/password-manager PasswordManagerBenchmark login-storm
+ *   java -cp /path/to/password-manager PasswordManagerBenchmark ratelimit 1 2 4 8
+ *   java -cp /path/to/password-manager PasswordManagerBenchmark batch 10 100 500
+ *   java -Xmx2g -cp /path/to/password-manager PasswordManagerBenchmark footprint 1000000
+ *   java -cp /path/to/password-manager PasswordManagerBenchmark crypto 16 256 4096
+ *   java -cp /path/to/password-manager PasswordManagerBenchmark audit 1 4 8
+ *   RATE_LIMIT_ENCODER=100000:100000 java -cp /path/to/password-manager PasswordManagerBenchmark bulkhead 100
+ *   java -cp /path/to/password-manager PasswordManagerBenchmark breach 10000000
+ *   java -cp /path/to/password-manager PasswordManagerBenchmark reuse 1000 10000 50000
+ *   PBKDF2_ITERATIONS=1000 java -Xmx16g -cp /path/to/password-manager PasswordManagerBenchmark scaling 1000 100000 1000000 10000000
+ *
+ * Server scenarios start an in-process PasswordManagerServer on PORT (default 3000).
+ */
+public class PasswordManagerBenchmark {
+    private static final int ENTRIES_PER_USER = 5;
+    private static final int SAMPLES = 200;
+    
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0) {
+            printUsage();
+            return;
+        }
+        
+        if (Files.exists(Paths.get("data"))) {
+            System.err.println("Refusing to run: ./data already exists. Run from an empty scratch directory.");
+            System.exit(1);
+        }
+        
+        String[] rest = Arrays.copyOfRange(args, 1, args.length);
+        switch (args[0]) {
+            case "storage":
+                storageScaling(rest);
+                break;
+            case "durability":
+                durabilityModes(rest);
+                break;
+            case "login-storm":
+                loginStorm(rest);
+                break;
+            case "ratelimit":
+                rateLimiterContention(rest);
+                break;
+            case "batch":
+                batchMutations(rest);
+                break;
+            case "footprint":
+                entryFootprint(rest);
+                break;
+            case "crypto":
+                cipherThroughput(rest);
+                break;
+            case "audit":
+                auditOverhead(rest);
+                break;
+            case "bulkhead":
+                bulkheadIsolation(rest);
+                break;
+            case "breach":
+                breachLookups(rest);
+                break;
+            case "reuse":
+                reuseDetection(rest);
+                break;
+            case "scaling":
+                scalingRegression(rest);
+                break;
+            default:
+                printUsage();
+        }
+    }
+    
+    private static void printUsage() {
+        System.out.println("Usage: java PasswordManagerBenchmark <scenario> [args]");
+        System.out.println("  storage [userCount...]   vault read/write latency as the total user count grows");
+        System.out.println("  durability [mode...]     write throughput and commit latency per STORAGE_DURABILITY mode");
+        System.out.println("  login-storm [threads]    vault read latency while logins saturate the hashing pool");
+        System.out.println("  ratelimit [threads...]   RateLimiter throughput against a lock-based bucket");
+        System.out.println("  batch [size...]          updating and deleting N entries one by one versus in one batch");
+        System.out.println("  footprint [entries]      resident heap bytes per vault entry, compact versus all-String");
+        System.out.println("  crypto [bytes...]        encrypt/decrypt throughput of AES-CBC and AES-GCM per payload size");
+        System.out.println("  audit [threads...]       cost of recording an audit event, async ring buffer versus a synchronous write");
+        System.out.println("  bulkhead [threads]       vault and static latency while encoder calls saturate their pool");
+        System.out.println("  breach [records]         breach list lookup latency by fan-out table size");
+        System.out.println("  reuse [vaultSize...]     reused-password lookups by fingerprint versus decrypting the vault");
+        System.out.println("  scaling [entries...]     load time, heap and per-user operation latency as a generated dataset grows");
+    }
+    
+    /**
+     * Grows the user population step by step and samples per-user vault latency at each size.
+     * With sharded storage the numbers should stay flat as the population grows.
+     */
+    private static void storageScaling(String[] args) throws Exception {
+        int[] userCounts = args.length > 0
+                ? Arrays.stream(args).mapToInt(Integer::parseInt).toArray()
+                : new int[] {100, 1000, 10000};
+        
+        PasswordService passwordService = new PasswordService(new EncryptionService(), StorageWriter.fromEnvironment());
+        passwordService.buildIndex(passwordService.loadVaults());
+        Random random = new Random(42);
+        int populated = 0;
+        
+        for (int userCount : userCounts) {
+            for (; populated < userCount; populated++) {
+                String userId = "u" + populated;
+                for (int i = 0; i < ENTRIES_PER_USER; i++) {
+                    passwordService.addPassword(userId, "site" + i, "user" + i, "secret-" + i);
+                }
+            }
+            
+            long[] reads = new long[SAMPLES];
+            long[] writes = new long[SAMPLES];
+            for (int i = 0; i < SAMPLES; i++) {
+                String userId = "u" + random.nextInt(userCount);
+                
+                long start = System.nanoTime();
+                passwordService.getUserPasswords(userId);
+                reads[i] = System.nanoTime() - start;
+                
+                start = System.nanoTime();
+                passwordService.addPassword(userId, "bench", "bench", "bench-secret");
+                writes[i] = System.nanoTime() - start;
+            }
+            
+            System.out.println("users=" + userCount);
+            report("  getUserPasswords", reads);
+            report("  addPassword     ", writes);
+        }
+    }
+    
+    /**
+     * Concurrent writers each rewriting their own file, as vault mutations for different users do.
+     * Commit latency is the time write() blocks; for async that is only the hand-off, so the time
+     * for a final flush() is reported as well.
+     */
+    private static void durabilityModes(String[] args) throws Exception {
+        String[] modes = args.length > 0 ? args : new String[] {"fsync-per-commit", "fsync-every-10ms", "async"};
+        int threads = 8;
+        int writesPerThread = 200;
+        byte[] payload = new byte[4096];
+        new Random(42).nextBytes(payload);
+        
+        for (String mode : modes) {
+            StorageWriter writer = StorageWriter.fromMode(mode);
+            long[] latencies = new long[threads * writesPerThread];
+            CountDownLatch done = new CountDownLatch(threads);
+            
+            long start = System.nanoTime();
+            for (int t = 0; t < threads; t++) {
+                final int thread = t;
+                new Thread(() -> {
+                    Path file = Paths.get("data", "bench-" + mode, "writer-" + thread + ".json");
+                    try {
+                        for (int i = 0; i < writesPerThread; i++) {
+                            long writeStart = System.nanoTime();
+                            writer.write(file, payload);
+                            latencies[thread * writesPerThread + i] = System.nanoTime() - writeStart;
+                        }
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    } finally {
+                        done.countDown();
+                    }
+                }).start();
+            }
+            done.await();
+            long submitted = System.nanoTime() - start;
+            writer.flush();
+            long durable = System.nanoTime() - start;
+            writer.close();
+            
+            System.out.printf("%s: %.0f writes/s, all durable after %.1fms%n", mode,
+                    latencies.length / (submitted / 1e9), durable / 1e6);
+            report("  commit latency", latencies);
+        }
+    }
+    
+    /**
+     * Samples GET /api/passwords latency on an idle server and again while a crowd of clients
+     * hammers /api/login. Hashing runs on its own bounded pool, so reads should barely move and
+     * the surplus logins should be turned away with 503.
+     */
+    private static void loginStorm(String[] args) throws Exception {
+        int stormThreads = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        String baseUrl = startServer();
+        HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+        
+        String token = registerAndLogin(client, baseUrl, "reader", "reader-password");
+        for (int i = 0; i < 20; i++) {
+            send(client, HttpRequest.newBuilder(URI.create(baseUrl + "/api/passwords"))
+                    .header("Authorization", "Bearer " + token)
+                    .POST(HttpRequest.BodyPublishers.ofString(
+                            "{\"site\":\"site" + i + "\",\"username\":\"user\",\"password\":\"secret" + i + "\"}")));
+        }
+        registerAndLogin(client, baseUrl, "storm", "storm-password");
+        
+        report("idle  GET /api/passwords", sampleVaultReads(client, baseUrl, token));
+        
+        AtomicBoolean stop = new AtomicBoolean();
+        LongAdder accepted = new LongAdder();
+        LongAdder rejected = new LongAdder();
+        LongAdder limited = new LongAdder();
+        Thread[] storm = new Thread[stormThreads];
+        for (int t = 0; t < stormThreads; t++) {
+            storm[t] = new Thread(() -> {
+                HttpRequest.Builder login = HttpRequest.newBuilder(URI.create(baseUrl + "/api/login"))
+                        .POST(HttpRequest.BodyPublishers.ofString("{\"username\":\"storm\",\"password\":\"storm-password\"}"));
+                while (!stop.get()) {
+                    try {
+                        int status = send(client, login).statusCode();
+                        (status == 503 ? rejected : status == 429 ? limited : accepted).increment();
+                    } catch (Exception e) {
+                        rejected.increment();
+                    }
+                }
+            });
+            storm[t].start();
+        }
+        Thread.sleep(1000);
+        
+        report("storm GET /api/passwords", sampleVaultReads(client, baseUrl, token));
+        stop.set(true);
+        for (Thread t : storm) {
+            t.join();
+        }
+        System.out.println("storm logins: " + accepted.sum() + " completed, " + rejected.sum() + " rejected with 503, "
+                + limited.sum() + " rate limited with 429");
+        System.exit(0);
+    }
+    
+    /**
+     * Samples vault reads and static file requests on an idle server and again while a crowd of
+     * clients floods /api/encode. The encoder has its own small pool, so the flood should queue
+     * and be shed there while the other classes keep their latency.
+     */
+    private static void bulkheadIsolation(String[] args) throws Exception {
+        int floodThreads = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        String baseUrl = startServer();
+        HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+        
+        String token = registerAndLogin(client, baseUrl, "reader", "reader-password");
+        for (int i = 0; i < 20; i++) {
+            send(client, HttpRequest.newBuilder(URI.create(baseUrl + "/api/passwords"))
+                    .header("Authorization", "Bearer " + token)
+                    .POST(HttpRequest.BodyPublishers.ofString(
+                            "{\"site\":\"site" + i + "\",\"username\":\"user\",\"password\":\"secret" + i + "\"}")));
+        }
+        
+        report("idle  GET /api/passwords", sampleVaultReads(client, baseUrl, token));
+        report("idle  GET /health", sampleGets(client, baseUrl + "/health"));
+        
+        AtomicBoolean stop = new AtomicBoolean();
+        LongAdder served = new LongAdder();
+        LongAdder shed = new LongAdder();
+        LongAdder limited = new LongAdder();
+        char[] longPassword = new char[4096];
+        Arrays.fill(longPassword, 'x');
+        String encodeBody = "{\"password\":\"" + new String(longPassword) + "\",\"method\":\"advanced\"}";
+        Thread[] flood = new Thread[floodThreads];
+        for (int t = 0; t < floodThreads; t++) {
+            flood[t] = new Thread(() -> {
+                HttpRequest.Builder encode = HttpRequest.newBuilder(URI.create(baseUrl + "/api/encode"))
+                        .POST(HttpRequest.BodyPublishers.ofString(encodeBody));
+                while (!stop.get()) {
+                    try {
+                        int status = send(client, encode).statusCode();
+                        (status == 503 ? shed : status == 429 ? limited : served).increment();
+                    } catch (Exception e) {
+                        shed.increment();
+                    }
+                }
+            });
+            flood[t].start();
+        }
+        Thread.sleep(1000);
+        
+        report("flood GET /api/passwords", sampleVaultReads(client, baseUrl, token));
+        report("flood GET /health", sampleGets(client, baseUrl + "/health"));
+        stop.set(true);
+        for (Thread t : flood) {
+            t.join();
+        }
+        System.out.println("flood encodes: " + served.sum() + " served, " + shed.sum() + " shed with 503, "
+                + limited.sum() + " rate limited with 429");
+        System.exit(0);
+    }
+    
+    /**
+     * Throughput of tryAcquire with every thread on one hot key and with a key per thread,
+     * next to the same bucket guarded by a monitor. The budget is large enough that nearly
+     * every call is granted, so the CAS path is what gets measured.
+     */
+    private static void rateLimiterContention(String[] args) throws Exception {
+        int[] threadCounts = args.length > 0
+                ? Arrays.stream(args).mapToInt(Integer::parseInt).toArray()
+                : new int[] {1, 2, 4, 8};
+        int callsPerThread = 2_000_000;
+        
+        for (int threads : threadCounts) {
+            RateLimiter hot = new RateLimiter("bench_hot", 1e9, 1_000_000);
+            RateLimiter spread = new RateLimiter("bench_spread", 1e9, 1_000_000);
+            LockedBucket locked = new LockedBucket(1e9, 1_000_000);
+            
+            double hotRate = runThreads(threads, callsPerThread, t -> hot.tryAcquire("client"));
+            double spreadRate = runThreads(threads, callsPerThread, t -> spread.tryAcquire("client-" + t));
+            double lockedRate = runThreads(threads, callsPerThread, t -> locked.tryAcquire());
+            System.out.printf("threads=%d  lock-free hot key %.1fM ops/s, key per thread %.1fM ops/s, synchronized %.1fM ops/s%n",
+                    threads, hotRate / 1e6, spreadRate / 1e6, lockedRate / 1e6);
+        }
+    }
+    
+    /**
+     * Updates and then deletes every entry of an N-entry vault, once through the per-item
+     * methods and once through applyBatch. Each per-item call is its own shard rewrite; the
+     * batch is a single one.
+     */
+    private static void batchMutations(String[] args) throws Exception {
+        int[] sizes = args.length > 0
+                ? Arrays.stream(args).mapToInt(Integer::parseInt).toArray()
+                : new int[] {10, 100, 500};
+        
+        PasswordService passwordService = new PasswordService(new EncryptionService(), StorageWriter.fromEnvironment());
+        passwordService.buildIndex(passwordService.loadVaults());
+        
+        for (int size : sizes) {
+            List<String> ids = seedVault(passwordService, "single-" + size, size);
+            long start = System.nanoTime();
+            for (String id : ids) {
+                passwordService.updatePassword("single-" + size, IdGenerator.parse(id), "site", "user", "rotated");
+            }
+            long singleUpdate = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (String id : ids) {
+                passwordService.deletePassword("single-" + size, IdGenerator.parse(id));
+            }
+            long singleDelete = System.nanoTime() - start;
+            
+            ids = seedVault(passwordService, "batch-" + size, size);
+            List<PasswordService.BatchOperation> updates = new ArrayList<>();
+            List<PasswordService.BatchOperation> deletes = new ArrayList<>();
+            for (String id : ids) {
+                PasswordService.BatchOperation update = new PasswordService.BatchOperation();
+                update.op = "update";
+                update.id = id;
+                update.password = "rotated";
+                updates.add(update);
+                PasswordService.BatchOperation delete = new PasswordService.BatchOperation();
+                delete.op = "delete";
+                delete.id = id;
+                deletes.add(delete);
+            }
+            start = System.nanoTime();
+            passwordService.applyBatch("batch-" + size, updates);
+            long batchUpdate = System.nanoTime() - start;
+            start = System.nanoTime();
+            passwordService.applyBatch("batch-" + size, deletes);
+            long batchDelete = System.nanoTime() - start;
+            
+            System.out.printf("entries=%d  update: per-item %.1fms, batch %.1fms (%.0fx)  delete: per-item %.1fms, batch %.1fms (%.0fx)%n",
+                    size, singleUpdate / 1e6, batchUpdate / 1e6, (double) singleUpdate / batchUpdate,
+                    singleDelete / 1e6, batchDelete / 1e6, (double) singleDelete / batchDelete);
+        }
+    }
+    
+    /**
+     * Retained heap per entry for the resident representation against the all-String POJO it
+     * replaced, with the same synthetic data: 500 distinct sites, a 32-byte ciphertext, and
+     * parsed timestamps. Measured as used heap after GC, so run with nothing else going on.
+     */
+    private static void entryFootprint(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        Random random = new Random(42);
+        String createdAt = java.time.Instant.now().toString();
+        
+        long before = usedHeap();
+        List<StringEntry> strings = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            byte[] ciphertext = new byte[32];
+            random.nextBytes(ciphertext);
+            StringEntry e = new StringEntry();
+            e.id = String.valueOf(1700000000000L + i);
+            e.userId = String.valueOf(1690000000000L + i / 50);
+            e.site = "site-" + random.nextInt(500) + ".example.com";
+            e.username = "user" + i + "@example.com";
+            e.password = java.util.Base64.getEncoder().encodeToString(ciphertext);
+            e.createdAt = new String(createdAt);
+            e.version = i;
+            strings.add(e);
+        }
+        long stringBytes = usedHeap() - before;
+        java.lang.ref.Reference.reachabilityFence(strings);
+        strings = null;
+        
+        random = new Random(42);
+        before = usedHeap();
+        List<PasswordService.Password> compact = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            byte[] ciphertext = new byte[32];
+            random.nextBytes(ciphertext);
+            PasswordService.Password p = new PasswordService.Password();
+            p.id = IdGenerator.next();
+            p.setSite("site-" + random.nextInt(500) + ".example.com");
+            p.username = "user" + i + "@example.com";
+            p.password = ciphertext;
+            p.createdAt = System.currentTimeMillis();
+            p.version = i;
+            compact.add(p);
+        }
+        long compactBytes = usedHeap() - before;
+        java.lang.ref.Reference.reachabilityFence(compact);
+        
+        System.out.printf("entries=%d  all-String %.0f bytes/entry, compact %.0f bytes/entry (%.0f%% smaller)%n",
+                count, (double) stringBytes / count, (double) compactBytes / count,
+                100.0 * (stringBytes - compactBytes) / stringBytes);
+    }
+    
+    /**
+     * Single-threaded encrypt and decrypt throughput for each ciphertext format. Each
+     * measurement runs for a second after two seconds of warm-up so the JIT has compiled the
+     * cipher intrinsics.
+     */
+    private static void cipherThroughput(String[] args) throws Exception {
+        int[] sizes = args.length > 0
+                ? Arrays.stream(args).mapToInt(Integer::parseInt).toArray()
+                : new int[] {16, 256, 4096};
+        EncryptionService encryption = new EncryptionService();
+        
+        for (int size : sizes) {
+            char[] chars = new char[size];
+            Arrays.fill(chars, 'x');
+            String plainText = new String(chars);
+            for (byte format : new byte[] {EncryptionService.FORMAT_CBC, EncryptionService.FORMAT_GCM_KEYED}) {
+                byte[] blob = encryption.encryptToBytes(plainText, format);
+                double encrypts = opsPerSecond(() -> encryption.encryptToBytes(plainText, format));
+                double decrypts = opsPerSecond(() -> encryption.decrypt(blob));
+                System.out.printf("%5d bytes  %s  encrypt %.0f ops/s (%.1f MB/s)  decrypt %.0f ops/s (%.1f MB/s)%n",
+                        size, format == EncryptionService.FORMAT_CBC ? "CBC" : "GCM",
+                        encrypts, encrypts * size / 1e6, decrypts, decrypts * size / 1e6);
+            }
+        }
+    }
+    
+    /**
+     * What recording an audit event costs the calling thread. The async log is measured with
+     * both overflow policies: with DROP the caller never waits, so the drop rate shows how far
+     * producers outran the writer; with BLOCK the rate is what the writer sustains. The baseline
+     * formats and writes each event to a file under a lock, as a synchronous logger would.
+     */
+    private static void auditOverhead(String[] args) throws Exception {
+        int[] threadCounts = args.length > 0
+                ? Arrays.stream(args).mapToInt(Integer::parseInt).toArray()
+                : new int[] {1, 4, 8};
+        int callsPerThread = 1_000_000;
+        Path dir = Paths.get("data", "audit-bench");
+        
+        for (int threads : threadCounts) {
+            AuditLog dropping = new AuditLog(new AsyncAppender<>("bench_audit_drop_" + threads, dir, 8192,
+                    AsyncAppender.Overflow.DROP, 64L * 1024 * 1024, 0, 1000, (event, line) -> line.append(event.action)));
+            double dropRate = runThreads(threads, callsPerThread,
+                    t -> dropping.record("reveal", "user-" + t, null, 200, "127.0.0.1"));
+            dropping.close();
+            long dropped = Metrics.get("bench_audit_drop_" + threads + ".dropped");
+            
+            AuditLog blocking = new AuditLog(new AsyncAppender<>("bench_audit_block_" + threads, dir, 8192,
+                    AsyncAppender.Overflow.BLOCK, 64L * 1024 * 1024, 0, 1000, (event, line) -> line.append(event.action)));
+            double blockRate = runThreads(threads, callsPerThread,
+                    t -> blocking.record("reveal", "user-" + t, null, 200, "127.0.0.1"));
+            blocking.close();
+            
+            java.nio.channels.FileChannel file = java.nio.channels.FileChannel.open(dir.resolve("sync-" + threads + ".jsonl"),
+                    java.nio.file.StandardOpenOption.CREATE, java.nio.file.StandardOpenOption.WRITE,
+                    java.nio.file.StandardOpenOption.APPEND);
+            double syncRate = runThreads(threads, callsPerThread, t -> {
+                String line = "{\"time\":\"" + java.time.Instant.now() + "\",\"action\":\"reveal\",\"userId\":\"user-" + t
+                        + "\",\"target\":null,\"status\":200,\"client\":\"127.0.0.1\"}\n";
+                synchronized (file) {
+                    try {
+                        file.write(java.nio.ByteBuffer.wrap(line.getBytes(java.nio.charset.StandardCharsets.UTF_8)));
+                    } catch (java.io.IOException e) {
+                        throw new java.io.UncheckedIOException(e);
+                    }
+                }
+            });
+            file.close();
+            
+            long total = (long) threads * callsPerThread;
+            System.out.printf("threads=%d  async drop %.0f ns/event (%.1f%% dropped), async block %.0f ns/event, synchronous write %.0f ns/event%n",
+                    threads, threads * 1e9 / dropRate, 100.0 * dropped / total,
+                    threads * 1e9 / blockRate, threads * 1e9 / syncRate);
+        }
+    }
+    
+    /**
+     * Lookup latency in a synthetic breach list of uniformly distributed hashes, by fan-out table
+     * size; 0 bits is a plain binary search of the whole file. The file was just written, so it
+     * is in the page cache: a cold lookup adds a disk read for each page it touches, which is why
+     * the probe count inside the bucket is what matters.
+     */
+    private static void breachLookups(String[] args) throws Exception {
+        long records = args.length > 0 ? Long.parseLong(args[0]) : 10_000_000L;
+        int lookups = 200_000;
+        Path file = Paths.get("data", "breached.bin");
+        Files.createDirectories(file.getParent());
+        Random random = new Random(42);
+        
+        // Stratified: one hash per 1/records slice of the space, so the file is sorted as written
+        long stride = Long.divideUnsigned(-1L, records);
+        List<byte[]> present = new ArrayList<>();
+        long keepEvery = Math.max(1, records / 10_000);
+        long start = System.nanoTime();
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file), 1 << 20)) {
+            out.write(BreachList.MAGIC);
+            byte[] hash = new byte[BreachList.HASH_BYTES];
+            for (long i = 0; i < records; i++) {
+                long high = i * stride + Long.remainderUnsigned(random.nextLong(), stride);
+                random.nextBytes(hash);
+                for (int b = 0; b < 8; b++) {
+                    hash[b] = (byte) (high >>> (56 - 8 * b));
+                }
+                BreachList.writeRecord(out, hash, 1 + random.nextInt(1000));
+                if (i % keepEvery == 0) {
+                    present.add(hash.clone());
+                }
+            }
+        }
+        System.out.printf("records=%d file=%d MB written in %d ms%n", records,
+                Files.size(file) >> 20, (System.nanoTime() - start) / 1_000_000);
+        
+        for (int bits : new int[] {0, 8, 16, 20}) {
+            start = System.nanoTime();
+            BreachList list = BreachList.open(file, bits);
+            long openMillis = (System.nanoTime() - start) / 1_000_000;
+            
+            long[] hits = new long[lookups];
+            long[] misses = new long[lookups];
+            byte[] absent = new byte[BreachList.HASH_BYTES];
+            int found = 0;
+            // Two rounds, the first to warm up the JIT
+            for (int round = 0; round < 2; round++) {
+                found = 0;
+                for (int i = 0; i < lookups; i++) {
+                    byte[] hash = present.get(random.nextInt(present.size()));
+                    long t = System.nanoTime();
+                    found += list.count(hash) > 0 ? 1 : 0;
+                    hits[i] = System.nanoTime() - t;
+                    
+                    random.nextBytes(absent);
+                    t = System.nanoTime();
+                    found -= list.count(absent) > 0 ? 1 : 0;
+                    misses[i] = System.nanoTime() - t;
+                }
+            }
+            double bucket = (double) records / (1L << bits);
+            System.out.printf("fanout=%2d bits  table=%6d KB  open=%5d ms  bucket=%.0f records (~%d probes)  found=%d/%d%n",
+                    bits, ((1L << bits) + 1) * 8 / 1024, openMillis, bucket,
+                    (int) Math.ceil(Math.log(bucket + 1) / Math.log(2)), found, lookups);
+            reportMicros("  hit ", hits);
+            reportMicros("  miss", misses);
+        }
+        
+        BreachList list = BreachList.open(file, 16);
+        int[] next = {0};
+        double withDigest = opsPerSecond(() -> list.count("candidate-" + (next[0]++ & 0xffff)));
+        System.out.printf("count(password) including SHA-1: %.0f ops/s (%.2f us)%n", withDigest, 1e6 / withDigest);
+    }
+    
+    /**
+     * Reused-password detection on large vaults: the fingerprint index cold (first query after
+     * a write, which rebuilds it) and warm, checking one candidate, and decrypting the whole
+     * vault as the lookup would cost without fingerprints. About one password in five is shared.
+     */
+    private static void reuseDetection(String[] args) throws Exception {
+        int[] sizes = args.length > 0
+                ? Arrays.stream(args).mapToInt(Integer::parseInt).toArray()
+                : new int[] {1000, 10000, 50000};
+        int rounds = 20;
+        
+        PasswordService passwordService = new PasswordService(new EncryptionService(), StorageWriter.fromEnvironment());
+        passwordService.buildIndex(passwordService.loadVaults());
+        Random random = new Random(42);
+        
+        for (int size : sizes) {
+            String userId = "reuse-" + size;
+            int distinct = Math.max(1, size * 4 / 5);
+            StringBuilder rows = new StringBuilder();
+            for (int i = 0; i < size; i++) {
+                rows.append("site").append(i).append(",user").append(i).append(",secret").append(random.nextInt(distinct)).append("\n");
+            }
+            passwordService.importPasswords(userId, new StringReader(rows.toString()), "csv");
+            
+            long[] adds = new long[rounds];
+            long[] cold = new long[rounds];
+            long[] warm = new long[rounds];
+            long[] checks = new long[rounds * 50];
+            long[] decryptAll = new long[rounds];
+            int reused = 0;
+            for (int r = 0; r < rounds; r++) {
+                long t = System.nanoTime();
+                passwordService.addPassword(userId, "added" + r, "user", "secret" + random.nextInt(distinct));
+                adds[r] = System.nanoTime() - t;
+                
+                t = System.nanoTime();
+                passwordService.getReuseGroups(userId);
+                cold[r] = System.nanoTime() - t;
+                t = System.nanoTime();
+                passwordService.getReuseGroups(userId);
+                warm[r] = System.nanoTime() - t;
+                
+                for (int i = 0; i < 50; i++) {
+                    String candidate = "secret" + random.nextInt(distinct * 2);
+                    t = System.nanoTime();
+                    reused += passwordService.findReuse(userId, candidate).isEmpty() ? 0 : 1;
+                    checks[r * 50 + i] = System.nanoTime() - t;
+                }
+                
+                t = System.nanoTime();
+                passwordService.getUserPasswords(userId);
+                decryptAll[r] = System.nanoTime() - t;
+            }
+            
+            System.out.printf("entries=%d  candidates already in use %d/%d%n", size, reused, checks.length);
+            reportMicros("  add              ", adds);
+            reportMicros("  groups (cold)    ", cold);
+            reportMicros("  groups (warm)    ", warm);
+            reportMicros("  check one        ", checks);
+            reportMicros("  decrypt whole    ", decryptAll);
+        }
+    }
+    
+    /**
+     * Storage scaling regression suite. A DatasetGenerator dataset (vault sizes from VAULT_SIZES,
+     * default lognormal:40:1.0) is grown to each total entry count in turn. At each size the data
+     * is loaded cold as at startup, for load time and retained heap per entry, and per-user
+     * operations are timed on random users. None of these should grow with the dataset, so any
+     * that grows more than SCALING_MAX_GROWTH times (default 3) over the smallest size is reported
+     * as a cliff and the run exits with status 3, for use as a pre-deploy check.
+     *
+     * Writes go through an async StorageWriter, so latencies are CPU and memory cost, not fsync.
+     * Generation hashes every account password; run with PBKDF2_ITERATIONS low.
+     */
+    private static void scalingRegression(String[] args) throws Exception {
+        long[] targets = args.length > 0
+                ? Arrays.stream(args).mapToLong(Long::parseLong).toArray()
+                : new long[] {1_000, 100_000, 1_000_000, 10_000_000};
+        double maxGrowth = Double.parseDouble(System.getenv().getOrDefault("SCALING_MAX_GROWTH", "3"));
+        DatasetGenerator.VaultSizes vaultSizes = DatasetGenerator.VaultSizes.parse(
+                System.getenv().getOrDefault("VAULT_SIZES", "lognormal:40:1.0"));
+        String[] metrics = {"load us/entry", "heap bytes/entry", "user lookup", "list vault", "changes",
+                "add", "update", "delete", "reuse check"};
+        
+        StorageWriter storage = StorageWriter.fromMode("async");
+        EncryptionService encryption = new EncryptionService();
+        AuthService authService = new AuthService("benchmark", storage, new SessionStore(storage));
+        authService.buildIndex(authService.loadUsers());
+        PasswordService passwordService = new PasswordService(encryption, storage);
+        passwordService.buildIndex(passwordService.loadVaults());
+        DatasetGenerator generator = new DatasetGenerator(authService, passwordService, vaultSizes, 42);
+        Random random = new Random(42);
+        double[] baseline = null;
+        List<String> cliffs = new ArrayList<>();
+        
+        for (long target : targets) {
+            long start = System.nanoTime();
+            generator.addEntries(target);
+            storage.flush();
+            long generateMillis = (System.nanoTime() - start) / 1_000_000;
+            int users = generator.users();
+            long entries = generator.entries();
+            
+            // Drop everything resident so the heap measured is the reload's alone
+            generator = null;
+            authService = null;
+            passwordService = null;
+            long loadNanos = 0;
+            long heapBytes = 0;
+            // The first load of the run is repeated, so the JIT is not measured
+            for (int round = baseline == null ? 0 : 1; round < 2; round++) {
+                authService = null;
+                passwordService = null;
+                long heapBefore = usedHeap();
+                start = System.nanoTime();
+                authService = new AuthService("benchmark", storage, new SessionStore(storage));
+                authService.buildIndex(authService.loadUsers());
+                passwordService = new PasswordService(encryption, storage);
+                passwordService.buildIndex(passwordService.loadVaults());
+                loadNanos = System.nanoTime() - start;
+                heapBytes = usedHeap() - heapBefore;
+            }
+            generator = new DatasetGenerator(authService, passwordService, vaultSizes, 42 + users);
+            generator.continueFrom(users, entries);
+            
+            System.out.printf("entries=%d users=%d (generated in %d ms)%n", entries, users, generateMillis);
+            System.out.printf("  load %d ms (%.2f us/entry), heap %d MB (%.0f bytes/entry)%n", loadNanos / 1_000_000,
+                    loadNanos / 1e3 / entries, heapBytes >> 20, (double) heapBytes / entries);
+            
+            List<String> userIds = passwordService.getUserIds();
+            long[][] samples = null;
+            // Two rounds, the first to warm up the JIT
+            for (int round = 0; round < 2; round++) {
+                samples = new long[metrics.length - 2][SAMPLES];
+                for (int i = 0; i < SAMPLES; i++) {
+                    String username = DatasetGenerator.username(random.nextInt(users));
+                    long t = System.nanoTime();
+                    authService.userExists(username);
+                    samples[0][i] = System.nanoTime() - t;
+                    
+                    String userId = userIds.get(random.nextInt(userIds.size()));
+                    t = System.nanoTime();
+                    String listing = passwordService.getUserPasswords(userId);
+                    samples[1][i] = System.nanoTime() - t;
+                    
+                    long version = passwordService.getVersion(userId);
+                    t = System.nanoTime();
+                    passwordService.addPassword(userId, "bench.example.com", "bench", "bench-secret");
+                    samples[3][i] = System.nanoTime() - t;
+                    
+                    // A client that last synced just before the add
+                    t = System.nanoTime();
+                    passwordService.getChangesSince(userId, version);
+                    samples[2][i] = System.nanoTime() - t;
+                    
+                    List<Long> ids = new ArrayList<>();
+                    Matcher m = Pattern.compile("\"id\": \"([^\"]+)\"").matcher(listing);
+                    while (m.find()) {
+                        ids.add(IdGenerator.parse(m.group(1)));
+                    }
+                    long id = ids.isEmpty() ? -1 : ids.get(random.nextInt(ids.size()));
+                    t = System.nanoTime();
+                    passwordService.updatePassword(userId, id, "bench.example.com", "bench", "rotated");
+                    samples[4][i] = System.nanoTime() - t;
+                    
+                    t = System.nanoTime();
+                    passwordService.deletePassword(userId, id);
+                    samples[5][i] = System.nanoTime() - t;
+                    
+                    t = System.nanoTime();
+                    passwordService.findReuse(userId, "bench-secret");
+                    samples[6][i] = System.nanoTime() - t;
+                }
+            }
+            
+            double[] values = new double[metrics.length];
+            values[0] = loadNanos / 1e3 / entries;
+            values[1] = (double) heapBytes / entries;
+            for (int op = 0; op < samples.length; op++) {
+                long[] sorted = samples[op].clone();
+                Arrays.sort(sorted);
+                values[op + 2] = percentile(sorted, 0.50) / 1e3;
+                reportMicros(String.format("  %-12s", metrics[op + 2]), samples[op]);
+            }
+            if (baseline == null) {
+                baseline = values;
+                continue;
+            }
+            for (int i = 0; i < metrics.length; i++) {
+                if (values[i] > baseline[i] * maxGrowth) {
+                    cliffs.add(String.format("%s at %d entries: %.2f against %.2f at %d (%.1fx)", metrics[i], entries,
+                            values[i], baseline[i], targets[0], values[i] / baseline[i]));
+                }
+            }
+        }
+        
+        if (!cliffs.isEmpty()) {
+            System.out.println("SCALING CLIFFS (more than " + maxGrowth + "x the smallest size; p50 for operations):");
+            for (String cliff : cliffs) {
+                System.out.println("  " + cliff);
+            }
+            System.exit(3);
+        }
+        System.out.println("No scaling cliffs (limit " + maxGrowth + "x the smallest size)");
+    }
+    
+    private static void reportMicros(String label, long[] nanos) {
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        System.out.printf("%s p50=%.2fus p99=%.2fus max=%.2fus%n", label,
+                percentile(sorted, 0.50) / 1e3, percentile(sorted, 0.99) / 1e3, sorted[sorted.length - 1] / 1e3);
+    }
+    
+    private interface Operation {
+        Object run() throws Exception;
+    }
+    
+    private static double opsPerSecond(Operation operation) throws Exception {
+        Object sink = null;
+        double rate = 0;
+        // Two rounds of warm-up, then the measured one
+        for (int round = 0; round < 3; round++) {
+            long ops = 0;
+            long start = System.nanoTime();
+            long end = start + 1_000_000_000L;
+            while (System.nanoTime() < end) {
+                for (int i = 0; i < 100; i++) {
+                    sink = operation.run();
+                }
+                ops += 100;
+            }
+            rate = ops / ((System.nanoTime() - start) / 1e9);
+        }
+        java.lang.ref.Reference.reachabilityFence(sink);
+        return rate;
+    }
+    
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+    
+    // The entry layout before the compact representation, kept for comparison
+    private static class StringEntry {
+        String id;
+        String userId;
+        String site;
+        String username;
+        String password;
+        String createdAt;
+        String updatedAt;
+        long version;
+    }
+    
+    private static List<String> seedVault(PasswordService passwordService, String userId, int size) throws Exception {
+        StringBuilder rows = new StringBuilder();
+        for (int i = 0; i < size; i++) {
+            rows.append("site").append(i).append(",user").append(i).append(",secret").append(i).append("\n");
+        }
+        passwordService.importPasswords(userId, new StringReader(rows.toString()), "csv");
+        
+        List<String> ids = new ArrayList<>();
+        Matcher m = Pattern.compile("\"id\": \"([^\"]+)\"").matcher(passwordService.getUserPasswords(userId));
+        while (m.find()) {
+            ids.add(m.group(1));
+        }
+        return ids;
+    }
+    
+    private static double runThreads(int threads, int callsPerThread, java.util.function.IntConsumer call) throws Exception {
+        CountDownLatch ready = new CountDownLatch(threads);
+        CountDownLatch go = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            workers[t] = new Thread(() -> {
+                ready.countDown();
+                try {
+                    go.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < callsPerThread; i++) {
+                    call.accept(thread);
+                }
+            });
+            workers[t].start();
+        }
+        ready.await();
+        long start = System.nanoTime();
+        go.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return (double) threads * callsPerThread / ((System.nanoTime() - start) / 1e9);
+    }
+    
+    // Baseline: the same bucket arithmetic under a monitor
+    private static class LockedBucket {
+        private final long intervalNanos;
+        private final long burstNanos;
+        private long arrival = System.nanoTime();
+        
+        LockedBucket(double permitsPerSecond, int burst) {
+            this.intervalNanos = (long) (1e9 / permitsPerSecond);
+            this.burstNanos = intervalNanos * burst;
+        }
+        
+        synchronized long tryAcquire() {
+            long now = System.nanoTime();
+            long next = (arrival - now < 0 ? now : arrival) + intervalNanos;
+            if (next - now > burstNanos) {
+                return next - now - burstNanos;
+            }
+            arrival = next;
+            return 0;
+        }
+    }
+    
+    private static long[] sampleVaultReads(HttpClient client, String baseUrl, String token) throws Exception {
+        long[] samples = new long[SAMPLES];
+        HttpRequest.Builder get = HttpRequest.newBuilder(URI.create(baseUrl + "/api/passwords"))
+                .header("Authorization", "Bearer " + token);
+        for (int i = 0; i < SAMPLES; i++) {
+            long start = System.nanoTime();
+            send(client, get);
+            samples[i] = System.nanoTime() - start;
+        }
+        return samples;
+    }
+    
+    private static long[] sampleGets(HttpClient client, String url) throws Exception {
+        long[] samples = new long[SAMPLES];
+        HttpRequest.Builder get = HttpRequest.newBuilder(URI.create(url));
+        for (int i = 0; i < SAMPLES; i++) {
+            long start = System.nanoTime();
+            send(client, get);
+            samples[i] = System.nanoTime() - start;
+        }
+        return samples;
+    }
+    
+    private static String startServer() throws Exception {
+        new PasswordManagerServer().start();
+        return "http://localhost:" + System.getenv().getOrDefault("PORT", "3000");
+    }
+    
+    private static String registerAndLogin(HttpClient client, String baseUrl, String username, String password) throws Exception {
+        String credentials = "{\"username\":\"" + username + "\",\"password\":\"" + password + "\"}";
+        send(client, HttpRequest.newBuilder(URI.create(baseUrl + "/api/register"))
+                .POST(HttpRequest.BodyPublishers.ofString(credentials)));
+        String body = send(client, HttpRequest.newBuilder(URI.create(baseUrl + "/api/login"))
+                .POST(HttpRequest.BodyPublishers.ofString(credentials))).body();
+        return body.replaceAll(".*\"token\":\"([^\"]+)\".*", "$1");
+    }
+    
+    private static HttpResponse<String> send(HttpClient client, HttpRequest.Builder request) throws Exception {
+        return client.send(request.build(), HttpResponse.BodyHandlers.ofString());
+    }
+    
+    static void report(String label, long[] nanos) {
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        System.out.printf("%s p50=%.3fms p99=%.3fms max=%.3fms%n", label,
+                percentile(sorted, 0.50) / 1e6, percentile(sorted, 0.99) / 1e6, sorted[sorted.length - 1] / 1e6);
+    }
+    
+    static long percentile(long[] sorted, double p) {
+        int index = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+}
\ No newline at end of file
@@ -2,26 +2,132 @@ import com.sun.net.httpserver.*;
 import java.io.*;
 import java.net.InetSocketAddress;
 import java.nio.file.*;
-import java.util.concurrent.Executors;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 import java.util.regex.Matcher;
+import java.util.zip.GZIPOutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
 
 public class PasswordManagerServer {
     private static final int PORT = Integer.parseInt(System.getenv().getOrDefault("PORT", "3000"));
     private static final String DATA_DIR = "data";
     private static final String JWT_SECRET = System.getenv().getOrDefault("JWT_SECRET", "your-secret-key-change-this-in-production");
+    // Each endpoint class runs on its own pool (threads, and requests allowed to queue for one),
+    // so saturating one class cannot starve the others
+    private static final int STATIC_THREADS = Integer.parseInt(System.getenv().getOrDefault("STATIC_THREADS", "4"));
+    private static final int STATIC_QUEUE_SIZE = Integer.parseInt(System.getenv().getOrDefault("STATIC_QUEUE_SIZE", "256"));
+    private static final int AUTH_THREADS = Integer.parseInt(System.getenv().getOrDefault("AUTH_THREADS",
+            String.valueOf(Runtime.getRuntime().availableProcessors())));
+    private static final int AUTH_QUEUE_SIZE = Integer.parseInt(System.getenv().getOrDefault("AUTH_QUEUE_SIZE", "64"));
+    private static final int VAULT_THREADS = Integer.parseInt(System.getenv().getOrDefault("VAULT_THREADS", "10"));
+    private static final int VAULT_QUEUE_SIZE = Integer.parseInt(System.getenv().getOrDefault("VAULT_QUEUE_SIZE", "256"));
+    private static final int ENCODER_THREADS = Integer.parseInt(System.getenv().getOrDefault("ENCODER_THREADS", "2"));
+    private static final int ENCODER_QUEUE_SIZE = Integer.parseInt(System.getenv().getOrDefault("ENCODER_QUEUE_SIZE", "64"));
+    private static final String RETRY_AFTER_SECONDS = "1";
+    // Requests that waited longer than this for a thread are answered 503 instead of served;
+    // hashing and encoder endpoints give up sooner than vault ones, static and health never do
+    private static final long SHED_DEADLINE_MS = Long.parseLong(System.getenv().getOrDefault("SHED_DEADLINE_MS", "1000"));
+    private static final long SHED_DEADLINE_CRYPTO_MS = Long.parseLong(System.getenv().getOrDefault("SHED_DEADLINE_CRYPTO_MS", "250"));
+    private static final boolean TRUST_PROXY = Boolean.parseBoolean(System.getenv().getOrDefault("TRUST_PROXY", "false"));
+    private static final int GZIP_MIN_BYTES = Integer.parseInt(System.getenv().getOrDefault("GZIP_MIN_BYTES", "1024"));
+    private static final int RESPONSE_CACHE_SIZE = Integer.parseInt(System.getenv().getOrDefault("RESPONSE_CACHE_SIZE", "256"));
+    private static final int DEFAULT_PAGE_SIZE = 100;
+    private static final int MAX_BATCH_OPERATIONS = Integer.parseInt(System.getenv().getOrDefault("MAX_BATCH_OPERATIONS", "1000"));
+    private static final boolean LAZY_STARTUP = Boolean.parseBoolean(System.getenv().getOrDefault("LAZY_STARTUP", "false"));
+    // Admin endpoints are disabled unless this is set
+    private static final String ADMIN_TOKEN = System.getenv("ADMIN_TOKEN");
+    // Log-shipping replication: with REPLICATION_PORT set this process streams its writes to
+    // standbys; with REPLICA_OF=host:port it is a read-only standby of that primary until promoted
+    private static final int REPLICATION_PORT = Integer.parseInt(System.getenv().getOrDefault("REPLICATION_PORT", "0"));
+    private static final String REPLICATION_BIND = System.getenv().getOrDefault("REPLICATION_BIND", "127.0.0.1");
+    private static final String REPLICATION_TOKEN = System.getenv("REPLICATION_TOKEN");
+    private static final String REPLICA_OF = System.getenv("REPLICA_OF");
+    private static final long REPLICATION_BACKLOG_MB = Long.parseLong(System.getenv().getOrDefault("REPLICATION_BACKLOG_MB", "64"));
+    // Sharding: with SHARD_BACKENDS this process is a router that authenticates and forwards vault
+    // requests; SHARD_SECRET is shared by the router, its backends and ShardRebalancer
+    private static final String SHARD_BACKENDS = System.getenv("SHARD_BACKENDS");
+    private static final String SHARD_SECRET = System.getenv("SHARD_SECRET");
+    static final int SHARD_VNODES = Integer.parseInt(System.getenv().getOrDefault("SHARD_VNODES", "160"));
+    private static final long SHARD_TIMEOUT_MS = Long.parseLong(System.getenv().getOrDefault("SHARD_TIMEOUT_MS", "10000"));
     
     private HttpServer server;
     private AuthService authService;
+    private SessionStore sessionStore;
     private EncryptionService encryptionService;
     private PasswordService passwordService;
+    private StorageWriter storage;
+    private InstrumentedExecutor authExecutor;
+    private InstrumentedExecutor vaultExecutor;
+    private InstrumentedExecutor encoderExecutor;
+    private KeyRotationJob keyRotation;
+    // Serialized vault listings; plaintext, so memory only
+    private final ResponseCache listingCache = new ResponseCache(RESPONSE_CACHE_SIZE, 1024 * 1024);
+    // Vault access trail, written off the request path (see AUDIT_* settings)
+    private final AuditLog auditLog = AuditLog.fromEnvironment();
+    // JSON-lines access and error logs, also written off the request path (see LOG_* settings)
+    private final RequestLog requestLog = RequestLog.fromEnvironment();
+    // Set once keys and data are loaded; the services above are published by this write
+    private volatile boolean ready;
+    // Set while this process is a standby; cleared by promotion
+    private volatile ReplicaFollower follower;
+    private volatile ReplicationLog replicationLog;
+    // Set in router mode
+    private ShardRouter shardRouter;
+    
+    // Smoothed API handler latency, read by background jobs to back off under load. Updates
+    // race benignly; it is a heuristic, not a measurement.
+    private volatile long latencyEwmaNanos;
+    private volatile long latencyUpdatedNanos;
+    
+    // Per-endpoint request budgets ("permitsPerSecond:burst"), keyed by client address or user
+    private final RateLimiter registerLimiter = RateLimiter.fromEnvironment("register", "RATE_LIMIT_REGISTER", "0.1:5");
+    private final RateLimiter loginLimiter = RateLimiter.fromEnvironment("login", "RATE_LIMIT_LOGIN", "1:10");
+    private final RateLimiter refreshLimiter = RateLimiter.fromEnvironment("refresh", "RATE_LIMIT_REFRESH", "5:20");
+    private final RateLimiter passwordsLimiter = RateLimiter.fromEnvironment("passwords", "RATE_LIMIT_PASSWORDS", "20:100");
+    private final RateLimiter passwordsUserLimiter = RateLimiter.fromEnvironment("passwords_user", "RATE_LIMIT_PASSWORDS_USER", "10:50");
+    private final RateLimiter encoderLimiter = RateLimiter.fromEnvironment("encoder", "RATE_LIMIT_ENCODER", "10:50");
+    private final RateLimiter adminLimiter = RateLimiter.fromEnvironment("admin", "RATE_LIMIT_ADMIN", "1:10");
+    private final RateLimiter shardAdminLimiter = RateLimiter.fromEnvironment("shard_admin", "RATE_LIMIT_SHARD_ADMIN", "500:1000");
     
     public PasswordManagerServer() throws Exception {
-        this.encryptionService = new EncryptionService();
-        this.authService = new AuthService(JWT_SECRET);
-        this.passwordService = new PasswordService(encryptionService);
+        // All data file writes go through one group-committing writer (see STORAGE_DURABILITY)
+        this.storage = StorageWriter.fromEnvironment();
+    }
+    
+    /**
+     * Loads the key and the data files and builds the resident indexes, timing each phase.
+     */
+    private void initialize() throws Exception {
+        long startupStart = System.nanoTime();
+        
+        long phaseStart = System.nanoTime();
+        // A standby starts from the primary's files, keys included, so it copies them first
+        if (REPLICA_OF != null) {
+            ReplicaFollower replica = new ReplicaFollower(REPLICA_OF, replicationToken(), storage, Paths.get(DATA_DIR));
+            replica.connect();
+            this.follower = replica;
+            logPhase("replica snapshot", phaseStart, "from " + REPLICA_OF);
+        }
         
+        phaseStart = System.nanoTime();
+        EncryptionService encryption = new EncryptionService();
+        logPhase("key load", phaseStart, "");
+        
+        phaseStart = System.nanoTime();
+        BreachList breaches = BreachList.fromEnvironment();
+        if (breaches != null) {
+            logPhase("breach list", phaseStart, breaches.size() + " hashes");
+        }
+        
+        phaseStart = System.nanoTime();
         // Ensure data directory exists
         Files.createDirectories(Paths.get(DATA_DIR));
         
@@ -29,29 +135,188 @@ public class PasswordManagerServer {
         if (!Files.exists(Paths.get(DATA_DIR + "/users.json"))) {
             Files.write(Paths.get(DATA_DIR + "/users.json"), "[]".getBytes());
         }
-        if (!Files.exists(Paths.get(DATA_DIR + "/passwords.json"))) {
-            Files.write(Paths.get(DATA_DIR + "/passwords.json"), "[]".getBytes());
+        
+        SessionStore sessions = new SessionStore(storage);
+        AuthService auth = new AuthService(JWT_SECRET, storage, sessions);
+        PasswordService passwords = new PasswordService(encryption, storage);
+        passwords.addChangeListener(listingCache::invalidate);
+        auth.setBreachList(breaches);
+        passwords.setBreachList(breaches);
+        passwords.setRequestLog(requestLog);
+        List<AuthService.User> users = auth.loadUsers();
+        sessions.load();
+        // Vaults are sharded per user under data/passwords/; a legacy passwords.json is migrated here
+        Map<String, PasswordService.Vault> vaults = passwords.loadVaults();
+        logPhase("data load", phaseStart, users.size() + " users, " + vaults.size() + " vaults");
+        
+        phaseStart = System.nanoTime();
+        auth.buildIndex(users);
+        passwords.buildIndex(vaults);
+        logPhase("index build", phaseStart, "");
+        
+        this.encryptionService = encryption;
+        this.authService = auth;
+        this.sessionStore = sessions;
+        this.passwordService = passwords;
+        this.keyRotation = new KeyRotationJob(passwords, encryption, this::recentLatencyNanos, requestLog);
+        if (SHARD_BACKENDS != null) {
+            shardRouter = new ShardRouter(HashRing.parse(SHARD_BACKENDS, SHARD_VNODES), shardSecret(), SHARD_TIMEOUT_MS, requestLog);
+            System.out.println("Sharding: routing vault requests to " + shardRouter.ring().backends());
+        }
+        if (follower == null) {
+            startReplication();
+        } else {
+            passwords.setReadOnly(true);
+        }
+        this.ready = true;
+        logPhase("load total", startupStart, "");
+        
+        if (follower == null) {
+            keyRotation.resumeIfInterrupted();
+        } else {
+            follower.start(this::applyReplicated);
+        }
+    }
+    
+    private static String replicationToken() {
+        if (REPLICATION_TOKEN == null || REPLICATION_TOKEN.isEmpty()) {
+            throw new IllegalStateException("REPLICATION_TOKEN must be set to use replication");
+        }
+        return REPLICATION_TOKEN;
+    }
+    
+    private static String shardSecret() {
+        if (SHARD_SECRET == null || SHARD_SECRET.isEmpty()) {
+            throw new IllegalStateException("SHARD_SECRET must be set to use sharding");
+        }
+        return SHARD_SECRET;
+    }
+    
+    // Every data write from here on is numbered and shipped to connected standbys
+    private void startReplication() throws IOException {
+        if (REPLICATION_PORT == 0) {
+            return;
+        }
+        ReplicationLog log = new ReplicationLog(storage, Paths.get(DATA_DIR), replicationToken(),
+                REPLICATION_BACKLOG_MB * 1024 * 1024);
+        storage.setListener(log);
+        encryptionService.setKeyListener(log);
+        log.start(REPLICATION_BIND, REPLICATION_PORT);
+        replicationLog = log;
+    }
+    
+    // Brings the in-memory state in line with a data file replication just replaced
+    private void applyReplicated(String name) throws Exception {
+        if (name.equals("users.json")) {
+            authService.buildIndex(authService.loadUsers());
+        } else if (name.equals("sessions.json")) {
+            sessionStore.load();
+        } else if (name.startsWith("passwords/")) {
+            String fileName = name.substring(name.lastIndexOf('/') + 1);
+            passwordService.reloadVault(fileName.substring(0, fileName.length() - ".json".length()));
+        } else {
+            encryptionService.reloadKeys();
+        }
+    }
+    
+    /**
+     * Makes this standby the primary: stops applying the stream, then takes writes (and, with
+     * REPLICATION_PORT, standbys of its own). Returns false if it is not a standby. The old
+     * primary must be stopped first; nothing here fences it off.
+     */
+    private synchronized boolean promote() throws Exception {
+        ReplicaFollower current = follower;
+        if (current == null) {
+            return false;
         }
+        current.stop();
+        passwordService.setReadOnly(false);
+        startReplication();
+        follower = null;
+        System.out.println("Replication: promoted to primary");
+        return true;
+    }
+    
+    private void logPhase(String phase, long startNanos, String detail) {
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+        System.out.println("Startup: " + phase + " took " + millis + " ms" + (detail.isEmpty() ? "" : " (" + detail + ")"));
     }
     
-    public void start() throws IOException {
+    public void start() throws Exception {
+        // With LAZY_STARTUP the socket is bound first so static files and /health answer while data loads
+        if (!LAZY_STARTUP) {
+            initialize();
+        }
+        
+        long phaseStart = System.nanoTime();
+        // Headers and body go out in separate writes; without TCP_NODELAY keep-alive clients
+        // wait out a delayed ACK (~40ms) on every response
+        System.setProperty("sun.net.httpserver.nodelay", "true");
         server = HttpServer.create(new InetSocketAddress(PORT), 0);
         
+        // Bulkheads: credential hashing, vault CRUD and the encoder utilities each get their own
+        // pool; static content, health and metrics stay on the server's own executor
+        authExecutor = new InstrumentedExecutor("auth", AUTH_THREADS, AUTH_QUEUE_SIZE);
+        vaultExecutor = new InstrumentedExecutor("vault", VAULT_THREADS, VAULT_QUEUE_SIZE);
+        encoderExecutor = new InstrumentedExecutor("encoder", ENCODER_THREADS, ENCODER_QUEUE_SIZE);
+        
         // API endpoints
-        server.createContext("/api/register", this::handleRegister);
-        server.createContext("/api/login", this::handleLogin);
-        server.createContext("/api/passwords", this::handlePasswords);
-        server.createContext("/api/encode", this::handleEncode);
-        server.createContext("/api/decode", this::handleDecode);
+        createContext("/api/register", this::handleRegister, registerLimiter, true, authExecutor, SHED_DEADLINE_CRYPTO_MS);
+        createContext("/api/login", this::handleLogin, loginLimiter, true, authExecutor, SHED_DEADLINE_CRYPTO_MS);
+        createContext("/api/refresh", this::handleRefresh, refreshLimiter, true, authExecutor, SHED_DEADLINE_MS);
+        createContext("/api/logout", this::handleLogout, refreshLimiter, true, authExecutor, SHED_DEADLINE_MS);
+        createContext("/api/passwords", this::handlePasswords, passwordsLimiter, true, vaultExecutor, SHED_DEADLINE_MS);
+        createContext("/api/admin/keys", this::handleAdminKeys, adminLimiter, true, vaultExecutor, SHED_DEADLINE_MS);
+        // Not a data endpoint: promotion is a write a standby must accept
+        createContext("/api/admin/replication", this::handleAdminReplication, adminLimiter, false, vaultExecutor, SHED_DEADLINE_MS);
+        createContext("/api/admin/shard", this::handleAdminShard, shardAdminLimiter, true, vaultExecutor, SHED_DEADLINE_MS);
+        createContext("/api/encode", this::handleEncode, encoderLimiter, false, encoderExecutor, SHED_DEADLINE_CRYPTO_MS);
+        createContext("/api/decode", this::handleDecode, encoderLimiter, false, encoderExecutor, SHED_DEADLINE_CRYPTO_MS);
+        server.createContext("/api/metrics", this::handleMetrics).getFilters().add(accessLog());
+        server.createContext("/health", this::handleHealth).getFilters().add(accessLog());
         
         // Static file serving
-        server.createContext("/", this::handleStaticFiles);
+        server.createContext("/", this::handleStaticFiles).getFilters().add(accessLog());
         
-        server.setExecutor(Executors.newFixedThreadPool(10));
+        Metrics.gauge("http.latency_ewma_micros", () -> recentLatencyNanos() / 1000);
+        
+        // Parses every request and hands API calls to their bulkhead. Static files, health and
+        // metrics run here and have no shedding filter, so they are served even by the overflow
+        // thread once the queue is full
+        server.setExecutor(new InstrumentedExecutor("static", STATIC_THREADS, STATIC_QUEUE_SIZE));
         server.start();
+        logPhase("socket bind", phaseStart, "");
         
         System.out.println("Password Manager running on http://localhost:" + PORT);
-        System.out.println("Encryption key generated for this session");
+        
+        if (LAZY_STARTUP) {
+            Thread loader = new Thread(() -> {
+                try {
+                    initialize();
+                } catch (Exception e) {
+                    System.err.println("Failed to load data: " + e.getMessage());
+                    e.printStackTrace();
+                    System.exit(1);
+                }
+            }, "startup-loader");
+            loader.start();
+        }
+    }
+    
+    // Readiness and rate limits are checked on the server thread, so refused requests never
+    // take a place in the bulkhead's queue; the rest of the chain runs on the bulkhead
+    private void createContext(String path, HttpHandler handler, RateLimiter limiter, boolean requiresData,
+            Executor bulkhead, long shedDeadlineMs) {
+        HttpContext context = server.createContext(path, handler);
+        context.getFilters().add(accessLog());
+        if (requiresData) {
+            context.getFilters().add(requireReady());
+            context.getFilters().add(rejectWritesOnStandby());
+        }
+        context.getFilters().add(rateLimitByAddress(limiter));
+        context.getFilters().add(handOff(bulkhead));
+        context.getFilters().add(shedWhenLate(TimeUnit.MILLISECONDS.toNanos(shedDeadlineMs)));
+        context.getFilters().add(trackLatency());
     }
     
     private void handleRegister(HttpExchange exchange) throws IOException {
@@ -60,16 +325,16 @@ public class PasswordManagerServer {
             return;
         }
         
+        String body = readRequestBody(exchange);
+        String username = extractJsonValue(body, "username");
+        String password = extractJsonValue(body, "password");
+        
+        if (username == null || password == null || username.trim().isEmpty() || password.trim().isEmpty()) {
+            sendResponse(exchange, 400, "{\"error\":\"Username and password required\"}");
+            return;
+        }
+        
         try {
-            String body = readRequestBody(exchange);
-            String username = extractJsonValue(body, "username");
-            String password = extractJsonValue(body, "password");
-            
-            if (username == null || password == null || username.trim().isEmpty() || password.trim().isEmpty()) {
-                sendResponse(exchange, 400, "{\"error\":\"Username and password required\"}");
-                return;
-            }
-            
             // Check if user already exists
             if (authService.userExists(username)) {
                 sendResponse(exchange, 400, "{\"error\":\"User already exists\"}");
@@ -77,11 +342,15 @@ public class PasswordManagerServer {
             }
             
             // Create user
-            authService.createUser(username, password);
+            if (!authService.createUser(username, password)) {
+                sendResponse(exchange, 400, "{\"error\":\"User already exists\"}");
+                return;
+            }
             sendResponse(exchange, 201, "{\"message\":\"User registered successfully\"}");
-            
+        } catch (IllegalArgumentException e) {
+            sendResponse(exchange, 400, "{\"error\":\"" + e.getMessage() + "\"}");
         } catch (Exception e) {
-            e.printStackTrace();
+            logError(exchange, e);
             sendResponse(exchange, 500, "{\"error\":\"Server error\"}");
         }
     }
@@ -92,30 +361,84 @@ public class PasswordManagerServer {
             return;
         }
         
+        String body = readRequestBody(exchange);
+        String username = extractJsonValue(body, "username");
+        String password = extractJsonValue(body, "password");
+        
+        if (username == null || password == null) {
+            sendResponse(exchange, 400, "{\"error\":\"Username and password required\"}");
+            return;
+        }
+        
         try {
-            String body = readRequestBody(exchange);
-            String username = extractJsonValue(body, "username");
-            String password = extractJsonValue(body, "password");
-            
-            if (username == null || password == null) {
-                sendResponse(exchange, 400, "{\"error\":\"Username and password required\"}");
-                return;
-            }
-            
-            String token = authService.authenticate(username, password);
-            if (token != null) {
-                String response = String.format("{\"token\":\"%s\",\"username\":\"%s\"}", token, username);
-                sendResponse(exchange, 200, response);
+            AuthService.Tokens tokens = authService.authenticate(username, password);
+            if (tokens != null) {
+                sendResponse(exchange, 200, tokensJson(tokens, username));
             } else {
                 sendResponse(exchange, 400, "{\"error\":\"Invalid credentials\"}");
             }
-            
         } catch (Exception e) {
-            e.printStackTrace();
+            logError(exchange, e);
             sendResponse(exchange, 500, "{\"error\":\"Server error\"}");
         }
     }
     
+    private void handleRefresh(HttpExchange exchange) throws IOException {
+        if (!"POST".equals(exchange.getRequestMethod())) {
+            sendResponse(exchange, 405, "{\"error\":\"Method not allowed\"}");
+            return;
+        }
+        
+        String refreshToken = extractJsonValue(readRequestBody(exchange), "refreshToken");
+        if (refreshToken == null) {
+            sendResponse(exchange, 400, "{\"error\":\"Refresh token required\"}");
+            return;
+        }
+        
+        try {
+            AuthService.Tokens tokens = authService.refresh(refreshToken);
+            if (tokens == null) {
+                sendResponse(exchange, 401, "{\"error\":\"Invalid refresh token\"}");
+                return;
+            }
+            sendResponse(exchange, 200, tokensJson(tokens, null));
+        } catch (Exception e) {
+            logError(exchange, e);
+            sendResponse(exchange, 500, "{\"error\":\"Server error\"}");
+        }
+    }
+    
+    // Ends the caller's session; with ?all=true, every session of the user
+    private void handleLogout(HttpExchange exchange) throws IOException {
+        if (!"POST".equals(exchange.getRequestMethod())) {
+            sendResponse(exchange, 405, "{\"error\":\"Method not allowed\"}");
+            return;
+        }
+        
+        String authHeader = exchange.getRequestHeaders().getFirst("Authorization");
+        if (authHeader == null || !authHeader.startsWith("Bearer ")) {
+            sendResponse(exchange, 401, "{\"error\":\"Access token required\"}");
+            return;
+        }
+        
+        try {
+            if (!authService.logout(authHeader.substring(7), "true".equals(queryParam(exchange, "all")))) {
+                sendResponse(exchange, 403, "{\"error\":\"Invalid token\"}");
+                return;
+            }
+            sendResponse(exchange, 200, "{\"message\":\"Logged out\"}");
+        } catch (Exception e) {
+            logError(exchange, e);
+            sendResponse(exchange, 500, "{\"error\":\"Server error\"}");
+        }
+    }
+    
+    private String tokensJson(AuthService.Tokens tokens, String username) {
+        return "{\"token\":\"" + tokens.accessToken + "\",\"refreshToken\":\"" + tokens.refreshToken
+                + "\",\"expiresIn\":" + AuthService.ACCESS_TOKEN_TTL_SECONDS
+                + (username != null ? ",\"username\":\"" + username + "\"" : "") + "}";
+    }
+    
     private void handlePasswords(HttpExchange exchange) throws IOException {
         String method = exchange.getRequestMethod();
         String path = exchange.getRequestURI().getPath();
@@ -126,25 +449,171 @@ public class PasswordManagerServer {
             return;
         }
         
-        // Authenticate user
-        String authHeader = exchange.getRequestHeaders().getFirst("Authorization");
-        if (authHeader == null || !authHeader.startsWith("Bearer ")) {
-            sendResponse(exchange, 401, "{\"error\":\"Access token required\"}");
-            return;
+        // A shard router has already authenticated the user and applied the per-user limit
+        String userId = routedUser(exchange);
+        if (userId == null) {
+            // Authenticate user
+            String authHeader = exchange.getRequestHeaders().getFirst("Authorization");
+            if (authHeader == null || !authHeader.startsWith("Bearer ")) {
+                sendResponse(exchange, 401, "{\"error\":\"Access token required\"}");
+                return;
+            }
+            
+            String token = authHeader.substring(7);
+            userId = authService.validateToken(token);
+            if (userId == null) {
+                sendResponse(exchange, 403, "{\"error\":\"Invalid token\"}");
+                return;
+            }
+            AccessLogStream.noteUser(exchange, userId);
+            
+            long waitNanos = passwordsUserLimiter.tryAcquire(userId);
+            if (waitNanos > 0) {
+                sendRateLimited(exchange, waitNanos);
+                return;
+            }
+            
+            if (shardRouter != null) {
+                // The owning backend handles and audits the request
+                shardRouter.forward(exchange, userId, clientAddress(exchange));
+                return;
+            }
+        } else {
+            AccessLogStream.noteUser(exchange, userId);
         }
         
-        String token = authHeader.substring(7);
-        String userId = authService.validateToken(token);
-        if (userId == null) {
-            sendResponse(exchange, 403, "{\"error\":\"Invalid token\"}");
+        String owner = passwordService.movedTo(userId);
+        if (owner != null) {
+            sendMoved(exchange, owner);
             return;
         }
         
         try {
             if ("GET".equals(method) && "/api/passwords".equals(path)) {
-                // Get all passwords for user
-                String passwords = passwordService.getUserPasswords(userId);
-                sendResponse(exchange, 200, passwords);
+                // Get all passwords for user; unchanged vaults are answered from the version alone
+                long version = passwordService.getVersion(userId);
+                String etag = listingEtag(userId, version);
+                if (etagMatches(exchange.getRequestHeaders().getFirst("If-None-Match"), etag)) {
+                    sendNotModified(exchange, etag);
+                    return;
+                }
+                
+                String after = queryParam(exchange, "after");
+                String limit = queryParam(exchange, "limit");
+                if (after != null || limit != null) {
+                    // One page in id order; pages are not cached
+                    long afterId = after == null ? -1 : IdGenerator.parse(after);
+                    if ((after != null && afterId < 0) || (limit != null && !limit.matches("[1-9]\\d{0,3}"))) {
+                        sendResponse(exchange, 400, "{\"error\":\"after must be an id and limit between 1 and 9999\"}");
+                        return;
+                    }
+                    PasswordService.Listing page = passwordService.getUserPasswordsPage(userId, afterId,
+                            limit == null ? DEFAULT_PAGE_SIZE : Integer.parseInt(limit));
+                    exchange.getResponseHeaders().set("ETag", listingEtag(userId, page.version));
+                    exchange.getResponseHeaders().set("Cache-Control", "private, no-cache");
+                    sendResponse(exchange, 200, page.json);
+                    return;
+                }
+                
+                byte[] body = listingCache.get(userId, version);
+                if (body == null) {
+                    PasswordService.Listing listing = passwordService.getUserPasswordsListing(userId);
+                    body = listing.json.getBytes(StandardCharsets.UTF_8);
+                    listingCache.put(userId, listing.version, body);
+                    etag = listingEtag(userId, listing.version);
+                }
+                exchange.getResponseHeaders().set("ETag", etag);
+                exchange.getResponseHeaders().set("Cache-Control", "private, no-cache");
+                sendResponse(exchange, 200, body);
+                
+            } else if ("GET".equals(method) && "/api/passwords/changes".equals(path)) {
+                // Delta sync: only what changed after the client's last seen version
+                String since = queryParam(exchange, "since");
+                if (since != null && !since.matches("\\d{1,18}")) {
+                    sendResponse(exchange, 400, "{\"error\":\"since must be a vault version\"}");
+                    return;
+                }
+                String changes = passwordService.getChangesSince(userId, since == null ? 0 : Long.parseLong(since));
+                sendResponse(exchange, 200, changes);
+                
+            } else if ("POST".equals(method) && "/api/passwords/import".equals(path)) {
+                // Bulk import; the body is streamed, never read into memory whole
+                String format = transferFormat(exchange);
+                if (format == null) {
+                    sendResponse(exchange, 400, "{\"error\":\"format must be csv or jsonl\"}");
+                    return;
+                }
+                PasswordService.ImportResult result;
+                try (Reader body = new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8)) {
+                    result = passwordService.importPasswords(userId, body, format);
+                } catch (IllegalArgumentException e) {
+                    sendResponse(exchange, 413, "{\"error\":\"" + e.getMessage() + "\"}");
+                    return;
+                }
+                sendResponse(exchange, 200, "{\"imported\":" + result.imported + ",\"skipped\":" + result.skipped + "}");
+                
+            } else if ("GET".equals(method) && "/api/passwords/export".equals(path)) {
+                String format = transferFormat(exchange);
+                if (format == null) {
+                    sendResponse(exchange, 400, "{\"error\":\"format must be csv or jsonl\"}");
+                    return;
+                }
+                sendExport(exchange, userId, format);
+                
+            } else if ("GET".equals(method) && "/api/passwords/reuse".equals(path)) {
+                // Entries sharing a password, matched by fingerprint; nothing is decrypted
+                sendResponse(exchange, 200, passwordService.getReuseGroups(userId));
+                
+            } else if ("POST".equals(method) && "/api/passwords/reuse/check".equals(path)) {
+                // Whether a candidate password is already used in the vault, before saving it
+                String password = extractJsonValue(readRequestBody(exchange), "password");
+                if (password == null) {
+                    sendResponse(exchange, 400, "{\"error\":\"password required\"}");
+                    return;
+                }
+                List<Long> ids = passwordService.findReuse(userId, password);
+                StringBuilder response = new StringBuilder("{\"reused\":").append(!ids.isEmpty()).append(",\"ids\":[");
+                for (int i = 0; i < ids.size(); i++) {
+                    response.append(i > 0 ? ",\"" : "\"").append(ids.get(i)).append("\"");
+                }
+                response.append("]}");
+                sendResponse(exchange, 200, response.toString());
+                
+            } else if ("POST".equals(method) && "/api/passwords/batch".equals(path)) {
+                // Several updates and deletes, persisted together in one commit
+                List<String> objects = extractObjectArray(readRequestBody(exchange), "operations");
+                if (objects == null || objects.isEmpty()) {
+                    sendResponse(exchange, 400, "{\"error\":\"operations array required\"}");
+                    return;
+                }
+                if (objects.size() > MAX_BATCH_OPERATIONS) {
+                    sendResponse(exchange, 413, "{\"error\":\"At most " + MAX_BATCH_OPERATIONS + " operations per batch\"}");
+                    return;
+                }
+                
+                List<PasswordService.BatchOperation> operations = new ArrayList<>();
+                for (String object : objects) {
+                    PasswordService.BatchOperation op = new PasswordService.BatchOperation();
+                    op.op = extractJsonValue(object, "op");
+                    op.id = extractJsonValue(object, "id");
+                    op.site = extractJsonValue(object, "site");
+                    op.username = extractJsonValue(object, "username");
+                    op.password = extractJsonValue(object, "password");
+                    operations.add(op);
+                }
+                List<String> statuses = passwordService.applyBatch(userId, operations);
+                
+                StringBuilder response = new StringBuilder("{\"results\":[");
+                for (int i = 0; i < statuses.size(); i++) {
+                    if (i > 0) {
+                        response.append(",");
+                    }
+                    String id = operations.get(i).id;
+                    response.append("{\"id\":").append(id == null ? "null" : "\"" + id + "\"")
+                            .append(",\"status\":\"").append(statuses.get(i)).append("\"}");
+                }
+                response.append("]}");
+                sendResponse(exchange, 200, response.toString());
                 
             } else if ("POST".equals(method) && "/api/passwords".equals(path)) {
                 // Add new password
@@ -163,7 +632,7 @@ public class PasswordManagerServer {
                 
             } else if ("PUT".equals(method) && path.startsWith("/api/passwords/")) {
                 // Update password
-                String passwordId = path.substring("/api/passwords/".length());
+                long passwordId = IdGenerator.parse(path.substring("/api/passwords/".length()));
                 String body = readRequestBody(exchange);
                 String site = extractJsonValue(body, "site");
                 String username = extractJsonValue(body, "username");
@@ -178,7 +647,7 @@ public class PasswordManagerServer {
                 
             } else if ("DELETE".equals(method) && path.startsWith("/api/passwords/")) {
                 // Delete password
-                String passwordId = path.substring("/api/passwords/".length());
+                long passwordId = IdGenerator.parse(path.substring("/api/passwords/".length()));
                 boolean deleted = passwordService.deletePassword(userId, passwordId);
                 if (deleted) {
                     sendResponse(exchange, 200, "{\"message\":\"Password deleted successfully\"}");
@@ -190,12 +659,476 @@ public class PasswordManagerServer {
                 sendResponse(exchange, 404, "{\"error\":\"Endpoint not found\"}");
             }
             
+        } catch (PasswordService.UserMovedException e) {
+            // Moved while this request was on its way
+            sendMoved(exchange, e.owner);
         } catch (Exception e) {
-            e.printStackTrace();
+            logError(exchange, e);
+            sendResponse(exchange, 500, "{\"error\":\"Server error\"}");
+        } finally {
+            audit(exchange, userId, method, path);
+        }
+    }
+    
+    // 421 Misdirected Request: the router retries at the backend named in the header
+    private void sendMoved(HttpExchange exchange, String owner) throws IOException {
+        exchange.getResponseHeaders().set(ShardRouter.OWNER_HEADER, owner);
+        sendResponse(exchange, 421, "{\"error\":\"Vault has moved to another shard\"}");
+    }
+    
+    // True for requests from a shard router or ShardRebalancer holding the shared secret
+    private boolean isShardPeer(HttpExchange exchange) {
+        String secret = exchange.getRequestHeaders().getFirst(ShardRouter.SECRET_HEADER);
+        return SHARD_SECRET != null && !SHARD_SECRET.isEmpty() && secret != null && MessageDigest.isEqual(
+                SHARD_SECRET.getBytes(StandardCharsets.UTF_8), secret.getBytes(StandardCharsets.UTF_8));
+    }
+    
+    // The user a router forwarded this request for; a router never takes one itself
+    private String routedUser(HttpExchange exchange) {
+        if (shardRouter != null || !isShardPeer(exchange)) {
+            return null;
+        }
+        return exchange.getRequestHeaders().getFirst(ShardRouter.USER_HEADER);
+    }
+    
+    // Every authenticated vault request is audited with its outcome; queuing the event is all
+    // the request thread does
+    private void audit(HttpExchange exchange, String userId, String method, String path) {
+        int status = exchange.getResponseCode();
+        String action;
+        switch (method) {
+            case "GET":
+                // A 304 told the client nothing new; anything else may have carried passwords
+                action = path.startsWith("/api/passwords/reuse") ? "reuse" : status == 304 ? "read" : "reveal";
+                break;
+            case "POST":
+                action = "/api/passwords/batch".equals(path) ? "batch"
+                        : path.startsWith("/api/passwords/reuse") ? "reuse" : "add";
+                break;
+            case "PUT":
+                action = "update";
+                break;
+            case "DELETE":
+                action = "delete";
+                break;
+            default:
+                return;
+        }
+        String target = null;
+        if (("PUT".equals(method) || "DELETE".equals(method)) && path.startsWith("/api/passwords/")) {
+            target = path.substring("/api/passwords/".length());
+        }
+        auditLog.record(action, userId, target, status, clientAddress(exchange));
+    }
+    
+    private String transferFormat(HttpExchange exchange) {
+        String format = queryParam(exchange, "format");
+        if (format == null) {
+            return "jsonl";
+        }
+        return VaultTransfer.isSupported(format) ? format : null;
+    }
+    
+    // Streams the export as a chunked response; a failure part way through can only abort the connection
+    private void sendExport(HttpExchange exchange, String userId, String format) throws IOException {
+        boolean gzip = acceptsGzip(exchange);
+        exchange.getResponseHeaders().set("Content-Type", "csv".equals(format) ? "text/csv" : "application/x-ndjson");
+        exchange.getResponseHeaders().set("Content-Disposition", "attachment; filename=\"vault." + format + "\"");
+        exchange.getResponseHeaders().set("Cache-Control", "no-store");
+        exchange.getResponseHeaders().set("Access-Control-Allow-Origin", "*");
+        exchange.getResponseHeaders().set("Vary", "Accept-Encoding");
+        if (gzip) {
+            exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+        }
+        exchange.sendResponseHeaders(200, 0);
+        
+        OutputStream body = exchange.getResponseBody();
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(
+                gzip ? new GZIPOutputStream(body, 8192) : body, StandardCharsets.UTF_8), 8192)) {
+            passwordService.exportPasswords(userId, format, out);
+        } catch (IOException e) {
+            // Client went away mid-download
+            exchange.close();
+        } catch (Exception e) {
+            logError(exchange, e);
+            exchange.close();
+        }
+    }
+    
+    /**
+     * GET reports the active key and re-encryption progress; POST .../rotate switches to a new
+     * key and starts re-encrypting every vault in the background.
+     */
+    private boolean isAdmin(HttpExchange exchange) {
+        String authHeader = exchange.getRequestHeaders().getFirst("Authorization");
+        return ADMIN_TOKEN != null && authHeader != null && MessageDigest.isEqual(
+                ("Bearer " + ADMIN_TOKEN).getBytes(StandardCharsets.UTF_8), authHeader.getBytes(StandardCharsets.UTF_8));
+    }
+    
+    private void handleAdminKeys(HttpExchange exchange) throws IOException {
+        if (!isAdmin(exchange)) {
+            sendResponse(exchange, 403, "{\"error\":\"Admin access required\"}");
+            return;
+        }
+        
+        String method = exchange.getRequestMethod();
+        String path = exchange.getRequestURI().getPath();
+        try {
+            if ("GET".equals(method) && "/api/admin/keys".equals(path)) {
+                sendResponse(exchange, 200, keyRotation.toJson());
+            } else if ("POST".equals(method) && "/api/admin/keys/rotate".equals(path)) {
+                if (!keyRotation.rotate()) {
+                    sendResponse(exchange, 409, "{\"error\":\"A key rotation is already running\"}");
+                    return;
+                }
+                sendResponse(exchange, 202, keyRotation.toJson());
+            } else {
+                sendResponse(exchange, 404, "{\"error\":\"Endpoint not found\"}");
+            }
+        } catch (Exception e) {
+            logError(exchange, e);
+            sendResponse(exchange, 500, "{\"error\":\"Server error\"}");
+        }
+    }
+    
+    private void handleAdminReplication(HttpExchange exchange) throws IOException {
+        if (!isAdmin(exchange)) {
+            sendResponse(exchange, 403, "{\"error\":\"Admin access required\"}");
+            return;
+        }
+        
+        String method = exchange.getRequestMethod();
+        String path = exchange.getRequestURI().getPath();
+        try {
+            if ("GET".equals(method) && "/api/admin/replication".equals(path)) {
+                sendResponse(exchange, 200, replicationJson());
+            } else if ("POST".equals(method) && "/api/admin/replication/promote".equals(path)) {
+                if (!ready) {
+                    exchange.getResponseHeaders().set("Retry-After", RETRY_AFTER_SECONDS);
+                    sendResponse(exchange, 503, "{\"error\":\"Server is starting, please retry\"}");
+                    return;
+                }
+                if (!promote()) {
+                    sendResponse(exchange, 409, "{\"error\":\"Not a standby\"}");
+                    return;
+                }
+                sendResponse(exchange, 200, replicationJson());
+            } else {
+                sendResponse(exchange, 404, "{\"error\":\"Endpoint not found\"}");
+            }
+        } catch (Exception e) {
+            logError(exchange, e);
             sendResponse(exchange, 500, "{\"error\":\"Server error\"}");
         }
     }
     
+    /**
+     * Backend side of moving users between shards, for ShardRebalancer: GET .../users lists the
+     * vaults held here; GET .../vault?userId= exports one (version in X-Vault-Version);
+     * PUT .../vault?userId=&expectedVersion= imports one; POST .../release?userId=&version=&owner=
+     * hands one over. Only with the shard secret.
+     */
+    private void handleAdminShard(HttpExchange exchange) throws IOException {
+        if (!isShardPeer(exchange)) {
+            sendResponse(exchange, 403, "{\"error\":\"Shard access required\"}");
+            return;
+        }
+        
+        String method = exchange.getRequestMethod();
+        String path = exchange.getRequestURI().getPath();
+        String userId = queryParam(exchange, "userId");
+        try {
+            if ("GET".equals(method) && "/api/admin/shard/users".equals(path)) {
+                StringBuilder json = new StringBuilder("{\"users\":[");
+                String separator = "";
+                for (String id : passwordService.getUserIds()) {
+                    json.append(separator).append('"').append(id).append('"');
+                    separator = ",";
+                }
+                sendResponse(exchange, 200, json.append("]}").toString());
+            } else if (!path.equals("/api/admin/shard/vault") && !path.equals("/api/admin/shard/release")) {
+                sendResponse(exchange, 404, "{\"error\":\"Endpoint not found\"}");
+            } else if (userId == null || !userId.matches("[A-Za-z0-9_-]+")) {
+                sendResponse(exchange, 400, "{\"error\":\"userId is required\"}");
+            } else if ("GET".equals(method) && path.endsWith("/vault")) {
+                PasswordService.Transfer transfer = passwordService.exportForTransfer(userId,
+                        EncryptionService.transferKey(SHARD_SECRET));
+                exchange.getResponseHeaders().set("X-Vault-Version", String.valueOf(transfer.version));
+                exchange.getResponseHeaders().set("Cache-Control", "no-store");
+                sendResponse(exchange, 200, transfer.content);
+            } else if ("PUT".equals(method) && path.endsWith("/vault")) {
+                String expected = queryParam(exchange, "expectedVersion");
+                // Read as is: the vault format depends on its line breaks
+                String content = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+                if (!passwordService.importTransferred(userId, content,
+                        EncryptionService.transferKey(SHARD_SECRET), expected == null ? 0 : Long.parseLong(expected))) {
+                    sendResponse(exchange, 409, "{\"error\":\"A different copy of this vault is already here\"}");
+                    return;
+                }
+                sendResponse(exchange, 200, "{\"imported\":true}");
+            } else if ("POST".equals(method) && path.endsWith("/release")) {
+                String version = queryParam(exchange, "version");
+                String owner = queryParam(exchange, "owner");
+                if (version == null || owner == null || !owner.matches("https?://[A-Za-z0-9.:\\[\\]_-]+")) {
+                    sendResponse(exchange, 400, "{\"error\":\"version and owner are required\"}");
+                    return;
+                }
+                if (!passwordService.release(userId, Long.parseLong(version), owner)) {
+                    sendResponse(exchange, 409, "{\"error\":\"Vault changed since it was copied\"}");
+                    return;
+                }
+                sendResponse(exchange, 200, "{\"released\":true}");
+            } else {
+                sendResponse(exchange, 405, "{\"error\":\"Method not allowed\"}");
+            }
+        } catch (PasswordService.UserMovedException e) {
+            sendMoved(exchange, e.owner);
+        } catch (NumberFormatException e) {
+            sendResponse(exchange, 400, "{\"error\":\"Invalid version\"}");
+        } catch (IllegalArgumentException e) {
+            sendResponse(exchange, 400, "{\"error\":\"" + e.getMessage() + "\"}");
+        } catch (Exception e) {
+            logError(exchange, e);
+            sendResponse(exchange, 500, "{\"error\":\"Server error\"}");
+        }
+    }
+    
+    private String replicationJson() {
+        ReplicaFollower currentFollower = follower;
+        if (currentFollower != null) {
+            return currentFollower.toJson();
+        }
+        ReplicationLog log = replicationLog;
+        return log != null ? log.toJson() : "{\"role\":\"standalone\"}";
+    }
+    
+    private void handleMetrics(HttpExchange exchange) throws IOException {
+        if (!"GET".equals(exchange.getRequestMethod())) {
+            sendResponse(exchange, 405, "{\"error\":\"Method not allowed\"}");
+            return;
+        }
+        sendResponse(exchange, 200, Metrics.toJson());
+    }
+    
+    private void handleHealth(HttpExchange exchange) throws IOException {
+        sendResponse(exchange, 200, ready ? "{\"status\":\"ok\"}" : "{\"status\":\"starting\"}");
+    }
+    
+    // The access log line is written when the response body is closed, not when the filter
+    // chain returns: API requests finish on their bulkhead pool after the chain is done
+    private Filter accessLog() {
+        return new Filter() {
+            @Override
+            public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+                AccessLogStream body = new AccessLogStream(exchange, exchange.getResponseBody());
+                exchange.setStreams(null, body);
+                try {
+                    chain.doFilter(exchange);
+                } catch (IOException | RuntimeException e) {
+                    // The server drops the connection without closing the body
+                    body.log();
+                    throw e;
+                }
+            }
+            
+            @Override
+            public String description() {
+                return "Writes an access log line per response";
+            }
+        };
+    }
+    
+    private void logError(HttpExchange exchange, Exception e) {
+        requestLog.error(exchange.getRequestMethod(), exchange.getRequestURI().getPath(), e);
+    }
+    
+    private Filter trackLatency() {
+        return new Filter() {
+            @Override
+            public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+                long start = System.nanoTime();
+                try {
+                    chain.doFilter(exchange);
+                } finally {
+                    long now = System.nanoTime();
+                    latencyEwmaNanos += (now - start - latencyEwmaNanos) / 8;
+                    latencyUpdatedNanos = now;
+                }
+            }
+            
+            @Override
+            public String description() {
+                return "Keeps a moving average of handler latency";
+            }
+        };
+    }
+    
+    // An idle server counts as fast, so a stale slow average cannot stall background work
+    private long recentLatencyNanos() {
+        return System.nanoTime() - latencyUpdatedNanos > TimeUnit.SECONDS.toNanos(1) ? 0 : latencyEwmaNanos;
+    }
+    
+    /**
+     * Continues the filter chain on the given pool and returns at once; the bulkhead thread
+     * completes the exchange. When the pool cannot take more, the client gets 503 with Retry-After.
+     */
+    private Filter handOff(Executor bulkhead) {
+        return new Filter() {
+            @Override
+            public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+                try {
+                    bulkhead.execute(() -> {
+                        try {
+                            chain.doFilter(exchange);
+                        } catch (Exception e) {
+                            logError(exchange, e);
+                            try {
+                                sendResponse(exchange, 500, "{\"error\":\"Server error\"}");
+                            } catch (IOException ignored) {
+                                // Client is gone, or the response had already started
+                                exchange.close();
+                            }
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    Metrics.increment("http.shed");
+                    exchange.getResponseHeaders().set("Retry-After", RETRY_AFTER_SECONDS);
+                    sendResponse(exchange, 503, "{\"error\":\"Server busy, please retry\"}");
+                }
+            }
+            
+            @Override
+            public String description() {
+                return "Runs the handler on its endpoint class's pool";
+            }
+        };
+    }
+    
+    // By the time a request has queued past its deadline the client has likely given up or is
+    // about to retry; serving it anyway only makes the queue behind it longer
+    private Filter shedWhenLate(long deadlineNanos) {
+        return new Filter() {
+            @Override
+            public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+                if (InstrumentedExecutor.currentQueueWaitNanos() > deadlineNanos) {
+                    Metrics.increment("http.shed");
+                    exchange.getResponseHeaders().set("Retry-After", RETRY_AFTER_SECONDS);
+                    sendResponse(exchange, 503, "{\"error\":\"Server busy, please retry\"}");
+                    return;
+                }
+                chain.doFilter(exchange);
+            }
+            
+            @Override
+            public String description() {
+                return "Answers 503 to requests that waited too long for a thread";
+            }
+        };
+    }
+    
+    private Filter requireReady() {
+        return new Filter() {
+            @Override
+            public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+                if (!ready) {
+                    exchange.getResponseHeaders().set("Retry-After", RETRY_AFTER_SECONDS);
+                    sendResponse(exchange, 503, "{\"error\":\"Server is starting, please retry\"}");
+                    return;
+                }
+                chain.doFilter(exchange);
+            }
+            
+            @Override
+            public String description() {
+                return "Rejects data requests until startup has loaded the data";
+            }
+        };
+    }
+    
+    // A standby's data changes only through replication; writes belong on the primary
+    private Filter rejectWritesOnStandby() {
+        return new Filter() {
+            @Override
+            public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+                String method = exchange.getRequestMethod();
+                if (follower != null && !"GET".equals(method) && !"HEAD".equals(method) && !"OPTIONS".equals(method)) {
+                    sendResponse(exchange, 503, "{\"error\":\"Read-only standby, send writes to the primary\"}");
+                    return;
+                }
+                chain.doFilter(exchange);
+            }
+            
+            @Override
+            public String description() {
+                return "Rejects writes while this process is a replication standby";
+            }
+        };
+    }
+    
+    private Filter rateLimitByAddress(RateLimiter limiter) {
+        return new Filter() {
+            @Override
+            public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+                long waitNanos = limiter.tryAcquire(clientAddress(exchange));
+                if (waitNanos > 0) {
+                    sendRateLimited(exchange, waitNanos);
+                    return;
+                }
+                chain.doFilter(exchange);
+            }
+            
+            @Override
+            public String description() {
+                return "Per-address rate limit";
+            }
+        };
+    }
+    
+    private String clientAddress(HttpExchange exchange) {
+        // Behind a reverse proxy or shard router every request comes from it, so use the client it reports
+        if (TRUST_PROXY || isShardPeer(exchange)) {
+            String forwardedFor = exchange.getRequestHeaders().getFirst("X-Forwarded-For");
+            if (forwardedFor != null && !forwardedFor.isEmpty()) {
+                return forwardedFor.split(",")[0].trim();
+            }
+        }
+        return exchange.getRemoteAddress().getAddress().getHostAddress();
+    }
+    
+    private void sendRateLimited(HttpExchange exchange, long waitNanos) throws IOException {
+        long retryAfter = Math.max(1, TimeUnit.NANOSECONDS.toSeconds(waitNanos + TimeUnit.SECONDS.toNanos(1) - 1));
+        exchange.getResponseHeaders().set("Retry-After", String.valueOf(retryAfter));
+        sendResponse(exchange, 429, "{\"error\":\"Too many requests\"}");
+    }
+    
+    private String listingEtag(String userId, long version) {
+        return "W/\"" + userId + "." + version + "\"";
+    }
+    
+    private boolean etagMatches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        String opaque = etag.substring(2);
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.equals("*") || candidate.equals(etag) || candidate.equals(opaque)) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    private void sendNotModified(HttpExchange exchange, String etag) throws IOException {
+        Metrics.increment("etag.not_modified");
+        exchange.getResponseHeaders().set("ETag", etag);
+        exchange.getResponseHeaders().set("Cache-Control", "private, no-cache");
+        exchange.getResponseHeaders().set("Access-Control-Allow-Origin", "*");
+        exchange.getResponseHeaders().set("Access-Control-Expose-Headers", "ETag");
+        exchange.sendResponseHeaders(304, -1);
+        exchange.close();
+    }
+    
     private void handleStaticFiles(HttpExchange exchange) throws IOException {
         String path = exchange.getRequestURI().getPath();
         if ("/".equals(path)) {
@@ -238,6 +1171,57 @@ public class PasswordManagerServer {
         return null;
     }
     
+    // Returns the objects of the array under key, or null if there is no such array.
+    // Braces inside string values are skipped; the rest of the parsing stays regex based.
+    private List<String> extractObjectArray(String json, String key) {
+        Matcher m = Pattern.compile("\"" + key + "\":\\s*\\[").matcher(json);
+        if (!m.find()) {
+            return null;
+        }
+        List<String> objects = new ArrayList<>();
+        int depth = 0;
+        int start = -1;
+        boolean inString = false;
+        for (int i = m.end(); i < json.length(); i++) {
+            char c = json.charAt(i);
+            if (inString) {
+                if (c == '\\') {
+                    i++;
+                } else if (c == '"') {
+                    inString = false;
+                }
+            } else if (c == '"') {
+                inString = true;
+            } else if (c == '{') {
+                if (depth++ == 0) {
+                    start = i;
+                }
+            } else if (c == '}') {
+                if (--depth == 0) {
+                    objects.add(json.substring(start, i + 1));
+                }
+            } else if (c == ']' && depth == 0) {
+                return objects;
+            }
+        }
+        return null;
+    }
+    
+    private String queryParam(HttpExchange exchange, String name) {
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query == null) {
+            return null;
+        }
+        for (String pair : query.split("&")) {
+            int eq = pair.indexOf('=');
+            String key = eq < 0 ? pair : pair.substring(0, eq);
+            if (key.equals(name)) {
+                return eq < 0 ? "" : java.net.URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8);
+            }
+        }
+        return null;
+    }
+    
     private String readRequestBody(HttpExchange exchange) throws IOException {
         try (BufferedReader reader = new BufferedReader(
                 new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8))) {
@@ -253,18 +1237,28 @@ public class PasswordManagerServer {
     private void sendCorsResponse(HttpExchange exchange) throws IOException {
         exchange.getResponseHeaders().set("Access-Control-Allow-Origin", "*");
         exchange.getResponseHeaders().set("Access-Control-Allow-Methods", "GET, POST, PUT, DELETE, OPTIONS");
-        exchange.getResponseHeaders().set("Access-Control-Allow-Headers", "Content-Type, Authorization");
+        exchange.getResponseHeaders().set("Access-Control-Allow-Headers", "Content-Type, Authorization, If-None-Match");
         exchange.sendResponseHeaders(200, 0);
         exchange.getResponseBody().close();
     }
     
     private void sendResponse(HttpExchange exchange, int statusCode, String response) throws IOException {
+        sendResponse(exchange, statusCode, response.getBytes(StandardCharsets.UTF_8));
+    }
+    
+    private void sendResponse(HttpExchange exchange, int statusCode, byte[] responseBytes) throws IOException {
         exchange.getResponseHeaders().set("Content-Type", "application/json");
         exchange.getResponseHeaders().set("Access-Control-Allow-Origin", "*");
         exchange.getResponseHeaders().set("Access-Control-Allow-Methods", "GET, POST, PUT, DELETE, OPTIONS");
-        exchange.getResponseHeaders().set("Access-Control-Allow-Headers", "Content-Type, Authorization");
+        exchange.getResponseHeaders().set("Access-Control-Allow-Headers", "Content-Type, Authorization, If-None-Match");
+        
+        exchange.getResponseHeaders().set("Access-Control-Expose-Headers", "ETag");
+        exchange.getResponseHeaders().set("Vary", "Accept-Encoding");
         
-        byte[] responseBytes = response.getBytes(StandardCharsets.UTF_8);
+        if (responseBytes.length >= GZIP_MIN_BYTES && acceptsGzip(exchange)) {
+            sendGzipped(exchange, statusCode, responseBytes);
+            return;
+        }
         exchange.sendResponseHeaders(statusCode, responseBytes.length);
         
         try (OutputStream os = exchange.getResponseBody()) {
@@ -272,6 +1266,114 @@ public class PasswordManagerServer {
         }
     }
     
+    // Compresses straight into the chunked response stream, so the body is never buffered twice
+    private void sendGzipped(HttpExchange exchange, int statusCode, byte[] responseBytes) throws IOException {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long cpuStart = threads.getCurrentThreadCpuTime();
+        
+        exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+        exchange.sendResponseHeaders(statusCode, 0);
+        CountingOutputStream counter = new CountingOutputStream(exchange.getResponseBody());
+        try (OutputStream os = new GZIPOutputStream(counter, 8192)) {
+            os.write(responseBytes);
+        }
+        
+        Metrics.increment("gzip.responses");
+        Metrics.add("gzip.bytes_in", responseBytes.length);
+        Metrics.add("gzip.bytes_out", counter.count);
+        Metrics.add("gzip.bytes_saved", responseBytes.length - counter.count);
+        if (cpuStart >= 0) {
+            Metrics.add("gzip.cpu_micros", (threads.getCurrentThreadCpuTime() - cpuStart) / 1000);
+        }
+    }
+    
+    private boolean acceptsGzip(HttpExchange exchange) {
+        String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parts = coding.trim().split(";");
+            String name = parts[0].trim();
+            if (name.equalsIgnoreCase("gzip") || name.equals("*")) {
+                // "gzip;q=0" means the client explicitly refuses it
+                return !(parts.length > 1 && parts[1].trim().matches("q=0(\\.0*)?"));
+            }
+        }
+        return false;
+    }
+    
+    // Counts the bytes sent (after compression) and logs the request once, on close
+    private class AccessLogStream extends FilterOutputStream {
+        private final HttpExchange exchange;
+        private final long start = System.nanoTime();
+        private long bytes;
+        private String userId;
+        private boolean logged;
+        
+        AccessLogStream(HttpExchange exchange, OutputStream out) {
+            super(out);
+            this.exchange = exchange;
+        }
+        
+        static void noteUser(HttpExchange exchange, String userId) {
+            if (exchange.getResponseBody() instanceof AccessLogStream) {
+                ((AccessLogStream) exchange.getResponseBody()).userId = userId;
+            }
+        }
+        
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            bytes++;
+        }
+        
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            bytes += len;
+        }
+        
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                log();
+            }
+        }
+        
+        void log() {
+            if (logged) {
+                return;
+            }
+            logged = true;
+            int status = exchange.getResponseCode();
+            requestLog.access(exchange.getRequestMethod(), exchange.getRequestURI().getPath(),
+                    status == -1 ? 500 : status, System.nanoTime() - start, userId, bytes, clientAddress(exchange));
+        }
+    }
+    
+    private static class CountingOutputStream extends FilterOutputStream {
+        long count;
+        
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+        
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+        
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+    
     private void handleEncode(HttpExchange exchange) throws IOException {
         if (!"POST".equals(exchange.getRequestMethod())) {
             sendResponse(exchange, 405, "{\"error\":\"Method not allowed\"}");
@@ -299,7 +1401,7 @@ public class PasswordManagerServer {
             sendResponse(exchange, 200, response);
             
         } catch (Exception e) {
-            e.printStackTrace();
+            logError(exchange, e);
             sendResponse(exchange, 500, "{\"error\":\"Server error\"}");
         }
     }
@@ -331,7 +1433,7 @@ public class PasswordManagerServer {
             sendResponse(exchange, 200, response);
             
         } catch (Exception e) {
-            e.printStackTrace();
+            logError(exchange, e);
             sendResponse(exchange, 500, "{\"error\":\"Server error\"}");
         }
     }
@@ -1,38 +1,264 @@
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardCopyOption;
 import java.time.Instant;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import javax.crypto.SecretKey;
 
 public class PasswordService {
-    private static final String PASSWORDS_FILE = "data/passwords.json";
+    private static final String PASSWORDS_DIR = "data/passwords";
+    private static final String LEGACY_PASSWORDS_FILE = "data/passwords.json";
+    private static final int SHARD_BUCKETS = 256;
+    private static final int MAX_TOMBSTONES = Integer.parseInt(System.getenv().getOrDefault("MAX_TOMBSTONES", "1000"));
+    private static final int MAX_IMPORT_ENTRIES = Integer.parseInt(System.getenv().getOrDefault("MAX_IMPORT_ENTRIES", "50000"));
+    private static final int IMPORT_BATCH_SIZE = 256;
+    // Shared site names; sites beyond the cap are stored per entry, so clients cannot grow it unbounded
+    private static final StringDictionary SITES = new StringDictionary("sites",
+            Integer.parseInt(System.getenv().getOrDefault("SITE_DICTIONARY_SIZE", "10000")));
+    private static final boolean LAZY_REENCRYPT = !"false".equalsIgnoreCase(System.getenv("LAZY_REENCRYPT"));
+    private static final int DATA_KEY_CACHE_SIZE = Integer.parseInt(System.getenv().getOrDefault("DATA_KEY_CACHE_SIZE", "1000"));
+    private static final long DATA_KEY_TTL_SECONDS = Long.parseLong(System.getenv().getOrDefault("DATA_KEY_TTL_SECONDS", "300"));
     private final EncryptionService encryptionService;
+    private final DataKeyCache dataKeys;
+    private final StorageWriter storage;
+    private final ConcurrentHashMap<String, Object> userLocks = new ConcurrentHashMap<>();
     
-    public PasswordService(EncryptionService encryptionService) {
+    // Resident index: userId -> that user's vault. Vaults are never mutated once published;
+    // writers build a new one under the user's lock, persist it, then swap it in.
+    private final ConcurrentHashMap<String, Vault> vaults = new ConcurrentHashMap<>();
+    private volatile boolean indexBuilt;
+    private final List<Consumer<String>> changeListeners = new CopyOnWriteArrayList<>();
+    // Users whose vault was moved to another shard backend: userId -> that backend's URL.
+    // Their shard file holds just this marker, so it survives restarts and replicates.
+    private final ConcurrentHashMap<String, String> moved = new ConcurrentHashMap<>();
+    // On a replication standby files change only by replication, so nothing here may write
+    private volatile boolean readOnly;
+    // Breach corpus new and changed passwords are checked against; null when not configured
+    private volatile BreachList breaches;
+    // Where background failures started by requests are reported; stderr when not set
+    private volatile RequestLog requestLog;
+    
+    // Vaults seen on read with ciphertexts in an old format, waiting to be re-encrypted
+    private final Set<String> pendingReencrypt = ConcurrentHashMap.newKeySet();
+    private final ExecutorService reencryptExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "reencrypt");
+        thread.setDaemon(true);
+        return thread;
+    });
+    
+    public PasswordService(EncryptionService encryptionService, StorageWriter storage) {
         this.encryptionService = encryptionService;
+        this.storage = storage;
+        this.dataKeys = new DataKeyCache(encryptionService, DATA_KEY_CACHE_SIZE, DATA_KEY_TTL_SECONDS);
+    }
+    
+    /**
+     * Reads and parses every vault shard, migrating a legacy passwords.json first.
+     */
+    public Map<String, Vault> loadVaults() throws Exception {
+        Files.createDirectories(Paths.get(PASSWORDS_DIR));
+        migrateLegacyFile();
+        
+        List<Path> shards;
+        try (Stream<Path> files = Files.walk(Paths.get(PASSWORDS_DIR), 2)) {
+            shards = files.filter(p -> p.getFileName().toString().endsWith(".json")).collect(Collectors.toList());
+        }
+        
+        Map<String, Vault> loaded = new ConcurrentHashMap<>();
+        shards.parallelStream().forEach(shard -> {
+            String fileName = shard.getFileName().toString();
+            String userId = fileName.substring(0, fileName.length() - ".json".length());
+            try {
+                String content = Files.readString(shard);
+                String owner = movedOwner(content);
+                if (owner != null) {
+                    moved.put(userId, owner);
+                    return;
+                }
+                Vault vault = parseVault(content);
+                if (repairIds(vault.entries)) {
+                    saveVault(userId, vault);
+                }
+                loaded.put(userId, vault);
+            } catch (java.io.IOException e) {
+                throw new java.io.UncheckedIOException(e);
+            } catch (Exception e) {
+                throw new IllegalStateException("Could not repair ids in " + shard, e);
+            }
+        });
+        return loaded;
+    }
+    
+    public void buildIndex(Map<String, Vault> loaded) {
+        vaults.putAll(loaded);
+        indexBuilt = true;
+    }
+    
+    public void setReadOnly(boolean readOnly) {
+        this.readOnly = readOnly;
+    }
+    
+    public void setBreachList(BreachList breaches) {
+        this.breaches = breaches;
+    }
+    
+    public void setRequestLog(RequestLog requestLog) {
+        this.requestLog = requestLog;
+    }
+    
+    /**
+     * Re-reads a user's vault after replication replaced its file.
+     */
+    public void reloadVault(String userId) throws Exception {
+        String content = storage.readString(shardPath(userId));
+        if (content == null) {
+            return;
+        }
+        synchronized (lockFor(userId)) {
+            String owner = movedOwner(content);
+            if (owner != null) {
+                moved.put(userId, owner);
+                vaults.remove(userId);
+            } else {
+                vaults.put(userId, parseVault(content));
+                moved.remove(userId);
+            }
+            for (Consumer<String> listener : changeListeners) {
+                listener.accept(userId);
+            }
+        }
+    }
+    
+    /**
+     * Called with the userId after every committed change to that user's vault.
+     */
+    public void addChangeListener(Consumer<String> listener) {
+        changeListeners.add(listener);
+    }
+    
+    /**
+     * Ids of every user with a vault, sorted, so a scan over them can be resumed from a checkpoint.
+     */
+    public List<String> getUserIds() {
+        if (!indexBuilt) {
+            throw new IllegalStateException("Vault index has not been loaded");
+        }
+        List<String> userIds = new ArrayList<>(vaults.keySet());
+        java.util.Collections.sort(userIds);
+        return userIds;
+    }
+    
+    /**
+     * The shard backend the user's vault was moved to, or null if it lives here.
+     */
+    public String movedTo(String userId) {
+        return moved.get(userId);
+    }
+    
+    /**
+     * The user's vault as it would be stored, with its data key sealed under transferKey
+     * instead of this process's master key, for moving it to another shard backend. Entries
+     * still under a master key are re-encrypted first, since the target cannot read those.
+     */
+    public Transfer exportForTransfer(String userId, SecretKey transferKey) throws Exception {
+        reencryptVault(userId);
+        Vault current = vault(userId);
+        for (Password p : current.entries) {
+            if (!EncryptionService.isDataKeyFormat(p.password)) {
+                throw new IllegalStateException("Vault " + userId + " still has entries under a master key");
+            }
+        }
+        byte[] sealedKey = current.wrappedKey == null ? null : encryptionService.exportDataKey(current.wrappedKey, transferKey);
+        return new Transfer(current.version, renderVault(userId, current, sealedKey));
+    }
+    
+    /**
+     * Stores a vault exported by another backend's exportForTransfer, replacing any local copy,
+     * but only if the local version is still expectedVersion (0 if there is none), so a vault
+     * that took writes here is never overwritten. Returns false if it was not.
+     */
+    public boolean importTransferred(String userId, String content, SecretKey transferKey, long expectedVersion) throws Exception {
+        if (!content.trim().startsWith("{") || !content.contains("\"entries\"") || !content.contains("\"tombstones\"")) {
+            throw new IllegalArgumentException("Not an exported vault");
+        }
+        Vault incoming = parseVault(content);
+        byte[] wrappedKey = incoming.wrappedKey == null ? null : encryptionService.importDataKey(incoming.wrappedKey, transferKey);
+        synchronized (lockFor(userId)) {
+            Vault current = moved.containsKey(userId) ? Vault.EMPTY : vault(userId);
+            if (current.version != expectedVersion) {
+                return false;
+            }
+            moved.remove(userId);
+            dataKeys.invalidate(userId);
+            commit(userId, new Vault(incoming.entries, incoming.tombstones, incoming.version, incoming.prunedVersion, wrappedKey));
+        }
+        Metrics.increment("shard.vaults_imported");
+        return true;
+    }
+    
+    /**
+     * Gives up the user's vault after it was copied to owner: the shard file is replaced by a
+     * marker naming owner, and later requests for the user fail with UserMovedException. Only
+     * if the vault is still at expectedVersion, so no write made after the copy is lost;
+     * returns false otherwise.
+     */
+    public boolean release(String userId, long expectedVersion, String owner) throws Exception {
+        synchronized (lockFor(userId)) {
+            if (vault(userId).version != expectedVersion) {
+                return false;
+            }
+            storage.write(shardPath(userId), "{\n  \"movedTo\": \"" + owner + "\"\n}");
+            moved.put(userId, owner);
+            vaults.remove(userId);
+            dataKeys.invalidate(userId);
+            for (Consumer<String> listener : changeListeners) {
+                listener.accept(userId);
+            }
+        }
+        Metrics.increment("shard.vaults_released");
+        return true;
+    }
+    
+    /**
+     * Current version of the user's vault, answered from memory without touching storage or crypto.
+     */
+    public long getVersion(String userId) {
+        return vault(userId).version;
     }
     
     public String getUserPasswords(String userId) throws Exception {
-        List<Password> passwords = loadPasswords();
-        List<Password> userPasswords = passwords.stream()
-                .filter(p -> p.userId.equals(userId))
-                .collect(Collectors.toList());
+        return getUserPasswordsListing(userId).json;
+    }
+    
+    /**
+     * The decrypted listing together with the vault version it was rendered from.
+     */
+    public Listing getUserPasswordsListing(String userId) throws Exception {
+        Vault vault = vault(userId);
+        List<Password> userPasswords = vault.entries;
+        SecretKey key = readKey(userId, vault);
         
         // Decrypt passwords for display
         StringBuilder json = new StringBuilder("[\n");
         for (int i = 0; i < userPasswords.size(); i++) {
-            Password p = userPasswords.get(i);
-            String decryptedPassword = encryptionService.decrypt(p.password);
-            
-            json.append("  {\n");
-            json.append("    \"id\": \"").append(p.id).append("\",\n");
-            json.append("    \"site\": \"").append(p.site).append("\",\n");
-            json.append("    \"username\": \"").append(p.username).append("\",\n");
-            json.append("    \"password\": \"").append(decryptedPassword).append("\",\n");
-            json.append("    \"createdAt\": \"").append(p.createdAt).append("\"\n");
-            json.append("  }");
+            appendDecrypted(json, key, userPasswords.get(i), "  ");
             if (i < userPasswords.size() - 1) {
                 json.append(",");
             }
@@ -40,36 +266,209 @@ public class PasswordService {
         }
         json.append("]");
         
+        scheduleReencrypt(userId, vault);
+        return new Listing(vault.version, json.toString());
+    }
+    
+    /**
+     * Up to limit entries with ids greater than after, in id order. "next" is the id to pass as
+     * after for the following page, or null on the last page.
+     */
+    public Listing getUserPasswordsPage(String userId, long after, int limit) throws Exception {
+        Vault vault = vault(userId);
+        List<Password> entries = vault.entries;
+        SecretKey key = readKey(userId, vault);
+        int from = firstIndexAfter(entries, after);
+        int to = (int) Math.min(entries.size(), (long) from + limit);
+        
+        StringBuilder json = new StringBuilder("{\n");
+        json.append("  \"entries\": [\n");
+        for (int i = from; i < to; i++) {
+            appendDecrypted(json, key, entries.get(i), "    ");
+            json.append(i < to - 1 ? ",\n" : "\n");
+        }
+        json.append("  ],\n");
+        json.append("  \"next\": ").append(to < entries.size() ? "\"" + entries.get(to - 1).id + "\"" : "null").append("\n");
+        json.append("}");
+        
+        scheduleReencrypt(userId, vault);
+        return new Listing(vault.version, json.toString());
+    }
+    
+    /**
+     * Entries added or updated, and ids deleted, after the given vault version.
+     * If the tombstones needed to answer have been pruned (or the client is ahead of us),
+     * the whole vault is returned with "full": true and the client should replace its copy.
+     */
+    public String getChangesSince(String userId, long since) throws Exception {
+        Vault vault = vault(userId);
+        SecretKey key = readKey(userId, vault);
+        boolean full = since < vault.prunedVersion || since > vault.version;
+        
+        List<Password> changed = new ArrayList<>();
+        for (Password p : vault.entries) {
+            if (full || p.version > since) {
+                changed.add(p);
+            }
+        }
+        List<Tombstone> deleted = new ArrayList<>();
+        if (!full) {
+            for (Tombstone t : vault.tombstones) {
+                if (t.version > since) {
+                    deleted.add(t);
+                }
+            }
+        }
+        
+        StringBuilder json = new StringBuilder("{\n");
+        json.append("  \"version\": ").append(vault.version).append(",\n");
+        json.append("  \"full\": ").append(full).append(",\n");
+        json.append("  \"changed\": [\n");
+        for (int i = 0; i < changed.size(); i++) {
+            appendDecrypted(json, key, changed.get(i), "    ");
+            json.append(i < changed.size() - 1 ? ",\n" : "\n");
+        }
+        json.append("  ],\n");
+        json.append("  \"deleted\": [\n");
+        for (int i = 0; i < deleted.size(); i++) {
+            json.append("    \"").append(deleted.get(i).id).append("\"");
+            json.append(i < deleted.size() - 1 ? ",\n" : "\n");
+        }
+        json.append("  ]\n");
+        json.append("}");
+        
         return json.toString();
     }
     
-    public void addPassword(String userId, String site, String username, String password) throws Exception {
-        List<Password> passwords = loadPasswords();
+    /**
+     * Groups of entries that share a password, found by fingerprint without decrypting anything.
+     * Entries not yet fingerprinted are left out and counted in "unfingerprinted"; reading the
+     * groups schedules their backfill.
+     */
+    public String getReuseGroups(String userId) throws Exception {
+        Vault vault = vault(userId);
+        FingerprintIndex index = vault.fingerprints();
+        List<List<Password>> groups = index.shared;
+        int reused = 0;
         
-        String encryptedPassword = encryptionService.encrypt(password);
+        StringBuilder json = new StringBuilder("{\n");
+        json.append("  \"version\": ").append(vault.version).append(",\n");
+        json.append("  \"groups\": [\n");
+        for (int g = 0; g < groups.size(); g++) {
+            List<Password> group = groups.get(g);
+            reused += group.size();
+            json.append("    [\n");
+            for (int i = 0; i < group.size(); i++) {
+                Password p = group.get(i);
+                json.append("      {\"id\": \"").append(p.id).append("\", \"site\": \"").append(p.site())
+                        .append("\", \"username\": \"").append(p.username).append("\"}");
+                json.append(i < group.size() - 1 ? ",\n" : "\n");
+            }
+            json.append("    ]").append(g < groups.size() - 1 ? ",\n" : "\n");
+        }
+        json.append("  ],\n");
+        json.append("  \"reusedEntries\": ").append(reused).append(",\n");
+        json.append("  \"unfingerprinted\": ").append(index.unfingerprinted).append("\n");
+        json.append("}");
+        
+        if (index.unfingerprinted > 0) {
+            scheduleReencrypt(userId, vault);
+        }
+        return json.toString();
+    }
+    
+    /**
+     * Ids of the user's entries whose password is the given one, in id order; empty if none.
+     */
+    public List<Long> findReuse(String userId, String password) throws Exception {
+        Vault vault = vault(userId);
+        SecretKey key = readKey(userId, vault);
+        if (key == null) {
+            return List.of();
+        }
+        byte[] fingerprint = EncryptionService.fingerprint(EncryptionService.fingerprintKey(key), password);
+        FingerprintIndex index = vault.fingerprints();
+        List<Password> matches = index.byFingerprint.getOrDefault(ByteBuffer.wrap(fingerprint), List.of());
+        List<Long> ids = new ArrayList<>(matches.size());
+        for (Password p : matches) {
+            ids.add(p.id);
+        }
+        // Checked here rather than by scheduleReencrypt, whose scan of every entry would cost
+        // more than the lookup
+        if (index.unfingerprinted > 0) {
+            scheduleReencrypt(userId, vault);
+        }
+        return ids;
+    }
+    
+    public void addPassword(String userId, String site, String username, String password) throws Exception {
+        SecretKey key = dataKeyFor(userId);
+        byte[] encryptedPassword = encryptionService.encryptToBytes(key, password);
         
         Password newPassword = new Password();
-        newPassword.id = String.valueOf(System.currentTimeMillis());
-        newPassword.userId = userId;
-        newPassword.site = site;
+        newPassword.id = IdGenerator.next();
+        newPassword.setSite(site);
         newPassword.username = username;
         newPassword.password = encryptedPassword;
-        newPassword.createdAt = Instant.now().toString();
+        newPassword.breached = isBreached(password);
+        newPassword.fingerprint = EncryptionService.fingerprint(EncryptionService.fingerprintKey(key), password);
+        newPassword.createdAt = System.currentTimeMillis();
         
-        passwords.add(newPassword);
-        savePasswords(passwords);
+        synchronized (lockFor(userId)) {
+            Vault current = vault(userId);
+            long version = current.version + 1;
+            newPassword.version = version;
+            
+            List<Password> passwords = new ArrayList<>(current.entries);
+            passwords.add(firstIndexAfter(passwords, newPassword.id), newPassword);
+            commit(userId, current.with(passwords, current.tombstones, version, current.prunedVersion));
+        }
     }
     
-    public boolean updatePassword(String userId, String passwordId, String site, String username, String password) throws Exception {
-        List<Password> passwords = loadPasswords();
+    public boolean updatePassword(String userId, long passwordId, String site, String username, String password) throws Exception {
+        SecretKey key = dataKeyFor(userId);
+        byte[] encryptedPassword = encryptionService.encryptToBytes(key, password);
+        boolean breached = isBreached(password);
+        byte[] fingerprint = EncryptionService.fingerprint(EncryptionService.fingerprintKey(key), password);
         
-        for (Password p : passwords) {
-            if (p.id.equals(passwordId) && p.userId.equals(userId)) {
-                p.site = site;
-                p.username = username;
-                p.password = encryptionService.encrypt(password);
-                p.updatedAt = Instant.now().toString();
-                savePasswords(passwords);
+        synchronized (lockFor(userId)) {
+            Vault current = vault(userId);
+            List<Password> passwords = new ArrayList<>(current.entries);
+            for (int i = 0; i < passwords.size(); i++) {
+                Password p = passwords.get(i);
+                if (p.id == passwordId) {
+                    long version = current.version + 1;
+                    Password updated = p.copy();
+                    updated.setSite(site);
+                    updated.username = username;
+                    updated.password = encryptedPassword;
+                    updated.breached = breached;
+                    updated.fingerprint = fingerprint;
+                    updated.updatedAt = System.currentTimeMillis();
+                    updated.version = version;
+                    passwords.set(i, updated);
+                    commit(userId, current.with(passwords, current.tombstones, version, current.prunedVersion));
+                    return true;
+                }
+            }
+        }
+        
+        return false;
+    }
+    
+    public boolean deletePassword(String userId, long passwordId) throws Exception {
+        synchronized (lockFor(userId)) {
+            Vault current = vault(userId);
+            List<Password> passwords = new ArrayList<>(current.entries);
+            int initialSize = passwords.size();
+            
+            passwords.removeIf(p -> p.id == passwordId);
+            
+            if (passwords.size() < initialSize) {
+                long version = current.version + 1;
+                List<Tombstone> tombstones = new ArrayList<>(current.tombstones);
+                tombstones.add(tombstone(passwordId, version, System.currentTimeMillis()));
+                commitWithTombstones(userId, current, passwords, tombstones, version);
                 return true;
             }
         }
@@ -77,63 +476,517 @@ public class PasswordService {
         return false;
     }
     
-    public boolean deletePassword(String userId, String passwordId) throws Exception {
-        List<Password> passwords = loadPasswords();
-        int initialSize = passwords.size();
+    /**
+     * Applies a list of updates and deletes as one change: every operation that succeeds is
+     * persisted in a single commit under one new version. Returns one status per operation:
+     * "updated", "deleted", "not_found" or "invalid".
+     */
+    public List<String> applyBatch(String userId, List<BatchOperation> operations) throws Exception {
+        // Encrypt outside the lock, in parallel, as import does
+        List<String> plainTexts = new ArrayList<>();
+        for (BatchOperation op : operations) {
+            if (op.isUpdate() && op.password != null) {
+                plainTexts.add(op.password);
+            }
+        }
+        SecretKey key = dataKeyFor(userId);
+        List<byte[]> encrypted = encryptionService.encryptAll(key, plainTexts);
+        SecretKey fingerprintKey = EncryptionService.fingerprintKey(key);
+        List<Boolean> breached = new ArrayList<>(plainTexts.size());
+        List<byte[]> fingerprints = new ArrayList<>(plainTexts.size());
+        for (String plainText : plainTexts) {
+            breached.add(isBreached(plainText));
+            fingerprints.add(EncryptionService.fingerprint(fingerprintKey, plainText));
+        }
         
-        passwords.removeIf(p -> p.id.equals(passwordId) && p.userId.equals(userId));
+        List<String> statuses = new ArrayList<>(operations.size());
+        synchronized (lockFor(userId)) {
+            Vault current = vault(userId);
+            long version = current.version + 1;
+            long now = System.currentTimeMillis();
+            
+            Map<Long, Password> byId = new LinkedHashMap<>();
+            for (Password p : current.entries) {
+                byId.put(p.id, p);
+            }
+            List<Tombstone> tombstones = new ArrayList<>(current.tombstones);
+            boolean changed = false;
+            int nextEncrypted = 0;
+            
+            for (BatchOperation op : operations) {
+                boolean hasPassword = op.isUpdate() && op.password != null;
+                byte[] ciphertext = hasPassword ? encrypted.get(nextEncrypted) : null;
+                boolean breachedPassword = hasPassword && breached.get(nextEncrypted);
+                byte[] fingerprint = hasPassword ? fingerprints.get(nextEncrypted) : null;
+                if (hasPassword) {
+                    nextEncrypted++;
+                }
+                long id = IdGenerator.parse(op.id);
+                if (op.id == null || !(op.isUpdate() || op.isDelete())) {
+                    statuses.add("invalid");
+                } else if (!byId.containsKey(id)) {
+                    statuses.add("not_found");
+                } else if (op.isDelete()) {
+                    byId.remove(id);
+                    tombstones.add(tombstone(id, version, now));
+                    statuses.add("deleted");
+                    changed = true;
+                } else {
+                    // Fields left out of an update keep their current value
+                    Password updated = byId.get(id).copy();
+                    if (op.site != null) {
+                        updated.setSite(op.site);
+                    }
+                    updated.username = op.username != null ? op.username : updated.username;
+                    updated.password = ciphertext != null ? ciphertext : updated.password;
+                    updated.breached = ciphertext != null ? breachedPassword : updated.breached;
+                    updated.fingerprint = ciphertext != null ? fingerprint : updated.fingerprint;
+                    updated.updatedAt = now;
+                    updated.version = version;
+                    byId.put(id, updated);
+                    statuses.add("updated");
+                    changed = true;
+                }
+            }
+            
+            if (changed) {
+                commitWithTombstones(userId, current, new ArrayList<>(byId.values()), tombstones, version);
+            }
+        }
+        Metrics.add("vault.batch.operations", operations.size());
+        return statuses;
+    }
+    
+    /**
+     * Streams import records from the reader, encrypting them in parallel batches so only one
+     * batch of plaintext is held at a time. All accepted records land in a single commit.
+     */
+    public ImportResult importPasswords(String userId, Reader in, String format) throws Exception {
+        VaultTransfer records = new VaultTransfer(in, format);
+        SecretKey key = dataKeyFor(userId);
+        List<Password> imported = new ArrayList<>();
+        List<String[]> batch = new ArrayList<>(IMPORT_BATCH_SIZE);
+        int skipped = 0;
         
-        if (passwords.size() < initialSize) {
-            savePasswords(passwords);
-            return true;
+        String[] record;
+        while ((record = records.next()) != null) {
+            if (record.length == 0) {
+                skipped++;
+                continue;
+            }
+            if (imported.size() + batch.size() >= MAX_IMPORT_ENTRIES) {
+                throw new IllegalArgumentException("Import is limited to " + MAX_IMPORT_ENTRIES + " entries");
+            }
+            batch.add(record);
+            if (batch.size() == IMPORT_BATCH_SIZE) {
+                encryptBatch(key, batch, imported);
+            }
         }
+        encryptBatch(key, batch, imported);
         
+        if (!imported.isEmpty()) {
+            synchronized (lockFor(userId)) {
+                Vault current = vault(userId);
+                long version = current.version + 1;
+                List<Password> passwords = new ArrayList<>(current.entries.size() + imported.size());
+                passwords.addAll(current.entries);
+                for (Password p : imported) {
+                    p.version = version;
+                    passwords.add(p);
+                }
+                sortById(passwords);
+                commit(userId, current.with(passwords, current.tombstones, version, current.prunedVersion));
+            }
+        }
+        
+        Metrics.add("vault.import.entries", imported.size());
+        return new ImportResult(imported.size(), skipped);
+    }
+    
+    /**
+     * Writes the user's vault to the writer one entry at a time, decrypting as it goes.
+     */
+    public void exportPasswords(String userId, String format, Writer out) throws Exception {
+        Vault current = vault(userId);
+        SecretKey key = readKey(userId, current);
+        VaultTransfer.writeHeader(format, out);
+        for (Password p : current.entries) {
+            out.write(VaultTransfer.formatLine(format, p.site(), p.username, encryptionService.decrypt(key, p.password)));
+        }
+        out.flush();
+        Metrics.add("vault.export.entries", current.entries.size());
+        scheduleReencrypt(userId, current);
+    }
+    
+    // Lazy migration: a read that finds entries not yet under the user's data key, or a data
+    // key wrapped under an old master key, queues the vault for re-encryption in the background
+    // instead of paying for the write itself
+    private void scheduleReencrypt(String userId, Vault vault) {
+        if (!LAZY_REENCRYPT || readOnly || !needsReencrypt(vault)) {
+            return;
+        }
+        if (pendingReencrypt.add(userId)) {
+            reencryptExecutor.execute(() -> {
+                try {
+                    reencryptVault(userId);
+                } catch (Exception e) {
+                    RequestLog log = requestLog;
+                    if (log != null) {
+                        // Not tied to one request: every read of the vault queues it again
+                        log.error(null, null, new Exception("Re-encryption of vault " + userId + " failed: " + e, e));
+                    } else {
+                        System.err.println("Re-encryption of vault " + userId + " failed: " + e);
+                    }
+                } finally {
+                    pendingReencrypt.remove(userId);
+                }
+            });
+        }
+    }
+    
+    private boolean needsReencrypt(Vault vault) {
+        if (vault.wrappedKey != null && !encryptionService.isUnderActiveKey(vault.wrappedKey)) {
+            return true;
+        }
+        for (Password p : vault.entries) {
+            if (!EncryptionService.isDataKeyFormat(p.password) || p.fingerprint == null) {
+                return true;
+            }
+        }
         return false;
     }
     
-    private List<Password> loadPasswords() throws Exception {
-        List<Password> passwords = new ArrayList<>();
-        if (!Files.exists(Paths.get(PASSWORDS_FILE))) {
-            return passwords;
+    /**
+     * Brings one vault up to date with the active master key: entries still under a master key
+     * are re-encrypted under the user's data key, entries from before password fingerprints are
+     * fingerprinted, and a data key wrapped under an older master key is re-wrapped. Returns how
+     * many entries and keys were rewritten. Entry re-encryption happens outside the user's lock;
+     * entries changed in the meantime were brought up to date by that write and are skipped.
+     */
+    public int reencryptVault(String userId) throws Exception {
+        if (!needsReencrypt(vault(userId))) {
+            return 0;
+        }
+        SecretKey key = dataKeyFor(userId);
+        SecretKey fingerprintKey = EncryptionService.fingerprintKey(key);
+        Map<Password, Password> replacements = new java.util.IdentityHashMap<>();
+        for (Password p : vault(userId).entries) {
+            boolean legacy = !EncryptionService.isDataKeyFormat(p.password);
+            if (legacy || p.fingerprint == null) {
+                String plainText = encryptionService.decrypt(key, p.password);
+                Password updated = p.copy();
+                if (legacy) {
+                    updated.password = encryptionService.encryptToBytes(key, plainText);
+                }
+                updated.fingerprint = EncryptionService.fingerprint(fingerprintKey, plainText);
+                replacements.put(p, updated);
+            }
+        }
+        
+        synchronized (lockFor(userId)) {
+            Vault current = vault(userId);
+            List<Password> passwords = new ArrayList<>(current.entries);
+            int replaced = 0;
+            int reencrypted = 0;
+            for (int i = 0; i < passwords.size(); i++) {
+                Password updated = replacements.get(passwords.get(i));
+                if (updated != null) {
+                    if (updated.password != passwords.get(i).password) {
+                        reencrypted++;
+                    }
+                    passwords.set(i, updated);
+                    replaced++;
+                }
+            }
+            // Unwrapping and re-wrapping 32 bytes is cheap enough to do under the lock
+            byte[] wrappedKey = current.wrappedKey;
+            boolean rewrapped = !encryptionService.isUnderActiveKey(wrappedKey);
+            if (rewrapped) {
+                wrappedKey = encryptionService.rewrapDataKey(wrappedKey);
+                Metrics.increment("crypto.rewrapped");
+            }
+            if (replaced > 0 || rewrapped) {
+                // Same plaintext, so clients have nothing to sync: the version stays
+                commit(userId, new Vault(passwords, current.tombstones, current.version, current.prunedVersion, wrappedKey));
+                Metrics.add("crypto.reencrypted", reencrypted);
+                Metrics.add("vault.fingerprinted", replaced);
+            }
+            return replaced + (rewrapped ? 1 : 0);
         }
+    }
+    
+    private void encryptBatch(SecretKey key, List<String[]> batch, List<Password> imported) throws Exception {
+        if (batch.isEmpty()) {
+            return;
+        }
+        List<String> plainTexts = new ArrayList<>(batch.size());
+        for (String[] record : batch) {
+            plainTexts.add(record[2]);
+        }
+        List<byte[]> encrypted = encryptionService.encryptAll(key, plainTexts);
+        SecretKey fingerprintKey = EncryptionService.fingerprintKey(key);
         
-        String content = Files.readString(Paths.get(PASSWORDS_FILE));
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < batch.size(); i++) {
+            Password p = new Password();
+            p.id = IdGenerator.next();
+            p.setSite(batch.get(i)[0]);
+            p.username = batch.get(i)[1];
+            p.password = encrypted.get(i);
+            p.breached = isBreached(batch.get(i)[2]);
+            p.fingerprint = EncryptionService.fingerprint(fingerprintKey, batch.get(i)[2]);
+            p.createdAt = now;
+            imported.add(p);
+        }
+        batch.clear();
+    }
+    
+    private boolean isBreached(String plainText) {
+        BreachList list = breaches;
+        return list != null && list.isBreached(plainText);
+    }
+    
+    private Vault vault(String userId) {
+        if (!indexBuilt) {
+            throw new IllegalStateException("Vault index has not been loaded");
+        }
+        Vault vault = vaults.get(userId);
+        if (vault == null) {
+            String owner = moved.get(userId);
+            if (owner != null) {
+                throw new UserMovedException(owner);
+            }
+            return Vault.EMPTY;
+        }
+        return vault;
+    }
+    
+    // The user's data key, generated and persisted with the vault on its first write
+    private SecretKey dataKeyFor(String userId) throws Exception {
+        byte[] wrappedKey = vault(userId).wrappedKey;
+        if (wrappedKey == null) {
+            synchronized (lockFor(userId)) {
+                Vault current = vault(userId);
+                if (current.wrappedKey == null) {
+                    commit(userId, new Vault(current.entries, current.tombstones, current.version,
+                            current.prunedVersion, encryptionService.newWrappedDataKey()));
+                }
+                wrappedKey = vault(userId).wrappedKey;
+            }
+        }
+        return dataKeys.get(userId, wrappedKey);
+    }
+    
+    // For reads: a vault without a data key has no entries that need one
+    private SecretKey readKey(String userId, Vault vault) throws Exception {
+        return vault.wrappedKey == null ? null : dataKeys.get(userId, vault.wrappedKey);
+    }
+    
+    // Caller holds the user's lock
+    private void commit(String userId, Vault vault) throws Exception {
+        saveVault(userId, vault);
+        vaults.put(userId, vault);
+        for (Consumer<String> listener : changeListeners) {
+            listener.accept(userId);
+        }
+    }
+    
+    // Caller holds the user's lock. Keeps the log bounded; clients older than the oldest
+    // dropped tombstone get a full resync.
+    private void commitWithTombstones(String userId, Vault current, List<Password> passwords,
+            List<Tombstone> tombstones, long version) throws Exception {
+        long prunedVersion = current.prunedVersion;
+        while (tombstones.size() > MAX_TOMBSTONES) {
+            prunedVersion = tombstones.remove(0).version;
+        }
+        commit(userId, current.with(passwords, tombstones, version, prunedVersion));
+    }
+    
+    private Tombstone tombstone(long id, long version, long deletedAt) {
+        Tombstone tombstone = new Tombstone();
+        tombstone.id = id;
+        tombstone.version = version;
+        tombstone.deletedAt = deletedAt;
+        return tombstone;
+    }
+    
+    // Entries are kept in id order so pages can be found by binary search
+    private static int firstIndexAfter(List<Password> entries, long after) {
+        int low = 0;
+        int high = entries.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (entries.get(mid).id <= after) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+    
+    private static void sortById(List<Password> entries) {
+        entries.sort((a, b) -> Long.compare(a.id, b.id));
+    }
+    
+    private Object lockFor(String userId) {
+        return userLocks.computeIfAbsent(userId, k -> new Object());
+    }
+    
+    private void appendDecrypted(StringBuilder json, SecretKey key, Password p, String indent) throws Exception {
+        String decryptedPassword = encryptionService.decrypt(key, p.password);
+        
+        json.append(indent).append("{\n");
+        json.append(indent).append("  \"id\": \"").append(p.id).append("\",\n");
+        json.append(indent).append("  \"site\": \"").append(p.site()).append("\",\n");
+        json.append(indent).append("  \"username\": \"").append(p.username).append("\",\n");
+        json.append(indent).append("  \"password\": \"").append(decryptedPassword).append("\",\n");
+        json.append(indent).append("  \"breached\": ").append(p.breached).append(",\n");
+        json.append(indent).append("  \"createdAt\": \"").append(formatTime(p.createdAt)).append("\"\n");
+        json.append(indent).append("}");
+    }
+    
+    // Each user's vault lives in its own file, spread over hash buckets so no directory grows unbounded
+    private Path shardPath(String userId) {
+        if (!userId.matches("[A-Za-z0-9_-]+")) {
+            throw new IllegalArgumentException("Invalid user id");
+        }
+        String bucket = String.format("%02x", Math.floorMod(userId.hashCode(), SHARD_BUCKETS));
+        return Paths.get(PASSWORDS_DIR, bucket, userId + ".json");
+    }
+    
+    // Splits the old shared passwords.json into per-user shards, then moves it aside
+    private void migrateLegacyFile() throws Exception {
+        Path legacyFile = Paths.get(LEGACY_PASSWORDS_FILE);
+        if (!Files.exists(legacyFile)) {
+            return;
+        }
+        
+        Map<String, List<Password>> byUser = new LinkedHashMap<>();
+        for (String passwordObj : splitObjects(Files.readString(legacyFile))) {
+            Password p = parsePassword(passwordObj);
+            if (p != null) {
+                byUser.computeIfAbsent(extractStringValue(passwordObj, "userId"), k -> new ArrayList<>()).add(p);
+            }
+        }
+        for (Map.Entry<String, List<Password>> entry : byUser.entrySet()) {
+            repairIds(entry.getValue());
+            saveVault(entry.getKey(), Vault.fromLegacy(entry.getValue()));
+        }
+        storage.flush();
+        
+        Files.move(legacyFile, Paths.get(LEGACY_PASSWORDS_FILE + ".migrated"), StandardCopyOption.REPLACE_EXISTING);
+        System.out.println("Migrated " + byUser.size() + " vaults from " + LEGACY_PASSWORDS_FILE);
+    }
+    
+    private String movedOwner(String content) {
+        return content.trim().matches("(?s)\\{\\s*\"movedTo\".*") ? extractStringValue(content, "movedTo") : null;
+    }
+    
+    private Vault parseVault(String content) {
+        content = content.trim();
+        // Shards written before versioning were a bare array of entries
+        if (content.startsWith("[")) {
+            return Vault.fromLegacy(parsePasswords(content));
+        }
+        
+        int entriesStart = content.indexOf("\"entries\"");
+        int tombstonesStart = content.indexOf("\"tombstones\"");
+        String header = content.substring(0, entriesStart);
+        
+        String dataKey = extractStringValue(header, "dataKey");
+        Vault vault = new Vault(
+                parsePasswords(extractArray(content, entriesStart)),
+                parseTombstones(extractArray(content, tombstonesStart)),
+                parseLong(extractStringValue(header, "version")),
+                parseLong(extractStringValue(header, "prunedVersion")),
+                dataKey.isEmpty() ? null : EncryptionService.fromStored(dataKey));
+        return vault;
+    }
+    
+    // Top-level arrays are written with their closing bracket on its own line, which no value can contain
+    private String extractArray(String content, int keyStart) {
+        int open = content.indexOf('[', keyStart);
+        int close = content.indexOf("\n  ]", open);
+        return content.substring(open, close) + "\n]";
+    }
+    
+    private List<Password> parsePasswords(String content) {
+        List<Password> passwords = new ArrayList<>();
+        for (String passwordObj : splitObjects(content)) {
+            Password password = parsePassword(passwordObj);
+            if (password != null) {
+                passwords.add(password);
+            }
+        }
+        return passwords;
+    }
+    
+    // Older entries were keyed by creation millisecond, so a vault can hold duplicate ids.
+    // Those, and ids that are not numbers, get fresh ones. Leaves the entries in id order and
+    // returns whether anything had to change.
+    private boolean repairIds(List<Password> entries) {
+        boolean repaired = false;
+        java.util.Set<Long> seen = new java.util.HashSet<>();
+        for (Password p : entries) {
+            if (p.id < 0 || !seen.add(p.id)) {
+                p.id = IdGenerator.next();
+                seen.add(p.id);
+                repaired = true;
+            }
+        }
+        sortById(entries);
+        return repaired;
+    }
+    
+    private List<Tombstone> parseTombstones(String content) {
+        List<Tombstone> tombstones = new ArrayList<>();
+        for (String tombstoneObj : splitObjects(content)) {
+            Tombstone tombstone = new Tombstone();
+            tombstone.id = IdGenerator.parse(extractStringValue(tombstoneObj, "id"));
+            tombstone.version = parseLong(extractStringValue(tombstoneObj, "version"));
+            tombstone.deletedAt = parseTime(extractStringValue(tombstoneObj, "deletedAt"));
+            tombstones.add(tombstone);
+        }
+        return tombstones;
+    }
+    
+    private List<String> splitObjects(String content) {
+        List<String> objects = new ArrayList<>();
         if (content.trim().isEmpty() || content.trim().equals("[]")) {
-            return passwords;
+            return objects;
         }
         
-        // Simple JSON parsing for passwords array
+        // Simple JSON parsing for an array of objects
         content = content.trim();
         if (content.startsWith("[") && content.endsWith("]")) {
             content = content.substring(1, content.length() - 1).trim();
             if (!content.isEmpty()) {
-                String[] passwordObjects = content.split("\\},\\s*\\{");
-                for (String passwordObj : passwordObjects) {
-                    passwordObj = passwordObj.trim();
-                    if (!passwordObj.startsWith("{")) passwordObj = "{" + passwordObj;
-                    if (!passwordObj.endsWith("}")) passwordObj = passwordObj + "}";
-                    
-                    Password password = parsePassword(passwordObj);
-                    if (password != null) {
-                        passwords.add(password);
-                    }
+                for (String obj : content.split("\\},\\s*\\{")) {
+                    obj = obj.trim();
+                    if (!obj.startsWith("{")) obj = "{" + obj;
+                    if (!obj.endsWith("}")) obj = obj + "}";
+                    objects.add(obj);
                 }
             }
         }
         
-        return passwords;
+        return objects;
     }
     
     private Password parsePassword(String json) {
         try {
             Password password = new Password();
-            password.id = extractStringValue(json, "id");
-            password.userId = extractStringValue(json, "userId");
-            password.site = extractStringValue(json, "site");
+            password.id = IdGenerator.parse(extractStringValue(json, "id"));
+            password.setSite(extractStringValue(json, "site"));
             password.username = extractStringValue(json, "username");
-            password.password = extractStringValue(json, "password");
-            password.createdAt = extractStringValue(json, "createdAt");
-            password.updatedAt = extractStringValue(json, "updatedAt");
+            password.password = EncryptionService.fromStored(extractStringValue(json, "password"));
+            password.createdAt = parseTime(extractStringValue(json, "createdAt"));
+            password.updatedAt = parseTime(extractStringValue(json, "updatedAt"));
+            password.breached = "true".equals(extractStringValue(json, "breached"));
+            String fingerprint = extractStringValue(json, "fingerprint");
+            password.fingerprint = fingerprint.isEmpty() ? null : Base64.getDecoder().decode(fingerprint);
+            password.version = parseLong(extractStringValue(json, "version"));
             return password;
         } catch (Exception e) {
             return null;
@@ -150,38 +1003,267 @@ public class PasswordService {
         return "";
     }
     
-    private void savePasswords(List<Password> passwords) throws Exception {
-        StringBuilder json = new StringBuilder("[\n");
-        for (int i = 0; i < passwords.size(); i++) {
-            Password password = passwords.get(i);
-            json.append("  {\n");
-            json.append("    \"id\": \"").append(password.id).append("\",\n");
-            json.append("    \"userId\": \"").append(password.userId).append("\",\n");
-            json.append("    \"site\": \"").append(password.site).append("\",\n");
-            json.append("    \"username\": \"").append(password.username).append("\",\n");
-            json.append("    \"password\": \"").append(password.password).append("\",\n");
-            json.append("    \"createdAt\": \"").append(password.createdAt).append("\"");
-            if (password.updatedAt != null && !password.updatedAt.isEmpty()) {
-                json.append(",\n    \"updatedAt\": \"").append(password.updatedAt).append("\"");
-            }
-            json.append("\n  }");
-            if (i < passwords.size() - 1) {
+    private long parseLong(String value) {
+        return value.isEmpty() ? 0 : Long.parseLong(value);
+    }
+    
+    // Timestamps are held as epoch milliseconds and stored as ISO-8601 text
+    private static long parseTime(String value) {
+        if (value.isEmpty()) {
+            return 0;
+        }
+        try {
+            return Instant.parse(value).toEpochMilli();
+        } catch (java.time.format.DateTimeParseException e) {
+            return 0;
+        }
+    }
+    
+    private static String formatTime(long epochMillis) {
+        return Instant.ofEpochMilli(epochMillis).toString();
+    }
+    
+    private void saveVault(String userId, Vault vault) throws Exception {
+        storage.write(shardPath(userId), renderVault(userId, vault, vault.wrappedKey));
+    }
+    
+    private String renderVault(String userId, Vault vault, byte[] dataKey) {
+        StringBuilder json = new StringBuilder("{\n");
+        json.append("  \"version\": \"").append(vault.version).append("\",\n");
+        json.append("  \"prunedVersion\": \"").append(vault.prunedVersion).append("\",\n");
+        if (dataKey != null) {
+            json.append("  \"dataKey\": \"").append(EncryptionService.toStored(dataKey)).append("\",\n");
+        }
+        json.append("  \"entries\": [\n");
+        for (int i = 0; i < vault.entries.size(); i++) {
+            Password password = vault.entries.get(i);
+            json.append("    {\n");
+            json.append("      \"id\": \"").append(password.id).append("\",\n");
+            json.append("      \"userId\": \"").append(userId).append("\",\n");
+            json.append("      \"site\": \"").append(password.site()).append("\",\n");
+            json.append("      \"username\": \"").append(password.username).append("\",\n");
+            json.append("      \"password\": \"").append(EncryptionService.toStored(password.password)).append("\",\n");
+            json.append("      \"createdAt\": \"").append(formatTime(password.createdAt)).append("\",\n");
+            if (password.updatedAt != 0) {
+                json.append("      \"updatedAt\": \"").append(formatTime(password.updatedAt)).append("\",\n");
+            }
+            if (password.breached) {
+                json.append("      \"breached\": \"true\",\n");
+            }
+            if (password.fingerprint != null) {
+                json.append("      \"fingerprint\": \"").append(Base64.getEncoder().encodeToString(password.fingerprint)).append("\",\n");
+            }
+            json.append("      \"version\": \"").append(password.version).append("\"\n");
+            json.append("    }");
+            if (i < vault.entries.size() - 1) {
                 json.append(",");
             }
             json.append("\n");
         }
-        json.append("]");
+        json.append("  ],\n");
+        json.append("  \"tombstones\": [\n");
+        for (int i = 0; i < vault.tombstones.size(); i++) {
+            Tombstone tombstone = vault.tombstones.get(i);
+            json.append("    {\n");
+            json.append("      \"id\": \"").append(tombstone.id).append("\",\n");
+            json.append("      \"version\": \"").append(tombstone.version).append("\",\n");
+            json.append("      \"deletedAt\": \"").append(formatTime(tombstone.deletedAt)).append("\"\n");
+            json.append("    }");
+            if (i < vault.tombstones.size() - 1) {
+                json.append(",");
+            }
+            json.append("\n");
+        }
+        json.append("  ]\n");
+        json.append("}");
+        return json.toString();
+    }
+    
+    /**
+     * A user's entries plus the change log needed for delta sync. Every mutation bumps
+     * the version; entries and tombstones record the version that last touched them.
+     */
+    public static class Vault {
+        static final Vault EMPTY = new Vault(List.of(), List.of(), 0, 0);
+        
+        public final List<Password> entries;
+        public final List<Tombstone> tombstones;
+        public final long version;
+        // Deletes at or below this version may no longer have a tombstone
+        public final long prunedVersion;
+        // The user's data key wrapped under a master key; null until the vault's first write
+        final byte[] wrappedKey;
+        // Built on the first reuse query and then kept for this version
+        private volatile FingerprintIndex fingerprints;
+        
+        Vault(List<Password> entries, List<Tombstone> tombstones, long version, long prunedVersion) {
+            this(entries, tombstones, version, prunedVersion, null);
+        }
+        
+        Vault(List<Password> entries, List<Tombstone> tombstones, long version, long prunedVersion, byte[] wrappedKey) {
+            this.entries = entries;
+            this.tombstones = tombstones;
+            this.version = version;
+            this.prunedVersion = prunedVersion;
+            this.wrappedKey = wrappedKey;
+        }
+        
+        // The next state of this vault, keeping its data key
+        Vault with(List<Password> entries, List<Tombstone> tombstones, long version, long prunedVersion) {
+            return new Vault(entries, tombstones, version, prunedVersion, wrappedKey);
+        }
+        
+        FingerprintIndex fingerprints() {
+            FingerprintIndex index = fingerprints;
+            if (index == null) {
+                // Racing readers may each build it; the results are equal
+                index = new FingerprintIndex(entries);
+                fingerprints = index;
+            }
+            return index;
+        }
         
-        Files.write(Paths.get(PASSWORDS_FILE), json.toString().getBytes(StandardCharsets.UTF_8));
+        // Unversioned entries all count as written at version 1
+        static Vault fromLegacy(List<Password> entries) {
+            for (Password p : entries) {
+                p.version = 1;
+            }
+            return new Vault(entries, List.of(), entries.isEmpty() ? 0 : 1, 0);
+        }
     }
     
-    public static class Password {
+    /**
+     * A vault's entries grouped by password fingerprint.
+     */
+    static class FingerprintIndex {
+        final Map<ByteBuffer, List<Password>> byFingerprint = new HashMap<>();
+        // Groups of more than one entry, ordered by their first id; entries are in id order, so
+        // each group is too
+        final List<List<Password>> shared = new ArrayList<>();
+        // Entries from before fingerprints that have not been backfilled yet
+        int unfingerprinted;
+        
+        FingerprintIndex(List<Password> entries) {
+            for (Password p : entries) {
+                if (p.fingerprint == null) {
+                    unfingerprinted++;
+                    continue;
+                }
+                List<Password> group = byFingerprint.computeIfAbsent(ByteBuffer.wrap(p.fingerprint), k -> new ArrayList<>(1));
+                group.add(p);
+                if (group.size() == 2) {
+                    shared.add(group);
+                }
+            }
+            shared.sort((a, b) -> Long.compare(a.get(0).id, b.get(0).id));
+        }
+    }
+    
+    public static class BatchOperation {
+        public String op;
         public String id;
-        public String userId;
         public String site;
         public String username;
         public String password;
-        public String createdAt;
-        public String updatedAt;
+        
+        boolean isUpdate() {
+            return "update".equals(op);
+        }
+        
+        boolean isDelete() {
+            return "delete".equals(op);
+        }
+    }
+    
+    public static class ImportResult {
+        public final int imported;
+        public final int skipped;
+        
+        ImportResult(int imported, int skipped) {
+            this.imported = imported;
+            this.skipped = skipped;
+        }
+    }
+    
+    public static class Transfer {
+        public final long version;
+        public final String content;
+        
+        Transfer(long version, String content) {
+            this.version = version;
+            this.content = content;
+        }
+    }
+    
+    /**
+     * Thrown for a user whose vault was moved to another shard backend.
+     */
+    public static class UserMovedException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+        
+        public final String owner;
+        
+        UserMovedException(String owner) {
+            super("Vault moved to " + owner);
+            this.owner = owner;
+        }
+    }
+    
+    public static class Listing {
+        public final long version;
+        public final String json;
+        
+        Listing(long version, String json) {
+            this.version = version;
+            this.json = json;
+        }
+    }
+    
+    /**
+     * One resident entry, kept compact since every vault stays in memory: common sites share one
+     * string (see StringDictionary), the ciphertext raw versioned bytes (see EncryptionService) rather than Base64 text,
+     * and timestamps epoch milliseconds. The owning user is implied by the vault.
+     */
+    public static class Password {
+        public long id;
+        String site;
+        public String username;
+        public byte[] password;
+        public long createdAt;
+        public long updatedAt;
+        public long version;
+        // Found in the breach corpus when it was last set (see BreachList)
+        public boolean breached;
+        // HMAC of the plaintext under the user's fingerprint key (see EncryptionService), so
+        // reused passwords are found without decrypting; null until the entry is backfilled
+        byte[] fingerprint;
+        
+        public String site() {
+            return site;
+        }
+        
+        public void setSite(String site) {
+            this.site = SITES.intern(site);
+        }
+        
+        public Password copy() {
+            Password copy = new Password();
+            copy.id = id;
+            copy.site = site;
+            copy.username = username;
+            copy.password = password;
+            copy.createdAt = createdAt;
+            copy.updatedAt = updatedAt;
+            copy.version = version;
+            copy.breached = breached;
+            copy.fingerprint = fingerprint;
+            return copy;
+        }
+    }
+    
+    public static class Tombstone {
+        public long id;
+        public long version;
+        public long deletedAt;
     }
-} 
\ No newline at end of file
+}
\ No newline at end of file
@@ -0,0 +1,79 @@
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Per-key token bucket, implemented as a generic cell rate algorithm (GCRA).
+ *
+ * Each key's whole bucket state is one AtomicLong holding the "theoretical arrival time":
+ * the instant at which the bucket would be full again. Acquiring a permit is a single CAS
+ * that pushes it forward by one emission interval, so there are no locks on the hot path
+ * and different keys never touch shared state.
+ *
+ * Budgets are "permitsPerSecond:burst", e.g. "1:10" allows a burst of 10 and then one
+ * request per second.
+ */
+public class RateLimiter {
+    private static final ScheduledExecutorService SWEEPER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "rate-limit-sweeper");
+        thread.setDaemon(true);
+        return thread;
+    });
+    
+    private final long intervalNanos;
+    private final long burstNanos;
+    private final ConcurrentHashMap<String, AtomicLong> buckets = new ConcurrentHashMap<>();
+    private final LongAdder allowed;
+    private final LongAdder limited;
+    
+    public RateLimiter(String name, double permitsPerSecond, int burst) {
+        this.allowed = Metrics.counter("ratelimit." + name + ".allowed");
+        this.limited = Metrics.counter("ratelimit." + name + ".limited");
+        this.intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / permitsPerSecond);
+        this.burstNanos = intervalNanos * burst;
+        Metrics.gauge("ratelimit." + name + ".tracked_keys", buckets::size);
+        SWEEPER.scheduleWithFixedDelay(this::evictIdle, 1, 1, TimeUnit.MINUTES);
+    }
+    
+    public static RateLimiter fromEnvironment(String name, String envVar, String defaultBudget) {
+        String[] budget = System.getenv().getOrDefault(envVar, defaultBudget).split(":");
+        return new RateLimiter(name, Double.parseDouble(budget[0]), Integer.parseInt(budget[1]));
+    }
+    
+    /**
+     * Takes one permit for the key.
+     * Returns 0 if it was granted, otherwise the nanoseconds until one will be available.
+     */
+    public long tryAcquire(String key) {
+        long now = System.nanoTime();
+        AtomicLong bucket = buckets.get(key);
+        if (bucket == null) {
+            bucket = buckets.computeIfAbsent(key, k -> new AtomicLong(now));
+        }
+        
+        while (true) {
+            long arrival = bucket.get();
+            long next = (arrival - now < 0 ? now : arrival) + intervalNanos;
+            long overdraft = next - now - burstNanos;
+            if (overdraft > 0) {
+                limited.increment();
+                return overdraft;
+            }
+            if (bucket.compareAndSet(arrival, next)) {
+                allowed.increment();
+                return 0;
+            }
+        }
+    }
+    
+    // A bucket whose arrival time has passed is full, which is the same as not tracking it.
+    // A caller racing with removal may CAS an orphaned bucket; that only grants a permit a
+    // full bucket would have granted anyway.
+    private void evictIdle() {
+        long now = System.nanoTime();
+        buckets.entrySet().removeIf(entry -> entry.getValue().get() - now < 0);
+    }
+}
\ No newline at end of file
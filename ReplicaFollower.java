@@ -0,0 +1,279 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Standby side of log-shipping replication: keeps this process's data directory a copy of a
+ * primary's by applying its stream of file writes (see ReplicationLog) in order.
+ *
+ * connect() blocks until a first snapshot is on disk, so startup can then load the data as
+ * usual. start() follows the stream on a background thread, committing whatever has arrived
+ * as one StorageWriter batch and then telling the Applier which files changed, so in-memory
+ * state follows. A dropped connection is retried with the last applied position; the primary
+ * resumes from it or sends a new snapshot.
+ *
+ * Lag: lagEntries is how many writes the primary has made that are not applied here, as of
+ * the last message from it; lagMillis is 0 when caught up, otherwise how long ago this
+ * standby was last caught up, which bounds how much recent history a failover would lose.
+ */
+public class ReplicaFollower {
+    public interface Applier {
+        void applied(String name) throws Exception;
+    }
+    
+    private static final int MAX_BATCH_BYTES = 16 * 1024 * 1024;
+    private static final long MAX_RETRY_MILLIS = 5000;
+    
+    private final String host;
+    private final int port;
+    private final String token;
+    private final StorageWriter storage;
+    private final Path dataDir;
+    
+    private volatile long epoch;
+    private volatile long appliedSeq;
+    private volatile long primarySeq;
+    private volatile long caughtUpAtMillis;
+    private volatile long lastContactMillis;
+    private volatile boolean connected;
+    private volatile boolean stopped;
+    private volatile Socket socket;
+    private DataInputStream in;
+    private DataOutputStream out;
+    private Thread thread;
+    
+    public ReplicaFollower(String primary, String token, StorageWriter storage, Path dataDir) {
+        int colon = primary.lastIndexOf(':');
+        if (colon < 0) {
+            throw new IllegalArgumentException("Primary must be host:port, got " + primary);
+        }
+        this.host = primary.substring(0, colon);
+        this.port = Integer.parseInt(primary.substring(colon + 1));
+        this.token = token;
+        this.storage = storage;
+        this.dataDir = dataDir;
+        Metrics.gauge("replication.applied_seq", () -> appliedSeq);
+        Metrics.gauge("replication.lag_entries", this::lagEntries);
+        Metrics.gauge("replication.lag_millis", this::lagMillis);
+    }
+    
+    /**
+     * Connects to the primary and applies its snapshot, retrying until both succeed.
+     */
+    public void connect() throws InterruptedException {
+        long retryMillis = 100;
+        while (true) {
+            try {
+                open();
+                readFrame(null);
+                if (epoch != 0) {
+                    return;
+                }
+                throw new IOException("Primary did not start with a snapshot");
+            } catch (IOException e) {
+                closeSocket();
+                System.err.println("Replication: waiting for primary " + host + ":" + port + ": " + e.getMessage());
+                Thread.sleep(retryMillis);
+                retryMillis = Math.min(retryMillis * 2, MAX_RETRY_MILLIS);
+            }
+        }
+    }
+    
+    /**
+     * Follows the stream from the snapshot connect() applied, on a background thread.
+     */
+    public void start(Applier applier) {
+        thread = new Thread(() -> follow(applier), "replication-follower");
+        thread.setDaemon(true);
+        thread.start();
+    }
+    
+    /**
+     * Stops following; once this returns no further replicated write will be applied.
+     */
+    public void stop() throws InterruptedException {
+        stopped = true;
+        closeSocket();
+        if (thread != null) {
+            thread.join();
+        }
+    }
+    
+    public String toJson() {
+        long now = System.currentTimeMillis();
+        return "{\"role\":\"standby\",\"primary\":\"" + host + ":" + port + "\",\"connected\":" + connected
+                + ",\"epoch\":\"" + epoch + "\",\"appliedSeq\":" + appliedSeq + ",\"primarySeq\":" + primarySeq
+                + ",\"lagEntries\":" + lagEntries() + ",\"lagMillis\":" + lagMillis()
+                + ",\"lastContactMillisAgo\":" + (lastContactMillis == 0 ? -1 : now - lastContactMillis) + "}";
+    }
+    
+    private long lagEntries() {
+        return Math.max(0, primarySeq - appliedSeq);
+    }
+    
+    private long lagMillis() {
+        if (connected && appliedSeq >= primarySeq) {
+            return 0;
+        }
+        return caughtUpAtMillis == 0 ? 0 : System.currentTimeMillis() - caughtUpAtMillis;
+    }
+    
+    private void follow(Applier applier) {
+        long retryMillis = 100;
+        while (!stopped) {
+            try {
+                if (socket == null) {
+                    open();
+                    if (stopped) {
+                        closeSocket();
+                        return;
+                    }
+                }
+                retryMillis = 100;
+                while (!stopped) {
+                    readFrame(applier);
+                }
+            } catch (IOException e) {
+                boolean wasConnected = connected;
+                closeSocket();
+                if (stopped) {
+                    return;
+                }
+                if (wasConnected) {
+                    System.err.println("Replication: lost primary " + host + ":" + port + ": " + e.getMessage());
+                }
+                try {
+                    Thread.sleep(retryMillis);
+                } catch (InterruptedException interrupted) {
+                    return;
+                }
+                retryMillis = Math.min(retryMillis * 2, MAX_RETRY_MILLIS);
+            }
+        }
+    }
+    
+    private void open() throws IOException {
+        Socket opened = new Socket();
+        opened.connect(new InetSocketAddress(host, port), 5000);
+        opened.setTcpNoDelay(true);
+        // Heartbeats arrive every second, so silence this long means the primary is gone
+        opened.setSoTimeout((int) (ReplicationLog.HEARTBEAT_MILLIS * 10));
+        in = new DataInputStream(new BufferedInputStream(opened.getInputStream(), 64 * 1024));
+        out = new DataOutputStream(new BufferedOutputStream(opened.getOutputStream()));
+        out.writeUTF(ReplicationLog.PROTOCOL);
+        out.writeUTF(token);
+        out.writeLong(epoch);
+        out.writeLong(appliedSeq);
+        out.flush();
+        socket = opened;
+        connected = true;
+        System.out.println("Replication: following " + host + ":" + port + " from " + appliedSeq);
+    }
+    
+    private void closeSocket() {
+        connected = false;
+        Socket current = socket;
+        socket = null;
+        if (current != null) {
+            try {
+                current.close();
+            } catch (IOException ignored) {
+                // Already gone
+            }
+        }
+    }
+    
+    // Reads one message, plus any mutations already buffered behind it, and commits them together
+    private void readFrame(Applier applier) throws IOException {
+        byte type = in.readByte();
+        lastContactMillis = System.currentTimeMillis();
+        Map<Path, byte[]> files = new LinkedHashMap<>();
+        Set<String> names = new LinkedHashSet<>();
+        long seq;
+        
+        if (type == ReplicationLog.SNAPSHOT) {
+            long snapshotEpoch = in.readLong();
+            seq = in.readLong();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                readFile(files, names);
+            }
+            commit(files, names, applier);
+            epoch = snapshotEpoch;
+            // Sequence numbers restart when the primary does
+            primarySeq = seq;
+            System.out.println("Replication: applied snapshot of " + count + " files at " + seq);
+        } else if (type == ReplicationLog.HEARTBEAT) {
+            primarySeq = in.readLong();
+            in.readLong();
+            seq = appliedSeq;
+        } else if (type == ReplicationLog.MUTATION) {
+            int batchBytes = 0;
+            do {
+                seq = in.readLong();
+                in.readLong();
+                batchBytes += readFile(files, names);
+            } while (batchBytes < MAX_BATCH_BYTES && in.available() > 0 && nextIsMutation());
+            commit(files, names, applier);
+        } else {
+            throw new IOException("Unexpected replication message " + type);
+        }
+        
+        appliedSeq = seq;
+        primarySeq = Math.max(primarySeq, seq);
+        if (appliedSeq >= primarySeq) {
+            caughtUpAtMillis = System.currentTimeMillis();
+        }
+        out.writeByte(ReplicationLog.ACK);
+        out.writeLong(seq);
+        out.flush();
+    }
+    
+    private boolean nextIsMutation() throws IOException {
+        in.mark(1);
+        byte next = in.readByte();
+        if (next == ReplicationLog.MUTATION) {
+            return true;
+        }
+        in.reset();
+        return false;
+    }
+    
+    private int readFile(Map<Path, byte[]> files, Set<String> names) throws IOException {
+        String name = in.readUTF();
+        byte[] content = new byte[in.readInt()];
+        in.readFully(content);
+        if (!ReplicationLog.isReplicated(name)) {
+            throw new IOException("Primary sent a file outside the replicated set: " + name);
+        }
+        // Later writes of the same file replace earlier ones; only the last is committed
+        files.remove(dataDir.resolve(name));
+        files.put(dataDir.resolve(name), content);
+        names.remove(name);
+        names.add(name);
+        return content.length;
+    }
+    
+    private void commit(Map<Path, byte[]> files, Set<String> names, Applier applier) throws IOException {
+        storage.writeAll(files);
+        if (applier == null) {
+            return;
+        }
+        for (String name : names) {
+            try {
+                applier.applied(name);
+            } catch (Exception e) {
+                System.err.println("Replication: could not reload " + name + ": " + e);
+            }
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,287 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Primary side of log-shipping replication: every data file write, in the order StorageWriter
+ * accepted it, streamed to standby processes (see ReplicaFollower) over TCP.
+ *
+ * Each write is numbered and kept in an in-memory backlog of up to maxBacklogBytes. A follower
+ * that connects with a position still in the backlog resumes from there; one that is new,
+ * too far behind, or was following an earlier run of this process first gets a snapshot of
+ * every replicated file. Writes never wait for followers, so a failover loses what the
+ * standby had not applied yet; /api/admin/replication shows how far behind each one is.
+ *
+ * The stream carries password hashes and keys, so followers must present the shared token.
+ *
+ * Wire format (DataOutputStream), follower first:
+ *   hello     PROTOCOL, token, epoch, last applied seq   (epoch 0: nothing applied yet)
+ *   snapshot  'S' epoch seq count {name length bytes}*
+ *   mutation  'M' seq timeMillis name length bytes
+ *   heartbeat 'H' lastSeq timeMillis                      (when idle, every HEARTBEAT_MILLIS)
+ *   ack       'A' applied seq                             (follower to primary)
+ */
+public class ReplicationLog implements StorageWriter.Listener {
+    static final String PROTOCOL = "pm-replication-1";
+    static final byte SNAPSHOT = 'S';
+    static final byte MUTATION = 'M';
+    static final byte HEARTBEAT = 'H';
+    static final byte ACK = 'A';
+    static final long HEARTBEAT_MILLIS = 1000;
+    private static final int HANDSHAKE_TIMEOUT_MILLIS = 10_000;
+    
+    private final StorageWriter storage;
+    private final Path dataDir;
+    private final byte[] token;
+    private final long maxBacklogBytes;
+    // Identifies this run of the process; sequence numbers restart with it
+    private final long epoch = IdGenerator.next();
+    
+    // Guarded by this
+    private final ArrayDeque<Mutation> backlog = new ArrayDeque<>();
+    private long backlogBytes;
+    private long lastSeq;
+    
+    // Follower address -> last sequence it acknowledged
+    private final Map<String, Long> followers = new ConcurrentHashMap<>();
+    private final LongAdder snapshots = Metrics.counter("replication.snapshots_sent");
+    private ServerSocket serverSocket;
+    
+    public ReplicationLog(StorageWriter storage, Path dataDir, String token, long maxBacklogBytes) {
+        this.storage = storage;
+        this.dataDir = dataDir.toAbsolutePath().normalize();
+        this.token = token.getBytes(StandardCharsets.UTF_8);
+        this.maxBacklogBytes = maxBacklogBytes;
+        Metrics.gauge("replication.last_seq", this::lastSeq);
+        Metrics.gauge("replication.followers", followers::size);
+        Metrics.gauge("replication.max_lag_entries", this::maxLag);
+    }
+    
+    /**
+     * Data files a standby needs, by name relative to the data directory. Also the check a
+     * follower applies to every name it receives, so nothing can be written outside it.
+     */
+    static boolean isReplicated(String name) {
+        return name.equals("users.json") || name.equals("sessions.json") || name.equals("encryption.key")
+                || name.equals("keys/active") || name.matches("keys/\\d{1,9}\\.key")
+                || name.matches("passwords/[0-9a-f]{2}/[A-Za-z0-9_-]+\\.json");
+    }
+    
+    @Override
+    public void written(Path file, byte[] content) {
+        String name = nameOf(file);
+        if (name == null) {
+            return;
+        }
+        synchronized (this) {
+            backlog.addLast(new Mutation(++lastSeq, System.currentTimeMillis(), name, content));
+            backlogBytes += content.length;
+            while (backlogBytes > maxBacklogBytes && backlog.size() > 1) {
+                backlogBytes -= backlog.removeFirst().content.length;
+            }
+            notifyAll();
+        }
+    }
+    
+    public void start(String bindAddress, int port) throws IOException {
+        serverSocket = new ServerSocket();
+        serverSocket.bind(new InetSocketAddress(bindAddress, port));
+        Thread acceptor = new Thread(this::acceptFollowers, "replication-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        System.out.println("Replication: accepting followers on " + bindAddress + ":" + port);
+    }
+    
+    public String toJson() {
+        StringBuilder json = new StringBuilder();
+        long seq = lastSeq();
+        json.append("{\"role\":\"primary\",\"epoch\":\"").append(epoch).append("\",\"lastSeq\":").append(seq);
+        json.append(",\"followers\":[");
+        String separator = "";
+        for (Map.Entry<String, Long> follower : followers.entrySet()) {
+            json.append(separator).append("{\"address\":\"").append(follower.getKey())
+                    .append("\",\"ackedSeq\":").append(follower.getValue())
+                    .append(",\"lagEntries\":").append(Math.max(0, seq - follower.getValue())).append('}');
+            separator = ",";
+        }
+        json.append("]}");
+        return json.toString();
+    }
+    
+    private synchronized long lastSeq() {
+        return lastSeq;
+    }
+    
+    private long maxLag() {
+        long seq = lastSeq();
+        long lag = 0;
+        for (long acked : followers.values()) {
+            lag = Math.max(lag, seq - acked);
+        }
+        return lag;
+    }
+    
+    private String nameOf(Path file) {
+        Path absolute = file.toAbsolutePath().normalize();
+        if (!absolute.startsWith(dataDir)) {
+            return null;
+        }
+        String name = dataDir.relativize(absolute).toString().replace(File.separatorChar, '/');
+        return isReplicated(name) ? name : null;
+    }
+    
+    private void acceptFollowers() {
+        while (true) {
+            Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                if (serverSocket.isClosed()) {
+                    return;
+                }
+                continue;
+            }
+            Thread sender = new Thread(() -> serveFollower(socket), "replication-" + socket.getRemoteSocketAddress());
+            sender.setDaemon(true);
+            sender.start();
+        }
+    }
+    
+    private void serveFollower(Socket socket) {
+        String address = socket.getRemoteSocketAddress().toString();
+        try (socket) {
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+            if (!PROTOCOL.equals(in.readUTF())
+                    || !MessageDigest.isEqual(token, in.readUTF().getBytes(StandardCharsets.UTF_8))) {
+                System.err.println("Replication: rejected follower " + address + " (bad protocol or token)");
+                return;
+            }
+            long followerEpoch = in.readLong();
+            long position = in.readLong();
+            socket.setSoTimeout(0);
+            // A position from another run of this process means nothing here
+            long sent = followerEpoch == epoch ? position : -1;
+            followers.put(address, Math.max(sent, 0));
+            System.out.println("Replication: follower " + address + " connected at " + sent);
+            
+            while (true) {
+                List<Mutation> pending = new ArrayList<>();
+                boolean needSnapshot;
+                long seq;
+                synchronized (this) {
+                    long deadline = System.currentTimeMillis() + HEARTBEAT_MILLIS;
+                    long remaining;
+                    while (lastSeq == sent && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                        wait(remaining);
+                    }
+                    seq = lastSeq;
+                    needSnapshot = sent < 0 || (sent < lastSeq && (backlog.isEmpty() || backlog.getFirst().seq > sent + 1));
+                    if (!needSnapshot) {
+                        for (Iterator<Mutation> it = backlog.descendingIterator(); it.hasNext(); ) {
+                            Mutation mutation = it.next();
+                            if (mutation.seq <= sent) {
+                                break;
+                            }
+                            pending.add(mutation);
+                        }
+                        Collections.reverse(pending);
+                    }
+                }
+                
+                if (needSnapshot) {
+                    sent = sendSnapshot(out);
+                } else if (pending.isEmpty()) {
+                    out.writeByte(HEARTBEAT);
+                    out.writeLong(seq);
+                    out.writeLong(System.currentTimeMillis());
+                } else {
+                    for (Mutation mutation : pending) {
+                        out.writeByte(MUTATION);
+                        out.writeLong(mutation.seq);
+                        out.writeLong(mutation.timeMillis);
+                        out.writeUTF(mutation.name);
+                        out.writeInt(mutation.content.length);
+                        out.write(mutation.content);
+                        sent = mutation.seq;
+                    }
+                }
+                out.flush();
+                
+                // Acks are small and the follower sends one per batch, so never wait for them
+                while (in.available() >= 9) {
+                    if (in.readByte() == ACK) {
+                        followers.put(address, in.readLong());
+                    }
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Replication: follower " + address + " disconnected: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            followers.remove(address);
+        }
+    }
+    
+    // Every write numbered up to the snapshot's seq is on disk once the flush returns. Later
+    // writes may be in the files too; the follower replays them after the snapshot, which is
+    // harmless since each one replaces a whole file.
+    private long sendSnapshot(DataOutputStream out) throws IOException {
+        long seq = lastSeq();
+        storage.flush();
+        List<Path> files;
+        try (Stream<Path> walk = Files.walk(dataDir)) {
+            files = walk.filter(Files::isRegularFile).filter(p -> nameOf(p) != null).sorted().collect(Collectors.toList());
+        }
+        
+        out.writeByte(SNAPSHOT);
+        out.writeLong(epoch);
+        out.writeLong(seq);
+        out.writeInt(files.size());
+        for (Path file : files) {
+            byte[] content = Files.readAllBytes(file);
+            out.writeUTF(nameOf(file));
+            out.writeInt(content.length);
+            out.write(content);
+        }
+        snapshots.increment();
+        return seq;
+    }
+    
+    private static class Mutation {
+        final long seq;
+        final long timeMillis;
+        final String name;
+        final byte[] content;
+        
+        Mutation(long seq, long timeMillis, String name, byte[] content) {
+            this.seq = seq;
+            this.timeMillis = timeMillis;
+            this.name = name;
+            this.content = content;
+        }
+    }
+}
\ No newline at end of file
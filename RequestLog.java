@@ -0,0 +1,139 @@
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.Map;
+
+/**
+ * Access and error logs as JSON lines under LOG_DIR (default data/logs), written off the
+ * request path by two AsyncAppenders.
+ *
+ * The access log has one line per response: method, path, status, latency, user id (when the
+ * request was authenticated), response bytes and client address. Errors are rate-limited per
+ * exception type (ERROR_LOG_RATE, default 1 per second with a burst of 10), so a failure storm
+ * costs a counter increment per request instead of a stack trace each; error_log.suppressed
+ * counts what was skipped. Stack traces are rendered by the writer thread.
+ *
+ * LOG_BUFFER_SIZE     events queued per log before new ones are dropped (default 8192)
+ * LOG_MAX_FILE_MB     size at which a new file is started (default 64)
+ * LOG_MAX_FILES       files kept per log (default 10)
+ */
+public class RequestLog {
+    private static final int MAX_STACK_FRAMES = 20;
+    
+    private final AsyncAppender<Access> accessLog;
+    private final AsyncAppender<Failure> errorLog;
+    private final RateLimiter errorLimiter;
+    
+    public RequestLog(AsyncAppender<Access> accessLog, AsyncAppender<Failure> errorLog, RateLimiter errorLimiter) {
+        this.accessLog = accessLog;
+        this.errorLog = errorLog;
+        this.errorLimiter = errorLimiter;
+    }
+    
+    public static RequestLog fromEnvironment() {
+        Map<String, String> env = System.getenv();
+        Path dir = Paths.get(env.getOrDefault("LOG_DIR", "data/logs"));
+        int capacity = Integer.parseInt(env.getOrDefault("LOG_BUFFER_SIZE", "8192"));
+        long maxFileBytes = Long.parseLong(env.getOrDefault("LOG_MAX_FILE_MB", "64")) * 1024 * 1024;
+        int maxFiles = Integer.parseInt(env.getOrDefault("LOG_MAX_FILES", "10"));
+        // Logs are diagnostics, not records: never block a request on them, fsync lazily
+        return new RequestLog(
+                new AsyncAppender<>("access_log", dir, capacity, AsyncAppender.Overflow.DROP, maxFileBytes, maxFiles,
+                        5000, RequestLog::formatAccess),
+                new AsyncAppender<>("error_log", dir, capacity, AsyncAppender.Overflow.DROP, maxFileBytes, maxFiles,
+                        5000, RequestLog::formatError),
+                RateLimiter.fromEnvironment("error_log", "ERROR_LOG_RATE", "1:10"));
+    }
+    
+    public void access(String method, String path, int status, long latencyNanos, String userId, long bytes, String client) {
+        Access event = new Access();
+        event.time = System.currentTimeMillis();
+        event.method = method;
+        event.path = path;
+        event.status = status;
+        event.latencyMicros = latencyNanos / 1000;
+        event.userId = userId;
+        event.bytes = bytes;
+        event.client = client;
+        accessLog.append(event);
+    }
+    
+    /**
+     * Logs a failure while handling method and path, unless errors of this type are over budget.
+     */
+    public void error(String method, String path, Throwable error) {
+        if (errorLimiter.tryAcquire(error.getClass().getName()) > 0) {
+            Metrics.increment("error_log.suppressed");
+            return;
+        }
+        Failure event = new Failure();
+        event.time = System.currentTimeMillis();
+        event.thread = Thread.currentThread().getName();
+        event.method = method;
+        event.path = path;
+        event.error = error;
+        errorLog.append(event);
+    }
+    
+    private static void formatAccess(Access event, StringBuilder line) {
+        line.append("{\"time\":\"").append(Instant.ofEpochMilli(event.time)).append('"');
+        line.append(",\"method\":");
+        AsyncAppender.appendString(line, event.method);
+        line.append(",\"path\":");
+        AsyncAppender.appendString(line, event.path);
+        line.append(",\"status\":").append(event.status);
+        line.append(",\"latencyMicros\":").append(event.latencyMicros);
+        line.append(",\"userId\":");
+        AsyncAppender.appendString(line, event.userId);
+        line.append(",\"bytes\":").append(event.bytes);
+        line.append(",\"client\":");
+        AsyncAppender.appendString(line, event.client);
+        line.append('}');
+    }
+    
+    private static void formatError(Failure event, StringBuilder line) {
+        line.append("{\"time\":\"").append(Instant.ofEpochMilli(event.time)).append('"');
+        line.append(",\"thread\":");
+        AsyncAppender.appendString(line, event.thread);
+        line.append(",\"method\":");
+        AsyncAppender.appendString(line, event.method);
+        line.append(",\"path\":");
+        AsyncAppender.appendString(line, event.path);
+        line.append(",\"error\":");
+        AsyncAppender.appendString(line, String.valueOf(event.error));
+        line.append(",\"stack\":[");
+        StackTraceElement[] frames = event.error.getStackTrace();
+        for (int i = 0; i < Math.min(frames.length, MAX_STACK_FRAMES); i++) {
+            if (i > 0) {
+                line.append(',');
+            }
+            AsyncAppender.appendString(line, frames[i].toString());
+        }
+        line.append(']');
+        Throwable cause = event.error.getCause();
+        if (cause != null && cause != event.error) {
+            line.append(",\"cause\":");
+            AsyncAppender.appendString(line, String.valueOf(cause));
+        }
+        line.append('}');
+    }
+    
+    public static class Access {
+        long time;
+        String method;
+        String path;
+        int status;
+        long latencyMicros;
+        String userId;
+        long bytes;
+        String client;
+    }
+    
+    public static class Failure {
+        long time;
+        String thread;
+        String method;
+        String path;
+        Throwable error;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,63 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Small LRU cache of serialized responses, one per key, tagged with the data version
+ * they were rendered from. A lookup only hits when the caller's current version matches,
+ * so a stale body can never be served even if an invalidation is missed.
+ *
+ * Bodies live only in memory; nothing here is ever written to disk.
+ */
+public class ResponseCache {
+    private final int maxEntryBytes;
+    private final Map<String, Entry> entries;
+    private final LongAdder hits = Metrics.counter("response_cache.hits");
+    private final LongAdder misses = Metrics.counter("response_cache.misses");
+    
+    public ResponseCache(int maxEntries, int maxEntryBytes) {
+        this.maxEntryBytes = maxEntryBytes;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+        Metrics.gauge("response_cache.entries", this::size);
+    }
+    
+    public synchronized byte[] get(String key, long version) {
+        Entry entry = entries.get(key);
+        if (entry == null || entry.version != version) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return entry.body;
+    }
+    
+    public synchronized void put(String key, long version, byte[] body) {
+        if (body.length > maxEntryBytes) {
+            return;
+        }
+        entries.put(key, new Entry(version, body));
+    }
+    
+    public synchronized void invalidate(String key) {
+        entries.remove(key);
+    }
+    
+    private synchronized long size() {
+        return entries.size();
+    }
+    
+    private static class Entry {
+        final long version;
+        final byte[] body;
+        
+        Entry(long version, byte[] body) {
+            this.version = version;
+            this.body = body;
+        }
+    }
+}
\ No newline at end of file
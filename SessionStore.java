@@ -0,0 +1,249 @@
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Login sessions behind refresh tokens, held in memory and persisted to data/sessions.json.
+ * Changes are made and the file submitted under the lock, but the wait for the commit happens
+ * after releasing it, so logins and refreshes arriving together share one fsync.
+ *
+ * A refresh token is "<session id>.<secret>"; only a SHA-256 of the secret is kept. Every
+ * refresh replaces the secret, so each refresh token works once. Presenting a secret that was
+ * already replaced means the token was copied, and the whole session is revoked. Access tokens
+ * carry the session id and are only valid while the session exists, so revocation takes
+ * effect on the next request.
+ */
+public class SessionStore {
+    private static final String SESSIONS_FILE = "data/sessions.json";
+    private static final long REFRESH_TTL_SECONDS =
+            Long.parseLong(System.getenv().getOrDefault("REFRESH_TOKEN_TTL_DAYS", "30")) * 24 * 60 * 60;
+    private static final SecureRandom RANDOM = new SecureRandom();
+    
+    private final StorageWriter storage;
+    // Session id -> session. Sessions are replaced, never mutated, under the lock; lookups
+    // from validateToken go through the map without locking.
+    private final ConcurrentHashMap<String, Session> sessions = new ConcurrentHashMap<>();
+    
+    public SessionStore(StorageWriter storage) {
+        this.storage = storage;
+        Metrics.gauge("sessions.active", sessions::size);
+    }
+    
+    /**
+     * Reads sessions.json, dropping sessions that expired while the server was down. When
+     * called again (replication replaced the file), sessions no longer in it are dropped too.
+     */
+    public synchronized void load() throws Exception {
+        String content = storage.readString(Paths.get(SESSIONS_FILE));
+        if (content == null) {
+            return;
+        }
+        long now = Instant.now().getEpochSecond();
+        java.util.Set<String> loaded = new java.util.HashSet<>();
+        java.util.regex.Matcher m = java.util.regex.Pattern.compile("\\{[^{}]*\\}").matcher(content);
+        while (m.find()) {
+            Session session = parseSession(m.group());
+            if (session != null && session.expiresAt > now) {
+                sessions.put(session.id, session);
+                loaded.add(session.id);
+            }
+        }
+        sessions.keySet().retainAll(loaded);
+    }
+    
+    /**
+     * Starts a session for a user who just proved their password; returns its refresh token.
+     */
+    public Issued create(String userId, String username) throws Exception {
+        String secret = newSecret();
+        Session session = new Session();
+        session.id = Long.toString(IdGenerator.next());
+        session.userId = userId;
+        session.username = username;
+        session.secretHash = hash(secret);
+        session.createdAt = Instant.now().getEpochSecond();
+        session.expiresAt = session.createdAt + REFRESH_TTL_SECONDS;
+        StorageWriter.Pending saved;
+        synchronized (this) {
+            sessions.put(session.id, session);
+            saved = save();
+        }
+        saved.await();
+        return new Issued(session, session.id + "." + secret);
+    }
+    
+    /**
+     * Exchanges a refresh token for a new one on the same session, or null if the token is
+     * unknown, expired or already used.
+     */
+    public Issued rotate(String refreshToken) throws Exception {
+        int dot = refreshToken.indexOf('.');
+        if (dot < 0) {
+            return null;
+        }
+        String presented = hash(refreshToken.substring(dot + 1));
+        String secret = newSecret();
+        Issued issued = null;
+        StorageWriter.Pending saved;
+        synchronized (this) {
+            Session session = sessions.get(refreshToken.substring(0, dot));
+            if (session == null) {
+                return null;
+            }
+            long now = Instant.now().getEpochSecond();
+            if (session.expiresAt <= now) {
+                sessions.remove(session.id);
+            } else if (!MessageDigest.isEqual(presented.getBytes(StandardCharsets.UTF_8),
+                    session.secretHash.getBytes(StandardCharsets.UTF_8))) {
+                // An old token came back after it was rotated: someone else holds a copy
+                Metrics.increment("auth.refresh_reuse");
+                sessions.remove(session.id);
+            } else {
+                Session rotated = session.copy();
+                rotated.secretHash = hash(secret);
+                rotated.expiresAt = now + REFRESH_TTL_SECONDS;
+                sessions.put(rotated.id, rotated);
+                issued = new Issued(rotated, rotated.id + "." + secret);
+            }
+            saved = save();
+        }
+        saved.await();
+        return issued;
+    }
+    
+    public boolean isActive(String sessionId, String userId) {
+        Session session = sessions.get(sessionId);
+        return session != null && session.userId.equals(userId) && session.expiresAt > Instant.now().getEpochSecond();
+    }
+    
+    public void revoke(String sessionId) throws Exception {
+        StorageWriter.Pending saved;
+        synchronized (this) {
+            if (sessions.remove(sessionId) == null) {
+                return;
+            }
+            saved = save();
+        }
+        saved.await();
+    }
+    
+    /**
+     * Ends every session of the user, signing them out everywhere.
+     */
+    public int revokeAll(String userId) throws Exception {
+        List<String> ids = new ArrayList<>();
+        StorageWriter.Pending saved;
+        synchronized (this) {
+            for (Session session : sessions.values()) {
+                if (session.userId.equals(userId)) {
+                    ids.add(session.id);
+                }
+            }
+            if (ids.isEmpty()) {
+                return 0;
+            }
+            for (String id : ids) {
+                sessions.remove(id);
+            }
+            saved = save();
+        }
+        saved.await();
+        return ids.size();
+    }
+    
+    private static String newSecret() {
+        byte[] secret = new byte[32];
+        RANDOM.nextBytes(secret);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(secret);
+    }
+    
+    private static String hash(String secret) throws Exception {
+        MessageDigest md = MessageDigest.getInstance("SHA-256");
+        return Base64.getEncoder().encodeToString(md.digest(secret.getBytes(StandardCharsets.UTF_8)));
+    }
+    
+    private Session parseSession(String json) {
+        try {
+            Session session = new Session();
+            session.id = extractStringValue(json, "id");
+            session.userId = extractStringValue(json, "userId");
+            session.username = extractStringValue(json, "username");
+            session.secretHash = extractStringValue(json, "secretHash");
+            session.createdAt = Instant.parse(extractStringValue(json, "createdAt")).getEpochSecond();
+            session.expiresAt = Instant.parse(extractStringValue(json, "expiresAt")).getEpochSecond();
+            return session.id.isEmpty() || session.secretHash.isEmpty() ? null : session;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+    
+    private String extractStringValue(String json, String key) {
+        java.util.regex.Matcher m = java.util.regex.Pattern.compile("\"" + key + "\":\\s*\"([^\"]+)\"").matcher(json);
+        return m.find() ? m.group(1) : "";
+    }
+    
+    // Caller holds the lock, so snapshots are submitted in the order the changes were made, and
+    // awaits the result after releasing it. Expired sessions are dropped as the file is rewritten.
+    private StorageWriter.Pending save() throws Exception {
+        long now = Instant.now().getEpochSecond();
+        sessions.values().removeIf(s -> s.expiresAt <= now);
+        
+        StringBuilder json = new StringBuilder("[");
+        String separator = "\n";
+        for (Session session : sessions.values()) {
+            json.append(separator);
+            separator = ",\n";
+            json.append("  {\n");
+            json.append("    \"id\": \"").append(session.id).append("\",\n");
+            json.append("    \"userId\": \"").append(session.userId).append("\",\n");
+            json.append("    \"username\": \"").append(session.username).append("\",\n");
+            json.append("    \"secretHash\": \"").append(session.secretHash).append("\",\n");
+            json.append("    \"createdAt\": \"").append(Instant.ofEpochSecond(session.createdAt)).append("\",\n");
+            json.append("    \"expiresAt\": \"").append(Instant.ofEpochSecond(session.expiresAt)).append("\"\n");
+            json.append("  }");
+        }
+        json.append("\n]");
+        
+        return storage.submitAll(Map.of(Paths.get(SESSIONS_FILE), json.toString().getBytes(StandardCharsets.UTF_8)));
+    }
+    
+    public static class Session {
+        public String id;
+        public String userId;
+        public String username;
+        public String secretHash;
+        public long createdAt;
+        public long expiresAt;
+        
+        public Session copy() {
+            Session copy = new Session();
+            copy.id = id;
+            copy.userId = userId;
+            copy.username = username;
+            copy.secretHash = secretHash;
+            copy.createdAt = createdAt;
+            copy.expiresAt = expiresAt;
+            return copy;
+        }
+    }
+    
+    /**
+     * A session together with the one refresh token that currently unlocks it.
+     */
+    public static class Issued {
+        public final Session session;
+        public final String refreshToken;
+        
+        Issued(Session session, String refreshToken) {
+            this.session = session;
+            this.refreshToken = refreshToken;
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,177 @@
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Moves users onto the backend that owns them on a new hash ring, after shards are added.
+ *
+ *   SHARD_SECRET=... java ShardRebalancer <backends> [--from <backends>] [--dry-run]
+ *
+ * <backends> is the new ring, comma-separated, exactly as routers will get it in SHARD_BACKENDS.
+ * Every backend in it, plus any in --from (shards being drained), is asked for its users, and
+ * each user held by the wrong backend is copied to its owner and then released by the old one,
+ * which from then on answers 421 pointing at the new owner. A release only succeeds if the vault
+ * did not change since it was copied; otherwise the copy is retried, so users stay online and
+ * no write is lost. Run it before giving routers the new ring, and again after, to pick up
+ * users who registered on the old ring in between. SHARD_VNODES must match the routers'.
+ */
+public class ShardRebalancer {
+    private static final int MAX_ATTEMPTS = 5;
+    private static final Pattern USER_ID = Pattern.compile("\"([A-Za-z0-9_-]+)\"");
+    
+    private final HashRing ring;
+    private final String secret;
+    private final boolean dryRun;
+    private final HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+    private int scanned;
+    private int moved;
+    private int conflicts;
+    private int failed;
+    
+    ShardRebalancer(HashRing ring, String secret, boolean dryRun) {
+        this.ring = ring;
+        this.secret = secret;
+        this.dryRun = dryRun;
+    }
+    
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0) {
+            System.out.println("Usage: SHARD_SECRET=... java ShardRebalancer <backends> [--from <backends>] [--dry-run]");
+            return;
+        }
+        String secret = System.getenv("SHARD_SECRET");
+        if (secret == null || secret.isEmpty()) {
+            System.err.println("SHARD_SECRET must be set");
+            System.exit(1);
+        }
+        
+        HashRing ring = HashRing.parse(args[0], PasswordManagerServer.SHARD_VNODES);
+        Set<String> sources = new LinkedHashSet<>(ring.backends());
+        boolean dryRun = false;
+        for (int i = 1; i < args.length; i++) {
+            if ("--dry-run".equals(args[i])) {
+                dryRun = true;
+            } else if ("--from".equals(args[i]) && i + 1 < args.length) {
+                sources.addAll(HashRing.parse(args[++i], 1).backends());
+            } else {
+                System.err.println("Unknown argument: " + args[i]);
+                System.exit(1);
+            }
+        }
+        
+        ShardRebalancer rebalancer = new ShardRebalancer(ring, secret, dryRun);
+        long start = System.nanoTime();
+        for (String source : sources) {
+            rebalancer.rebalance(source);
+        }
+        rebalancer.report((System.nanoTime() - start) / 1_000_000);
+        if (rebalancer.failed > 0 || rebalancer.conflicts > 0) {
+            System.exit(2);
+        }
+    }
+    
+    private void rebalance(String source) throws Exception {
+        HttpResponse<String> response = send(HttpRequest.newBuilder(URI.create(source + "/api/admin/shard/users")).GET());
+        if (response.statusCode() != 200) {
+            throw new IllegalStateException(source + " answered " + response.statusCode() + " listing users: " + response.body());
+        }
+        List<String> users = new ArrayList<>();
+        Matcher m = USER_ID.matcher(response.body());
+        while (m.find()) {
+            if (!m.group(1).equals("users")) {
+                users.add(m.group(1));
+            }
+        }
+        
+        int leaving = 0;
+        for (String userId : users) {
+            scanned++;
+            String owner = ring.ownerOf(userId);
+            if (owner.equals(source)) {
+                continue;
+            }
+            leaving++;
+            if (dryRun) {
+                moved++;
+                continue;
+            }
+            move(userId, source, owner);
+        }
+        System.out.println(source + ": " + users.size() + " users, " + leaving + (dryRun ? " would move" : " moved off"));
+    }
+    
+    private void move(String userId, String source, String target) throws Exception {
+        String user = URLEncoder.encode(userId, StandardCharsets.UTF_8);
+        // The target holds nothing for this user until the first copy lands
+        long targetVersion = 0;
+        for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
+            HttpResponse<String> exported = send(HttpRequest.newBuilder(
+                    URI.create(source + "/api/admin/shard/vault?userId=" + user)).GET());
+            if (exported.statusCode() == 421) {
+                // Released by an earlier, interrupted run
+                return;
+            }
+            if (exported.statusCode() != 200) {
+                fail(userId, source + " export", exported);
+                return;
+            }
+            String version = exported.headers().firstValue("X-Vault-Version").orElse("0");
+            
+            HttpResponse<String> imported = send(HttpRequest.newBuilder(URI.create(target
+                    + "/api/admin/shard/vault?userId=" + user + "&expectedVersion=" + targetVersion))
+                    .PUT(HttpRequest.BodyPublishers.ofString(exported.body())));
+            if (imported.statusCode() == 409) {
+                // The target took writes for this user itself, most likely from a router that
+                // already had the new ring: merging is for an operator to decide
+                conflicts++;
+                System.err.println("Conflict: " + target + " already has a different vault for " + userId + ", left on " + source);
+                return;
+            }
+            if (imported.statusCode() != 200) {
+                fail(userId, target + " import", imported);
+                return;
+            }
+            targetVersion = Long.parseLong(version);
+            
+            HttpResponse<String> released = send(HttpRequest.newBuilder(URI.create(source
+                    + "/api/admin/shard/release?userId=" + user + "&version=" + version
+                    + "&owner=" + URLEncoder.encode(target, StandardCharsets.UTF_8)))
+                    .POST(HttpRequest.BodyPublishers.noBody()));
+            if (released.statusCode() == 200) {
+                moved++;
+                return;
+            }
+            if (released.statusCode() != 409) {
+                fail(userId, source + " release", released);
+                return;
+            }
+            // Written to since the copy was taken: copy again over the stale one
+        }
+        failed++;
+        System.err.println("Gave up on " + userId + ": kept changing on " + source);
+    }
+    
+    private HttpResponse<String> send(HttpRequest.Builder request) throws Exception {
+        return client.send(request.header(ShardRouter.SECRET_HEADER, secret).build(), HttpResponse.BodyHandlers.ofString());
+    }
+    
+    private void fail(String userId, String step, HttpResponse<String> response) {
+        failed++;
+        System.err.println("Could not move " + userId + ": " + step + " answered " + response.statusCode() + " " + response.body());
+    }
+    
+    private void report(long millis) {
+        System.out.printf("%d users scanned, %d %s (%.1f%%), %d conflicts, %d failed, in %d ms%n",
+                scanned, moved, dryRun ? "to move" : "moved", scanned == 0 ? 0.0 : 100.0 * moved / scanned,
+                conflicts, failed, millis);
+    }
+}
\ No newline at end of file
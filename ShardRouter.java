@@ -0,0 +1,144 @@
+import com.sun.net.httpserver.HttpExchange;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Router side of user sharding: sends an authenticated vault request on to the backend that
+ * owns the user on the hash ring and streams the answer back.
+ *
+ * The router authenticates; backends trust the user id it sends in X-Shard-User only with the
+ * shared secret in X-Shard-Secret, so they must not be reachable by clients directly. A backend
+ * that no longer has the user (it was moved by ShardRebalancer while this router still has the
+ * old ring) answers 421 with X-Shard-Owner, and the request is sent there once instead.
+ */
+public class ShardRouter {
+    static final String USER_HEADER = "X-Shard-User";
+    static final String SECRET_HEADER = "X-Shard-Secret";
+    static final String OWNER_HEADER = "X-Shard-Owner";
+    
+    // Request headers the backend needs; everything else is the router's business
+    private static final List<String> FORWARDED_REQUEST_HEADERS = List.of(
+            "Content-Type", "Accept", "Accept-Encoding", "If-None-Match");
+    // Hop-by-hop, or set by HttpExchange itself
+    private static final Set<String> DROPPED_RESPONSE_HEADERS = Set.of(
+            "connection", "content-length", "transfer-encoding", "keep-alive", "date");
+    
+    private final HashRing ring;
+    private final String secret;
+    private final HttpClient client;
+    private final Duration timeout;
+    private final RequestLog requestLog;
+    private final LongAdder forwarded = Metrics.counter("shard.forwarded");
+    private final LongAdder redirected = Metrics.counter("shard.redirected");
+    private final LongAdder errors = Metrics.counter("shard.errors");
+    
+    public ShardRouter(HashRing ring, String secret, long timeoutMillis, RequestLog requestLog) {
+        this.ring = ring;
+        this.secret = secret;
+        this.timeout = Duration.ofMillis(timeoutMillis);
+        this.requestLog = requestLog;
+        this.client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(timeout)
+                .build();
+    }
+    
+    public HashRing ring() {
+        return ring;
+    }
+    
+    /**
+     * Forwards the exchange for userId and sends the backend's response, or a 502 if the
+     * backend cannot be reached. clientAddress is passed on for rate limits and the audit log.
+     */
+    public void forward(HttpExchange exchange, String userId, String clientAddress) throws IOException {
+        // Buffered rather than streamed so the request can be replayed after a 421
+        byte[] body = exchange.getRequestBody().readAllBytes();
+        String owner = ring.ownerOf(userId);
+        HttpResponse<InputStream> response;
+        try {
+            response = send(exchange, owner, userId, clientAddress, body);
+            String movedTo = response.headers().firstValue(OWNER_HEADER).orElse(null);
+            if (response.statusCode() == 421 && movedTo != null && !movedTo.equals(owner)) {
+                response.body().close();
+                redirected.increment();
+                owner = movedTo;
+                response = send(exchange, owner, userId, clientAddress, body);
+            }
+        } catch (IOException e) {
+            errors.increment();
+            // Through the rate-limited async error log: a backend that is down fails every request
+            requestLog.error(exchange.getRequestMethod(), exchange.getRequestURI().getPath(),
+                    new IOException("Shard " + owner + " unavailable", e));
+            sendError(exchange);
+            return;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            errors.increment();
+            sendError(exchange);
+            return;
+        }
+        relay(exchange, response);
+    }
+    
+    private HttpResponse<InputStream> send(HttpExchange exchange, String backend, String userId, String clientAddress,
+            byte[] body) throws IOException, InterruptedException {
+        URI uri = exchange.getRequestURI();
+        String target = backend + uri.getRawPath() + (uri.getRawQuery() != null ? "?" + uri.getRawQuery() : "");
+        HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(target))
+                .timeout(timeout)
+                .method(exchange.getRequestMethod(), body.length == 0
+                        ? HttpRequest.BodyPublishers.noBody() : HttpRequest.BodyPublishers.ofByteArray(body))
+                .header(USER_HEADER, userId)
+                .header(SECRET_HEADER, secret)
+                .header("X-Forwarded-For", clientAddress);
+        for (String name : FORWARDED_REQUEST_HEADERS) {
+            String value = exchange.getRequestHeaders().getFirst(name);
+            if (value != null) {
+                request.header(name, value);
+            }
+        }
+        forwarded.increment();
+        return client.send(request.build(), HttpResponse.BodyHandlers.ofInputStream());
+    }
+    
+    // Streams the body through, so exports are never held in the router's memory
+    private void relay(HttpExchange exchange, HttpResponse<InputStream> response) throws IOException {
+        for (Map.Entry<String, List<String>> header : response.headers().map().entrySet()) {
+            if (!DROPPED_RESPONSE_HEADERS.contains(header.getKey().toLowerCase())) {
+                exchange.getResponseHeaders().put(header.getKey(), header.getValue());
+            }
+        }
+        long length = response.headers().firstValueAsLong("Content-Length").orElse(0);
+        int status = response.statusCode();
+        // HttpExchange takes -1 for no body and 0 for a chunked one of unknown length
+        boolean empty = status == 304 || status == 204 || "HEAD".equals(exchange.getRequestMethod())
+                || (length == 0 && response.headers().firstValue("Content-Length").isPresent());
+        exchange.sendResponseHeaders(status, empty ? -1 : length);
+        try (InputStream in = response.body(); OutputStream out = exchange.getResponseBody()) {
+            in.transferTo(out);
+        }
+    }
+    
+    private void sendError(HttpExchange exchange) throws IOException {
+        byte[] error = "{\"error\":\"Shard unavailable\"}".getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.getResponseHeaders().set("Access-Control-Allow-Origin", "*");
+        exchange.getResponseHeaders().set("Retry-After", "1");
+        exchange.sendResponseHeaders(502, error.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(error);
+        }
+    }
+}
\ No newline at end of file
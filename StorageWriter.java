@@ -0,0 +1,376 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Single writer thread that persists data files in group commits.
+ *
+ * Callers hand over the full new content of a file. Everything submitted while the
+ * previous commit is in progress is coalesced into the next one (last write per file
+ * wins), and each file is written to a temp file and atomically renamed into place so
+ * a crash never leaves a truncated file behind. A file that cannot be written fails only
+ * the callers that submitted it; the rest of the commit still goes through.
+ *
+ * Durability modes (STORAGE_DURABILITY):
+ *   fsync-per-commit   - write() returns once the commit is fsynced (default)
+ *   fsync-every-N-ms   - write() returns once renamed; fsync runs every N ms
+ *   async              - write() returns immediately; reads still see the new content. A
+ *                        commit that fails is logged, counted in storage.commit_errors and
+ *                        thrown by the next flush()
+ *
+ * A listener, if set, sees every write in the order writes were accepted; replication uses
+ * it to ship them to a standby.
+ */
+public class StorageWriter {
+    public enum Durability { FSYNC_PER_COMMIT, FSYNC_INTERVAL, ASYNC }
+    
+    /**
+     * A write accepted by submitAll; await() waits for it as writeAll would.
+     */
+    public interface Pending {
+        void await() throws IOException;
+    }
+    
+    public interface Listener {
+        /**
+         * Called under the writer's lock, so it must not block; content must not be modified.
+         */
+        void written(Path file, byte[] content);
+    }
+    
+    private final Durability durability;
+    private final long fsyncIntervalMs;
+    private final Thread writerThread;
+    private Batch current = new Batch();
+    private Batch committing;
+    private boolean running = true;
+    private volatile Listener listener;
+    // A failed commit no caller was waiting on (async writes); the next flush() throws it
+    private IOException unreportedError;
+    
+    // Only touched by the writer thread
+    private final Set<Path> unsynced = new LinkedHashSet<>();
+    private long nextFsyncAt;
+    
+    public StorageWriter(Durability durability, long fsyncIntervalMs) {
+        this.durability = durability;
+        this.fsyncIntervalMs = fsyncIntervalMs;
+        this.nextFsyncAt = System.currentTimeMillis() + fsyncIntervalMs;
+        this.writerThread = new Thread(this::runWriter, "storage-writer");
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close, "storage-writer-shutdown"));
+    }
+    
+    public static StorageWriter fromEnvironment() {
+        String mode = System.getenv().getOrDefault("STORAGE_DURABILITY", "fsync-per-commit");
+        return fromMode(mode);
+    }
+    
+    public static StorageWriter fromMode(String mode) {
+        if ("fsync-per-commit".equals(mode)) {
+            return new StorageWriter(Durability.FSYNC_PER_COMMIT, 0);
+        }
+        if ("async".equals(mode)) {
+            return new StorageWriter(Durability.ASYNC, 0);
+        }
+        java.util.regex.Matcher m = java.util.regex.Pattern.compile("fsync-every-(\\d+)-?ms").matcher(mode);
+        if (m.matches()) {
+            return new StorageWriter(Durability.FSYNC_INTERVAL, Long.parseLong(m.group(1)));
+        }
+        throw new IllegalArgumentException("Unknown STORAGE_DURABILITY: " + mode);
+    }
+    
+    public Durability getDurability() {
+        return durability;
+    }
+    
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+    
+    public void write(Path file, String content) throws IOException {
+        write(file, content.getBytes(StandardCharsets.UTF_8));
+    }
+    
+    public void write(Path file, byte[] content) throws IOException {
+        writeAll(Map.of(file, content));
+    }
+    
+    /**
+     * Writes several files in one commit, waiting (per the durability mode) only once.
+     */
+    public void writeAll(Map<Path, byte[]> files) throws IOException {
+        submitAll(files).await();
+    }
+    
+    /**
+     * Accepts the writes like writeAll but returns before waiting for the commit. Callers that
+     * write under their own lock submit under it and await after releasing it, so their writes
+     * keep their order while waits of several callers share one commit.
+     */
+    public Pending submitAll(Map<Path, byte[]> files) throws IOException {
+        Batch batch;
+        synchronized (this) {
+            if (!running) {
+                throw new IOException("Storage writer is closed");
+            }
+            batch = current;
+            // Marked under the lock, before the writer can finish the batch
+            if (durability != Durability.ASYNC) {
+                batch.awaited.addAll(files.keySet());
+            }
+            Listener observer = listener;
+            for (Map.Entry<Path, byte[]> file : files.entrySet()) {
+                batch.files.put(file.getKey(), file.getValue());
+                if (observer != null) {
+                    observer.written(file.getKey(), file.getValue());
+                }
+            }
+            notifyAll();
+        }
+        
+        if (durability == Durability.ASYNC) {
+            return () -> { };
+        }
+        Set<Path> submitted = Set.copyOf(files.keySet());
+        return () -> awaitCommit(batch, submitted);
+    }
+    
+    /**
+     * Returns the newest content of a file, including writes that are not on disk yet,
+     * or null if the file does not exist.
+     */
+    public String readString(Path file) throws IOException {
+        synchronized (this) {
+            byte[] content = current.files.get(file);
+            if (content == null && committing != null) {
+                content = committing.files.get(file);
+            }
+            if (content != null) {
+                return new String(content, StandardCharsets.UTF_8);
+            }
+        }
+        
+        if (!Files.exists(file)) {
+            return null;
+        }
+        return Files.readString(file);
+    }
+    
+    /**
+     * Blocks until everything submitted so far is committed and fsynced. Throws if that commit
+     * failed, or if an earlier one that nobody waited on did.
+     */
+    public void flush() throws IOException {
+        Batch batch;
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            batch = current;
+            batch.fsyncRequested = true;
+            batch.flushed = true;
+            notifyAll();
+        }
+        awaitCommit(batch, null);
+        synchronized (this) {
+            IOException error = unreportedError;
+            unreportedError = null;
+            if (error != null) {
+                throw new IOException("An earlier commit failed", error);
+            }
+        }
+    }
+    
+    public void close() {
+        try {
+            flush();
+        } catch (IOException e) {
+            System.err.println("Failed to flush storage on shutdown: " + e.getMessage());
+        }
+        synchronized (this) {
+            running = false;
+            notifyAll();
+        }
+    }
+    
+    // Throws if any of files (null for all of them, and the fsync) failed to commit
+    private void awaitCommit(Batch batch, Set<Path> files) throws IOException {
+        synchronized (this) {
+            while (!batch.done) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for commit", e);
+                }
+            }
+        }
+        for (Map.Entry<Path, IOException> failure : batch.failures.entrySet()) {
+            if (files == null || files.contains(failure.getKey())) {
+                throw new IOException("Commit failed", failure.getValue());
+            }
+        }
+        if (files == null && batch.syncError != null) {
+            throw new IOException("Commit failed", batch.syncError);
+        }
+    }
+    
+    private void runWriter() {
+        while (true) {
+            Batch batch;
+            synchronized (this) {
+                while (running && current.isEmpty() && !fsyncDue()) {
+                    try {
+                        if (durability == Durability.FSYNC_INTERVAL && !unsynced.isEmpty()) {
+                            wait(Math.max(1, nextFsyncAt - System.currentTimeMillis()));
+                        } else {
+                            wait();
+                        }
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (!running && current.isEmpty()) {
+                    return;
+                }
+                batch = current;
+                current = new Batch();
+                committing = batch;
+            }
+            
+            commit(batch);
+            
+            synchronized (this) {
+                committing = null;
+                batch.done = true;
+                for (Map.Entry<Path, IOException> failure : batch.failures.entrySet()) {
+                    if (!batch.flushed && !batch.awaited.contains(failure.getKey())) {
+                        unreported("Storage commit of " + failure.getKey() + " failed", failure.getValue());
+                    }
+                }
+                if (batch.syncError != null && !batch.flushed) {
+                    unreported("Storage fsync failed", batch.syncError);
+                }
+                notifyAll();
+            }
+        }
+    }
+    
+    // Caller holds the lock. The writer already returned (async writes, or fsyncs after
+    // fsync-every-N-ms writes), so without this the failure would go unnoticed.
+    private void unreported(String message, IOException error) {
+        Metrics.increment("storage.commit_errors");
+        System.err.println(message + ": " + error);
+        if (unreportedError == null) {
+            unreportedError = error;
+        }
+    }
+    
+    private boolean fsyncDue() {
+        return durability == Durability.FSYNC_INTERVAL && !unsynced.isEmpty()
+                && System.currentTimeMillis() >= nextFsyncAt;
+    }
+    
+    // Files are renamed into place one by one, so a file that fails does not hold back the
+    // others: its failure is recorded against that file alone.
+    private void commit(Batch batch) {
+        boolean syncNow = durability == Durability.FSYNC_PER_COMMIT || batch.fsyncRequested;
+        Set<Path> directories = new LinkedHashSet<>();
+        
+        for (Map.Entry<Path, byte[]> entry : batch.files.entrySet()) {
+            Path file = entry.getKey();
+            try {
+                writeFile(file, entry.getValue(), syncNow);
+            } catch (IOException e) {
+                batch.failures.put(file, e);
+                continue;
+            }
+            
+            if (syncNow) {
+                directories.add(file.toAbsolutePath().getParent());
+            } else {
+                unsynced.add(file);
+            }
+        }
+        
+        if (syncNow || fsyncDue()) {
+            try {
+                for (Path file : unsynced) {
+                    fsync(file);
+                    directories.add(file.toAbsolutePath().getParent());
+                }
+                unsynced.clear();
+            } catch (IOException e) {
+                // The files are in place already; they stay unsynced and are retried next time
+                batch.syncError = e;
+            }
+            nextFsyncAt = System.currentTimeMillis() + fsyncIntervalMs;
+        }
+        for (Path directory : directories) {
+            fsyncDirectory(directory);
+        }
+    }
+    
+    private void writeFile(Path file, byte[] content, boolean sync) throws IOException {
+        Path tempFile = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        
+        try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.wrap(content);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            if (sync) {
+                channel.force(true);
+            }
+        }
+        Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    
+    private void fsync(Path file) throws IOException {
+        if (!Files.exists(file)) {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            channel.force(true);
+        }
+    }
+    
+    // Makes the rename itself durable; not every platform lets a directory be opened
+    private void fsyncDirectory(Path directory) {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // Best effort only (e.g. Windows)
+        }
+    }
+    
+    private static class Batch {
+        final Map<Path, byte[]> files = new LinkedHashMap<>();
+        boolean fsyncRequested;
+        boolean done;
+        // Files some waiting caller submitted, and whether a flush() waits for all of them:
+        // those callers see their failures, the rest are reported by the writer
+        final Set<Path> awaited = new java.util.HashSet<>();
+        boolean flushed;
+        // Files that were not moved into place, and a failed fsync of files that were
+        final Map<Path, IOException> failures = new LinkedHashMap<>();
+        IOException syncError;
+        
+        boolean isEmpty() {
+            return files.isEmpty() && !fsyncRequested;
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,40 @@
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Interns strings so repeated values share one instance, up to a fixed number of distinct values.
+ *
+ * Lookups go through a concurrent map, so no lock is taken once a value has been seen. Values are
+ * never evicted; once the dictionary is full, values it has not seen are returned as they are and
+ * each holder keeps its own copy. The first values seen are typically the common ones (popular
+ * site names), and a client sending endless distinct values cannot grow it past the cap.
+ */
+public class StringDictionary {
+    private final ConcurrentHashMap<String, String> values = new ConcurrentHashMap<>();
+    private final int capacity;
+    
+    public StringDictionary(String name, int capacity) {
+        this.capacity = capacity;
+        Metrics.gauge("dictionary." + name + ".entries", () -> values.size());
+    }
+    
+    /**
+     * Returns the shared instance equal to value, adding value if there is room.
+     */
+    public String intern(String value) {
+        String shared = values.get(value);
+        if (shared != null) {
+            return shared;
+        }
+        // Once full, unseen values need no lock to learn there is no room; re-checked under it
+        if (values.size() >= capacity) {
+            return value;
+        }
+        synchronized (this) {
+            if (values.size() >= capacity) {
+                return value;
+            }
+            shared = values.putIfAbsent(value, value);
+            return shared != null ? shared : value;
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,199 @@
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Line formats for bulk import and export of vault entries.
+ *
+ *   csv    - site,username,password (RFC 4180 quoting). A header row is recognised and may
+ *            use the column names of common password manager exports, e.g. name/url,
+ *            login_username, login_password.
+ *   jsonl  - one {"site":...,"username":...,"password":...} object per line
+ *
+ * Input is read one bounded line at a time so memory does not depend on the upload size.
+ */
+public class VaultTransfer {
+    public static final int MAX_LINE_LENGTH = 8192;
+    
+    private static final String[] SITE_COLUMNS = {"site", "name", "title", "url", "login_uri"};
+    private static final String[] USERNAME_COLUMNS = {"username", "login_username", "login", "user", "email"};
+    private static final String[] PASSWORD_COLUMNS = {"password", "login_password"};
+    
+    private final Reader in;
+    private final boolean csv;
+    private int[] columns = {0, 1, 2};
+    private boolean firstLine = true;
+    private int lineNumber;
+    
+    public VaultTransfer(Reader in, String format) {
+        this.in = in;
+        this.csv = isCsv(format);
+    }
+    
+    public static boolean isSupported(String format) {
+        return "csv".equals(format) || "jsonl".equals(format);
+    }
+    
+    /**
+     * Next record as {site, username, password}, or an empty array for a line that
+     * could not be used, or null at end of input.
+     */
+    public String[] next() throws IOException {
+        String line;
+        do {
+            line = readLine();
+            if (line == null) {
+                return null;
+            }
+        } while (line.trim().isEmpty());
+        
+        if (!csv) {
+            return validated(new String[] {
+                    jsonValue(line, "site"), jsonValue(line, "username"), jsonValue(line, "password")});
+        }
+        
+        List<String> fields = parseCsvLine(line);
+        if (firstLine) {
+            firstLine = false;
+            if (applyHeader(fields)) {
+                return next();
+            }
+        }
+        if (fields == null) {
+            return new String[0];
+        }
+        
+        String[] record = new String[3];
+        for (int i = 0; i < 3; i++) {
+            record[i] = columns[i] >= 0 && columns[i] < fields.size() ? fields.get(columns[i]) : null;
+        }
+        return validated(record);
+    }
+    
+    public int getLineNumber() {
+        return lineNumber;
+    }
+    
+    public static String formatLine(String format, String site, String username, String password) {
+        if (isCsv(format)) {
+            return csvField(site) + "," + csvField(username) + "," + csvField(password) + "\n";
+        }
+        return "{\"site\":\"" + site + "\",\"username\":\"" + username + "\",\"password\":\"" + password + "\"}\n";
+    }
+    
+    public static void writeHeader(String format, Writer out) throws IOException {
+        if (isCsv(format)) {
+            out.write("site,username,password\n");
+        }
+    }
+    
+    private static boolean isCsv(String format) {
+        return "csv".equals(format);
+    }
+    
+    private boolean applyHeader(List<String> fields) {
+        if (fields == null) {
+            return false;
+        }
+        List<String> names = new ArrayList<>();
+        for (String field : fields) {
+            names.add(field.trim().toLowerCase());
+        }
+        int password = indexOfAny(names, PASSWORD_COLUMNS);
+        if (password < 0) {
+            return false;
+        }
+        columns = new int[] {indexOfAny(names, SITE_COLUMNS), indexOfAny(names, USERNAME_COLUMNS), password};
+        return true;
+    }
+    
+    private static int indexOfAny(List<String> names, String[] candidates) {
+        for (String candidate : candidates) {
+            int index = names.indexOf(candidate);
+            if (index >= 0) {
+                return index;
+            }
+        }
+        return -1;
+    }
+    
+    // Stored values are written into JSON without escaping, so reject anything that would break it
+    private static String[] validated(String[] record) {
+        for (String value : record) {
+            if (value == null || value.isEmpty() || value.indexOf('"') >= 0 || value.indexOf('\\') >= 0
+                    || value.chars().anyMatch(c -> c < 0x20)) {
+                return new String[0];
+            }
+        }
+        return record;
+    }
+    
+    private String readLine() throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') {
+                break;
+            }
+            if (line.length() >= MAX_LINE_LENGTH) {
+                throw new IllegalArgumentException("Line " + (lineNumber + 1) + " is longer than " + MAX_LINE_LENGTH + " characters");
+            }
+            line.append((char) c);
+        }
+        if (c == -1 && line.length() == 0) {
+            return null;
+        }
+        lineNumber++;
+        int end = line.length();
+        if (end > 0 && line.charAt(end - 1) == '\r') {
+            line.setLength(end - 1);
+        }
+        return line.toString();
+    }
+    
+    // Returns null for malformed quoting; quoted fields spanning lines are not supported
+    private static List<String> parseCsvLine(String line) {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                } else {
+                    field.append(c);
+                }
+            } else if (c == '"' && field.length() == 0) {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        if (quoted) {
+            return null;
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+    
+    private static String csvField(String value) {
+        if (value.indexOf(',') >= 0 || value.indexOf('"') >= 0) {
+            return "\"" + value.replace("\"", "\"\"") + "\"";
+        }
+        return value;
+    }
+    
+    private static String jsonValue(String json, String key) {
+        java.util.regex.Matcher m = java.util.regex.Pattern.compile("\"" + key + "\":\\s*\"([^\"]+)\"").matcher(json);
+        return m.find() ? m.group(1) : null;
+    }
+}
\ No newline at end of file